@@ -20,13 +20,32 @@ package org.wso2.carbon.apimgt.securityenforcer.opa;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.JSONObject;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.DecisionCache;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.DecisionSnapshot;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.OffHeapDecisionStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.PolicyEpoch;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.CacheResponseDTO;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.cache.Cache;
 import javax.cache.CacheConfiguration;
@@ -34,163 +53,662 @@ import javax.cache.Caching;
 
 /**
  * OPAResponseStore class acts as the cache for the Authenticator.
+ * The Carbon caches are tenant scoped, hence the caches of each tenant are held by a {@link TenantCaches} instance
+ * which is created once, on the first request of the tenant. Each Carbon cache is fronted by an in-process
+ * {@link DecisionCache}, so cache hits neither lock nor reach the Carbon cache. If an off-heap cache size is
+ * configured, an {@link OffHeapDecisionStore} is used instead of the Carbon cache, which keeps large caches out of the
+ * Java heap.
+ * Decisions are cached for the TTL returned by the policy, limited to the configured maximum, or for the cache expiry
+ * time if the policy did not return a TTL. Decisions the policy marked as not cacheable are not cached.
+ * If refresh-ahead is enabled, a decision is due for a background refresh once the configured fraction of its TTL has
+ * passed. Expired decisions are still served for the stale-while-revalidate window while they are refreshed. In both
+ * cases only the first request that sees the decision is asked to refresh it.
+ * Each decision is tagged with the policy epoch of its request, and is not used once the policies of its API are
+ * invalidated through the {@link PolicyEpoch}.
+ * If a snapshot file is configured, the unexpired decisions of the off-heap stores, or else of the in-process caches,
+ * are written to it periodically and when the handler stops, together with their policy epochs and the epochs of the
+ * {@link PolicyEpoch}. The decisions of the snapshot are loaded on start, and are added to the caches of each tenant
+ * when the caches are created. The epochs are restored as well, so decisions invalidated before a restart are not used
+ * after it. Decisions older than the last invalidation of every API are not written at all, while the ones of an
+ * invalidated API context are only rejected on lookup, since the snapshot keys do not hold the API context.
  */
 
 public class OPAResponseStore {
 
     private static final Log log = LogFactory.getLog(OPAResponseStore.class);
-    private static boolean cookieCacheInitialized = false;
-    private static boolean tokenCacheInitialized = false;
-    private static boolean IPCacheInitialized = false;
+    private static final ConcurrentHashMap<Integer, TenantCaches> tenantCaches = new ConcurrentHashMap<>();
+    // Value from which the fingerprint of the cache key derivation is derived
+    private static final String SNAPSHOT_FINGERPRINT = "OPA decision snapshot";
+    // Decisions loaded from the snapshot of the tenants whose caches are not created yet
+    private static final ConcurrentHashMap<Integer, List<DecisionSnapshot.Entry>> snapshotEntries =
+            new ConcurrentHashMap<>();
+    private static File snapshotFile;
+    private static ScheduledExecutorService snapshotScheduler;
+    // Removes the expired decisions of the in-process caches of every tenant
+    private static ScheduledExecutorService cacheSweeper;
 
     public OPAResponseStore() {}
 
-    public synchronized static void writeToOPAResponseCache(String cacheName, String cacheKey,
-                                                            boolean opaResponse) {
+    /**
+     * Caches a decision of the OPA server.
+     *
+     * @param policyEpoch policy epoch of the request the decision was made for
+     */
+    public static void writeToOPAResponseCache(String cacheName, CacheKey cacheKey, Decision opaResponse,
+                                               long policyEpoch) {
 
         if (cacheKey != null) {
-            Cache cache = getCache(cacheName);
-            if (cache != null) {
-                cache.put(cacheKey, opaResponse);
+            ResponseCache responseCache = getTenantCaches().get(cacheName);
+            if (responseCache != null) {
+                responseCache.put(cacheKey, opaResponse, policyEpoch);
             }
         }
     }
 
-    public static CacheResponseDTO getFromOPAResponseCache(String cacheName, String cacheKey) {
+    /**
+     * Returns the cached decision, unless the policies of the API were invalidated after it was made.
+     *
+     * @param apiContext context of the API the request was sent to
+     */
+    public static CacheResponseDTO getFromOPAResponseCache(String cacheName, CacheKey cacheKey, String apiContext) {
 
         CacheResponseDTO cacheResponse = new CacheResponseDTO();
         if (cacheKey != null) {
-            Cache cache = getCache(cacheName);
-            if (cache != null) {
-                Object cachedObject = cache.get(cacheKey);
-                if (cachedObject != null) {
-                    cacheResponse.setCachedResponse((boolean) cachedObject);
+            ResponseCache responseCache = getTenantCaches().get(cacheName);
+            if (responseCache != null) {
+                long now = System.currentTimeMillis();
+                PolicyEpoch policyEpoch = ServiceReferenceHolder.getInstance().getPolicyEpoch();
+                long minimumEpoch = policyEpoch != null ? policyEpoch.getMinimumEpoch(apiContext) : Long.MIN_VALUE;
+                CachedDecision cachedDecision = responseCache.get(cacheKey, now, minimumEpoch);
+                if (cachedDecision != null) {
+                    cacheResponse.setCachedResponse(cachedDecision.allowed);
                     cacheResponse.setAvailableInCache(true);
+                    cacheResponse.setRefreshDue(cachedDecision.refreshTime <= now
+                            && responseCache.startRefresh(cacheKey, cachedDecision, now));
                 }
             }
         }
         return cacheResponse;
     }
 
-    public static void updateCache(JSONObject requestBody, boolean opaResponseCode, String correlationID) {
+    public static void updateCache(RequestMetadata requestBody, Decision opaResponseCode, String correlationID) {
 
-        String token = (String) requestBody.get(SecurityHandlerConstants.TOKEN_KEY_NAME);
-        String cookie = (String) requestBody.get(SecurityHandlerConstants.COOKIE_KEY_NAME);
-        String ip = (String) requestBody.get(SecurityHandlerConstants.IP_KEY_NAME);
-
-        writeToOPAResponseCache(SecurityHandlerConstants.TOKEN_CACHE_NAME, token, opaResponseCode);
-        writeToOPAResponseCache(SecurityHandlerConstants.COOKIE_CACHE_NAME, cookie, opaResponseCode);
-        writeToOPAResponseCache(SecurityHandlerConstants.IP_CACHE_NAME, ip, opaResponseCode);
+        long policyEpoch = requestBody.getPolicyEpoch();
+        writeToOPAResponseCache(SecurityHandlerConstants.TOKEN_CACHE_NAME, requestBody.getTokenCacheKey(),
+                opaResponseCode, policyEpoch);
+        writeToOPAResponseCache(SecurityHandlerConstants.COOKIE_CACHE_NAME, requestBody.getCookieCacheKey(),
+                opaResponseCode, policyEpoch);
+        writeToOPAResponseCache(SecurityHandlerConstants.IP_CACHE_NAME, requestBody.getIpCacheKey(),
+                opaResponseCode, policyEpoch);
+        writeToOPAResponseCache(SecurityHandlerConstants.DECISION_CACHE_NAME, requestBody.getDecisionCacheKey(),
+                opaResponseCode, policyEpoch);
         if (log.isDebugEnabled()) {
             log.debug("Cache updated for " + correlationID + " as  " + opaResponseCode);
         }
     }
 
-    public synchronized static Cache getTokenCache() {
+    public static Cache getTokenCache() {
+
+        return getCarbonCache(SecurityHandlerConstants.TOKEN_CACHE_NAME);
+    }
+
+    public static Cache getIPCache() {
+
+        return getCarbonCache(SecurityHandlerConstants.IP_CACHE_NAME);
+    }
+
+    public static Cache getCookieCache() {
+
+        return getCarbonCache(SecurityHandlerConstants.COOKIE_CACHE_NAME);
+    }
+
+    public static Cache getDecisionCache() {
 
-        boolean tokenCacheEnabled =
-                ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getCacheConfig().isTokenCacheEnabled();
+        return getCarbonCache(SecurityHandlerConstants.DECISION_CACHE_NAME);
+    }
+
+    public static Cache getCache(String cacheName) {
+
+        return getCarbonCache(cacheName);
+    }
 
-        if (tokenCacheEnabled) {
-            if (!tokenCacheInitialized) {
-                tokenCacheInitialized = true;
-                if (log.isDebugEnabled()) {
-                    log.debug("New Cache instance created for OPA security handler with the name of " +
-                            SecurityHandlerConstants.TOKEN_CACHE_NAME);
+    /**
+     * Loads the decisions of the snapshot file and starts writing a new snapshot at the given interval.
+     *
+     * @param file            the snapshot file
+     * @param intervalSeconds interval in seconds between two snapshots
+     */
+    public static synchronized void startSnapshots(File file, long intervalSeconds) {
+
+        snapshotFile = file;
+        try {
+            DecisionSnapshot.Contents contents = DecisionSnapshot.read(file, getSnapshotFingerprint(),
+                    System.currentTimeMillis());
+            PolicyEpoch policyEpoch = ServiceReferenceHolder.getInstance().getPolicyEpoch();
+            if (policyEpoch != null) {
+                policyEpoch.restore(contents.getGlobalEpoch(), contents.getContextEpochs());
+            }
+            List<DecisionSnapshot.Entry> entries = contents.getEntries();
+            for (DecisionSnapshot.Entry entry : entries) {
+                List<DecisionSnapshot.Entry> tenantEntries = snapshotEntries.get(entry.getTenantId());
+                if (tenantEntries == null) {
+                    tenantEntries = new ArrayList<>();
+                    snapshotEntries.put(entry.getTenantId(), tenantEntries);
                 }
-                return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME)
-                        .createCacheBuilder(SecurityHandlerConstants.TOKEN_CACHE_NAME)
-                        .setExpiry(CacheConfiguration.ExpiryType.ACCESSED,
-                                new CacheConfiguration.Duration(TimeUnit.MINUTES,
-                                        ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
-                                                .getCacheExpiryTime()))
-                        .setExpiry(CacheConfiguration.ExpiryType.MODIFIED,
-                                new CacheConfiguration.Duration(TimeUnit.MINUTES,
-                                        ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
-                                                .getCacheExpiryTime()))
-                        .setStoreByValue(false).build();
-            } else {
-                return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME).getCache(
-                        SecurityHandlerConstants.TOKEN_CACHE_NAME);
+                tenantEntries.add(entry);
+            }
+            log.info(entries.size() + " cached decisions loaded from the OPA decision snapshot " + file);
+        } catch (IOException e) {
+            log.error("Error while loading the OPA decision snapshot " + file, e);
+        }
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "OPA-Decision-Cache-Snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        snapshotScheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    writeSnapshot();
+                } catch (RuntimeException e) {
+                    log.error("Error while writing the OPA decision snapshot", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the last decision snapshot, if snapshots are enabled, and stops the in-process caches of every tenant.
+     */
+    public static void cleanup() {
+
+        synchronized (OPAResponseStore.class) {
+            if (snapshotScheduler != null) {
+                // A snapshot being written is completed, since writing it holds the lock of this class
+                snapshotScheduler.shutdown();
+                snapshotScheduler = null;
+                writeSnapshot();
+                snapshotFile = null;
+                snapshotEntries.clear();
             }
+        }
+        for (TenantCaches caches : tenantCaches.values()) {
+            caches.close();
+        }
+        tenantCaches.clear();
+        synchronized (OPAResponseStore.class) {
+            if (cacheSweeper != null) {
+                cacheSweeper.shutdownNow();
+                cacheSweeper = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the thread which removes the expired decisions of the in-process caches, which is started with the
+     * first cache and stopped on cleanup.
+     */
+    private static synchronized ScheduledExecutorService getCacheSweeper() {
+
+        if (cacheSweeper == null) {
+            cacheSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "OPA-Decision-Cache-Sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return cacheSweeper;
+    }
+
+    private static synchronized void writeSnapshot() {
+
+        File file = snapshotFile;
+        if (file == null) {
+            return;
+        }
+        int capacity = 0;
+        for (TenantCaches caches : tenantCaches.values()) {
+            capacity += caches.size();
+        }
+        // The loaded decisions of the tenants which did not receive a request yet are kept as well
+        for (List<DecisionSnapshot.Entry> entries : snapshotEntries.values()) {
+            capacity += entries.size();
+        }
+        PolicyEpoch policyEpoch = ServiceReferenceHolder.getInstance().getPolicyEpoch();
+        if (policyEpoch == null) {
+            writeSnapshot(file, capacity, 0, new HashMap<String, Long>());
         } else {
-            return null;
-        }
-    }
-
-    public synchronized static Cache getIPCache() {
-        boolean IPCacheEnabled =
-                ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getCacheConfig().isIPCacheEnabled();
-        if (IPCacheEnabled) {
-            if (!IPCacheInitialized) {
-                IPCacheInitialized = true;
-                if (log.isDebugEnabled()) {
-                    log.debug("New Cache instance created for OPA security handler with the name of " +
-                            SecurityHandlerConstants.IP_CACHE_NAME);
-                }
-                return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME)
-                        .createCacheBuilder(SecurityHandlerConstants.IP_CACHE_NAME)
-                        .setExpiry(CacheConfiguration.ExpiryType.ACCESSED,
-                                new CacheConfiguration.Duration(TimeUnit.MINUTES,
-                                        ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
-                                                .getCacheExpiryTime()))
-                        .setExpiry(CacheConfiguration.ExpiryType.MODIFIED,
-                                new CacheConfiguration.Duration(TimeUnit.MINUTES,
-                                        ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
-                                                .getCacheExpiryTime()))
-                        .setStoreByValue(false).build();
+            // Invalidations wait for the snapshot, so that it does not keep decisions invalidated while it is written
+            synchronized (policyEpoch) {
+                writeSnapshot(file, capacity, policyEpoch.getGlobalEpoch(), policyEpoch.getContextEpochs());
+            }
+        }
+    }
+
+    private static void writeSnapshot(File file, int capacity, long globalEpoch, Map<String, Long> contextEpochs) {
+
+        long now = System.currentTimeMillis();
+        try (DecisionSnapshot.Writer writer = DecisionSnapshot.create(file, getSnapshotFingerprint(), globalEpoch,
+                contextEpochs, capacity)) {
+            for (Map.Entry<Integer, TenantCaches> caches : tenantCaches.entrySet()) {
+                caches.getValue().checkpoint(caches.getKey(), globalEpoch, writer);
+            }
+            for (List<DecisionSnapshot.Entry> entries : snapshotEntries.values()) {
+                for (DecisionSnapshot.Entry entry : entries) {
+                    if (entry.getExpiryTime() > now && entry.getPolicyEpoch() >= globalEpoch) {
+                        writer.add(entry.getTenantId(), entry.getCacheIndex(), entry.getKey().getHigh(),
+                                entry.getKey().getLow(), entry.isAllowed(), entry.getRefreshTime(),
+                                entry.getExpiryTime(), entry.getPolicyEpoch());
+                    }
+                }
+            }
+            writer.commit();
+            if (log.isDebugEnabled()) {
+                log.debug(writer.getCount() + " cached decisions written to the OPA decision snapshot " + file);
+            }
+        } catch (IOException e) {
+            log.error("Error while writing the OPA decision snapshot " + file, e);
+        }
+    }
+
+    private static CacheKey getSnapshotFingerprint() {
+
+        return ServiceReferenceHolder.getInstance().getCacheKeyDeriver().derive(SNAPSHOT_FINGERPRINT);
+    }
+
+    private static Cache getCarbonCache(String cacheName) {
+
+        ResponseCache responseCache = getTenantCaches().get(cacheName);
+        return responseCache != null ? responseCache.getCarbonCache() : null;
+    }
+
+    private static TenantCaches getTenantCaches() {
+
+        int tenantId = PrivilegedCarbonContext.getThreadLocalCarbonContext().getTenantId();
+        TenantCaches caches = tenantCaches.get(tenantId);
+        if (caches == null) {
+            TenantCaches newCaches = new TenantCaches(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig());
+            caches = tenantCaches.putIfAbsent(tenantId, newCaches);
+            if (caches == null) {
+                caches = newCaches;
+                List<DecisionSnapshot.Entry> entries = snapshotEntries.remove(tenantId);
+                if (entries != null) {
+                    caches.restore(entries);
+                }
             } else {
-                return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME).getCache(
-                        SecurityHandlerConstants.IP_CACHE_NAME);
+                newCaches.close();
+            }
+        }
+        return caches;
+    }
+
+    /**
+     * The token, IP, cookie and decision caches of a tenant. A cache is null if it is disabled. The index of a cache
+     * in the snapshot is its position in the caches array.
+     */
+    private static final class TenantCaches {
+
+        private final ResponseCache tokenCache;
+        private final ResponseCache ipCache;
+        private final ResponseCache cookieCache;
+        private final ResponseCache decisionCache;
+        private final ResponseCache[] caches;
+
+        TenantCaches(SecurityHandlerConfig securityHandlerConfig) {
+
+            SecurityHandlerConfig.CacheConfig cacheConfig = securityHandlerConfig.getCacheConfig();
+            long expiryTime = TimeUnit.MINUTES.toMillis(securityHandlerConfig.getCacheExpiryTime());
+            // Policies may shorten the expiry time of a decision. They can extend it only up to the maximum TTL.
+            long maxExpiryTime = Math.max(expiryTime, TimeUnit.SECONDS.toMillis(cacheConfig.getMaxDecisionTTL()));
+            tokenCache = cacheConfig.isTokenCacheEnabled() ? new ResponseCache(
+                    SecurityHandlerConstants.TOKEN_CACHE_NAME, expiryTime, maxExpiryTime, cacheConfig) : null;
+            ipCache = cacheConfig.isIPCacheEnabled() ? new ResponseCache(
+                    SecurityHandlerConstants.IP_CACHE_NAME, expiryTime, maxExpiryTime, cacheConfig) : null;
+            cookieCache = cacheConfig.isCookieCacheEnabled() ? new ResponseCache(
+                    SecurityHandlerConstants.COOKIE_CACHE_NAME, expiryTime, maxExpiryTime, cacheConfig) : null;
+            decisionCache = cacheConfig.isDecisionCacheEnabled() ? new ResponseCache(
+                    SecurityHandlerConstants.DECISION_CACHE_NAME, expiryTime, maxExpiryTime, cacheConfig) : null;
+            caches = new ResponseCache[]{tokenCache, ipCache, cookieCache, decisionCache};
+        }
+
+        ResponseCache get(String cacheName) {
+
+            switch (cacheName) {
+                case (SecurityHandlerConstants.TOKEN_CACHE_NAME):
+                    return tokenCache;
+                case (SecurityHandlerConstants.IP_CACHE_NAME):
+                    return ipCache;
+                case (SecurityHandlerConstants.COOKIE_CACHE_NAME):
+                    return cookieCache;
+                case (SecurityHandlerConstants.DECISION_CACHE_NAME):
+                    return decisionCache;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Returns the number of decisions written by {@link #checkpoint(int, DecisionSnapshot.Writer)}, or more.
+         */
+        int size() {
+
+            int size = 0;
+            for (ResponseCache responseCache : caches) {
+                if (responseCache != null) {
+                    size += responseCache.snapshotSize();
+                }
+            }
+            return size;
+        }
+
+        void checkpoint(int tenantId, long minimumEpoch, DecisionSnapshot.Writer writer) {
+
+            for (int i = 0; i < caches.length; i++) {
+                if (caches[i] != null) {
+                    caches[i].checkpoint(tenantId, i, minimumEpoch, writer);
+                }
+            }
+        }
+
+        void restore(List<DecisionSnapshot.Entry> entries) {
+
+            for (DecisionSnapshot.Entry entry : entries) {
+                int cacheIndex = entry.getCacheIndex();
+                if (cacheIndex >= 0 && cacheIndex < caches.length && caches[cacheIndex] != null) {
+                    caches[cacheIndex].restore(entry.getKey(), entry.isAllowed(), entry.getRefreshTime(),
+                            entry.getExpiryTime(), entry.getPolicyEpoch());
+                }
+            }
+        }
+
+        void close() {
+
+            for (ResponseCache responseCache : caches) {
+                if (responseCache != null) {
+                    responseCache.close();
+                }
             }
-        } else {
-            return null;
         }
     }
 
-    public synchronized static Cache getCookieCache() {
+    /**
+     * A Carbon cache or an off-heap store of OPA responses and the in-process cache in front of it.
+     */
+    private static final class ResponseCache {
+
+        private final String name;
+        private final long expiryTime;
+        private final long maxExpiryTime;
+        private final double refreshAheadFactor;
+        private final long staleTime;
+        private final DecisionCache<CachedDecision> localCache;
+        private final OffHeapDecisionStore offHeapStore;
+        private volatile boolean created;
 
-        boolean cookieCacheEnabled =
-                ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getCacheConfig().isCookieCacheEnabled();
+        /**
+         * @param name          name of the Carbon cache
+         * @param expiryTime    expiry time in milliseconds of the decisions without a TTL
+         * @param maxExpiryTime maximum expiry time in milliseconds of any decision
+         * @param cacheConfig   cache configuration, providing the sizes of the in-process and off-heap caches and the
+         *                      refresh settings
+         */
+        ResponseCache(String name, long expiryTime, long maxExpiryTime, SecurityHandlerConfig.CacheConfig cacheConfig) {
 
-        if (cookieCacheEnabled) {
-            if (!cookieCacheInitialized) {
-                cookieCacheInitialized = true;
-                if (log.isDebugEnabled()) {
-                    log.debug("New Cache instance created for OPA security handler with the name of " +
-                            SecurityHandlerConstants.COOKIE_CACHE_NAME);
+            this.name = name;
+            this.expiryTime = expiryTime;
+            this.maxExpiryTime = maxExpiryTime;
+            this.refreshAheadFactor = cacheConfig.getRefreshAheadFactor();
+            this.staleTime = TimeUnit.SECONDS.toMillis(cacheConfig.getStaleWhileRevalidate());
+            int localCacheSize = cacheConfig.getLocalCacheSize();
+            this.localCache = localCacheSize > 0 ? new DecisionCache<CachedDecision>(localCacheSize,
+                    expiryTime + staleTime, getCacheSweeper()) : null;
+            int offHeapCacheSize = cacheConfig.getOffHeapCacheSize();
+            this.offHeapStore = offHeapCacheSize > 0 ? new OffHeapDecisionStore(offHeapCacheSize) : null;
+        }
+
+        /**
+         * Returns the cached decision, or null if there is no decision, it is older than the stale window or its
+         * policy epoch is older than the given one.
+         */
+        CachedDecision get(CacheKey cacheKey, long now, long minimumEpoch) {
+
+            if (localCache != null) {
+                CachedDecision cachedDecision = localCache.get(cacheKey);
+                // Another node may have cached a newer decision in the Carbon cache, hence a decision of invalidated
+                // policies is looked up there
+                if (cachedDecision != null && cachedDecision.policyEpoch >= minimumEpoch) {
+                    return cachedDecision;
+                }
+            }
+            CachedDecision cachedDecision;
+            if (offHeapStore != null) {
+                long entry = offHeapStore.get(cacheKey, now, minimumEpoch);
+                if (entry == 0) {
+                    return null;
                 }
-                return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME)
-                        .createCacheBuilder(SecurityHandlerConstants.COOKIE_CACHE_NAME)
-                        .setExpiry(CacheConfiguration.ExpiryType.ACCESSED,
-                                new CacheConfiguration.Duration(TimeUnit.MINUTES,
-                                        ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
-                                                .getCacheExpiryTime()))
-                        .setExpiry(CacheConfiguration.ExpiryType.MODIFIED,
-                                new CacheConfiguration.Duration(TimeUnit.MINUTES,
-                                        ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
-                                                .getCacheExpiryTime()))
-                        .setStoreByValue(false).build();
+                // The epoch of the entry is at least the minimum one, which is enough to invalidate the decision later
+                cachedDecision = new CachedDecision(OffHeapDecisionStore.isAllowed(entry),
+                        OffHeapDecisionStore.getRefreshTime(entry), OffHeapDecisionStore.getExpiryTime(entry),
+                        minimumEpoch);
             } else {
-                return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME).getCache(
-                        SecurityHandlerConstants.COOKIE_CACHE_NAME);
+                Cache cache = getCarbonCache();
+                Object cachedObject = cache != null ? cache.get(cacheKey) : null;
+                if (!(cachedObject instanceof CachedDecision)) {
+                    return null;
+                }
+                cachedDecision = (CachedDecision) cachedObject;
+                if (cachedDecision.staleTime <= now || cachedDecision.policyEpoch < minimumEpoch) {
+                    // The Carbon cache expires all entries after the maximum expiry time
+                    return null;
+                }
+            }
+            if (localCache != null) {
+                localCache.put(cacheKey, cachedDecision, cachedDecision.staleTime);
+            }
+            return cachedDecision;
+        }
+
+        void put(CacheKey cacheKey, Decision decision, long policyEpoch) {
+
+            long decisionExpiryTime = expiryTime;
+            if (decision.getTtlSeconds() != Decision.DEFAULT_TTL) {
+                decisionExpiryTime = Math.min(TimeUnit.SECONDS.toMillis(decision.getTtlSeconds()), maxExpiryTime);
+            }
+            if (!decision.isCacheable() || decisionExpiryTime <= 0) {
+                // A previously cached decision must not outlive a decision which may not be cached
+                if (localCache != null) {
+                    localCache.remove(cacheKey);
+                }
+                if (offHeapStore != null) {
+                    offHeapStore.remove(cacheKey);
+                } else {
+                    Cache cache = getCarbonCache();
+                    if (cache != null) {
+                        cache.remove(cacheKey);
+                    }
+                }
+                return;
+            }
+            long now = System.currentTimeMillis();
+            // Without refresh-ahead, a decision is only refreshed once it is stale
+            long refreshTime = now + (refreshAheadFactor > 0 ?
+                    (long) (decisionExpiryTime * refreshAheadFactor) : decisionExpiryTime);
+            store(cacheKey, new CachedDecision(decision.isAllowed(), refreshTime,
+                    now + decisionExpiryTime + staleTime, policyEpoch));
+        }
+
+        /**
+         * Caches a decision loaded from a snapshot. Its expiry time is limited to the current maximum, which may be
+         * shorter than the one of the node which wrote the snapshot. The decision keeps its policy epoch, which is
+         * checked against the epochs restored from the same snapshot on lookup.
+         */
+        void restore(CacheKey cacheKey, boolean allowed, long refreshTime, long staleTime, long policyEpoch) {
+
+            long now = System.currentTimeMillis();
+            long maxStaleTime = now + maxExpiryTime + this.staleTime;
+            store(cacheKey, new CachedDecision(allowed, Math.min(refreshTime, maxStaleTime),
+                    Math.min(staleTime, maxStaleTime), policyEpoch));
+        }
+
+        private void store(CacheKey cacheKey, CachedDecision cachedDecision) {
+
+            if (localCache != null) {
+                localCache.put(cacheKey, cachedDecision, cachedDecision.staleTime);
+            }
+            if (offHeapStore != null) {
+                offHeapStore.put(cacheKey, cachedDecision.allowed, cachedDecision.refreshTime,
+                        cachedDecision.staleTime, cachedDecision.policyEpoch);
+            } else {
+                Cache cache = getCarbonCache();
+                if (cache != null) {
+                    cache.put(cacheKey, cachedDecision);
+                }
+            }
+        }
+
+        /**
+         * Returns the maximum number of decisions written to a snapshot by
+         * {@link #checkpoint(int, int, long, DecisionSnapshot.Writer)}.
+         */
+        int snapshotSize() {
+
+            if (offHeapStore != null) {
+                return offHeapStore.size();
+            }
+            return localCache != null ? localCache.size() : 0;
+        }
+
+        /**
+         * Writes the unexpired decisions of the off-heap store or, if there is none, of the in-process cache to a
+         * snapshot. The Carbon cache is not written, since it may be shared by the nodes of a cluster. Decisions with a
+         * policy epoch older than the given minimum are invalidated, hence they are not written either.
+         */
+        void checkpoint(final int tenantId, final int cacheIndex, final long minimumEpoch,
+                        final DecisionSnapshot.Writer writer) {
+
+            if (offHeapStore != null) {
+                offHeapStore.forEach(new OffHeapDecisionStore.Visitor() {
+
+                    @Override
+                    public void visit(long keyHigh, long keyLow, long entry, long policyEpoch) {
+
+                        if (policyEpoch >= minimumEpoch) {
+                            writer.add(tenantId, cacheIndex, keyHigh, keyLow, OffHeapDecisionStore.isAllowed(entry),
+                                    OffHeapDecisionStore.getRefreshTime(entry),
+                                    OffHeapDecisionStore.getExpiryTime(entry), policyEpoch);
+                        }
+                    }
+                }, System.currentTimeMillis());
+            } else if (localCache != null) {
+                localCache.forEach(new DecisionCache.Visitor<CachedDecision>() {
+
+                    @Override
+                    public void visit(CacheKey key, CachedDecision value, long expiryTime) {
+
+                        if (value.policyEpoch >= minimumEpoch) {
+                            writer.add(tenantId, cacheIndex, key.getHigh(), key.getLow(), value.allowed,
+                                    value.refreshTime, value.staleTime, value.policyEpoch);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Returns true if the caller is the first one to refresh the cached decision. Decisions read from the off-heap
+         * store are new instances on each read, hence the store is marked as well.
+         */
+        boolean startRefresh(CacheKey cacheKey, CachedDecision cachedDecision, long now) {
+
+            if (!cachedDecision.startRefresh()) {
+                return false;
+            }
+            if (offHeapStore == null) {
+                return true;
+            }
+            long entry = offHeapStore.get(cacheKey, now, cachedDecision.policyEpoch);
+            return entry != 0 && offHeapStore.startRefresh(cacheKey, entry);
+        }
+
+        /**
+         * Returns the Carbon cache, creating it with the maximum expiry time and stale window on the first call. The
+         * cache is looked up from the cache manager on each call, since the manager of a tenant is replaced when the
+         * tenant is reloaded.
+         */
+        Cache getCarbonCache() {
+
+            if (!created) {
+                synchronized (this) {
+                    if (!created) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("New Cache instance created for OPA security handler with the name of " + name);
+                        }
+                        Cache cache = Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME)
+                                .createCacheBuilder(name)
+                                .setExpiry(CacheConfiguration.ExpiryType.ACCESSED, new CacheConfiguration.Duration(
+                                        TimeUnit.MILLISECONDS, maxExpiryTime + staleTime))
+                                .setExpiry(CacheConfiguration.ExpiryType.MODIFIED, new CacheConfiguration.Duration(
+                                        TimeUnit.MILLISECONDS, maxExpiryTime + staleTime))
+                                .setStoreByValue(false).build();
+                        created = true;
+                        return cache;
+                    }
+                }
+            }
+            return Caching.getCacheManager(SecurityHandlerConstants.CACHE_MANAGER_NAME).getCache(name);
+        }
+
+        void close() {
+
+            if (localCache != null) {
+                localCache.close();
             }
-        } else {
-            return null;
         }
     }
 
-    public static Cache getCache(String cacheName) {
+    /**
+     * A cached decision, the time in milliseconds since the epoch at which it is due for a refresh, the time at which
+     * it can no longer be served, even stale, and its policy epoch.
+     */
+    private static final class CachedDecision implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final AtomicIntegerFieldUpdater<CachedDecision> refreshingUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(CachedDecision.class, "refreshing");
+
+        private final boolean allowed;
+        private final long refreshTime;
+        private final long staleTime;
+        private final long policyEpoch;
+        private transient volatile int refreshing;
+
+        CachedDecision(boolean allowed, long refreshTime, long staleTime, long policyEpoch) {
+
+            this.allowed = allowed;
+            this.refreshTime = refreshTime;
+            this.staleTime = staleTime;
+            this.policyEpoch = policyEpoch;
+        }
+
+        /**
+         * Returns true for the first caller only. The decision is replaced by a new instance once it is refreshed.
+         */
+        boolean startRefresh() {
 
-        switch (cacheName) {
-            case (SecurityHandlerConstants.TOKEN_CACHE_NAME):
-                return getTokenCache();
-            case (SecurityHandlerConstants.IP_CACHE_NAME):
-                return getIPCache();
-            case (SecurityHandlerConstants.COOKIE_CACHE_NAME):
-                return getCookieCache();
-            default:
-                return null;
+            return refreshingUpdater.compareAndSet(this, 0, 1);
         }
     }
 }
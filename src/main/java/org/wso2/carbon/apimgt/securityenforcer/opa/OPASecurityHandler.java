@@ -16,14 +16,11 @@
 
 package org.wso2.carbon.apimgt.securityenforcer.opa;
 
-import com.google.gson.Gson;
 import org.apache.axis2.AxisFault;
 import org.apache.axis2.Constants;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpStatus;
-import org.apache.openjpa.persistence.jest.JSON;
 import org.apache.synapse.Mediator;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.SynapseConstants;
@@ -32,12 +29,16 @@ import org.apache.synapse.rest.AbstractHandler;
 import org.apache.synapse.rest.RESTConstants;
 import org.apache.synapse.transport.passthru.PassThroughConstants;
 import org.apache.synapse.transport.passthru.util.RelayUtils;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.wso2.carbon.apimgt.gateway.handlers.Utils;
 import org.wso2.carbon.apimgt.gateway.handlers.security.AuthenticationContext;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKeyDeriver;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PolicyRegistry;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.AuthContextFragmentCache;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.OPAInputWriter;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils;
@@ -106,15 +107,32 @@ public class OPASecurityHandler extends AbstractHandler {
     private boolean authenticate(MessageContext messageContext, String correlationID)
             throws SecurityException {
 
-        JSONObject requestMetaData = extractRequestMetadata(messageContext);
+        PolicyRegistry policyRegistry = ServiceReferenceHolder.getInstance().getPolicyRegistry();
+        if (policyRegistry != null) {
+            String requestPath = (String) ((Axis2MessageContext) messageContext).getAxis2MessageContext()
+                    .getProperty(SecurityHandlerConstants.API_BASEPATH_STRING);
+            String apiContext = SecurityUtils.getContext(requestPath);
+            if (policyRegistry.isPolicyMissing(apiContext)) {
+                // The OPA server would not find a policy either
+                if (log.isDebugEnabled()) {
+                    log.debug("OPA Policy was not defined for the API " + apiContext + " of the request "
+                            + correlationID);
+                }
+                SecurityUtils.verifServerResponse(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
+                        .getDefaultActionIfPolicyNotFound(), correlationID, "Policy Registry");
+                return true;
+            }
+        }
+        RequestMetadata requestMetaData = extractRequestMetadata(messageContext);
         return ServiceReferenceHolder.getInstance().getRequestPublisher()
                 .verifyRequest(requestMetaData, correlationID);
     }
 
     /**
-     * This method will extract the required meta data from the synapse context.
+     * This method will extract the required meta data from the synapse context. Only the cache keys are computed
+     * here. The OPA input is encoded later, when a publisher needs to call the OPA server.
      */
-    JSONObject extractRequestMetadata(MessageContext messageContext) throws SecurityException {
+    RequestMetadata extractRequestMetadata(MessageContext messageContext) throws SecurityException {
 
         String correlationID = SecurityUtils.getAndSetCorrelationID(messageContext);
 
@@ -122,87 +140,93 @@ public class OPASecurityHandler extends AbstractHandler {
                 .getAxis2MessageContext();
         TreeMap<String, String> transportHeadersMap = (TreeMap<String, String>) axis2MessageContext
                 .getProperty(org.apache.axis2.context.MessageContext.TRANSPORT_HEADERS);
-
-        JSONObject transportHeaders = SecurityUtils.getTransportHeaders(transportHeadersMap, correlationID);
+        if (transportHeadersMap == null) {
+            log.error("No Transport headers found for the request " + correlationID);
+        }
 
         String requestOriginIP = SecurityUtils.getIp(axis2MessageContext);
-        int requestOriginPort = SecurityHandlerConstants.DUMMY_REQUEST_PORT;
-        String requestMethod = (String) axis2MessageContext.getProperty(SecurityHandlerConstants.HTTP_METHOD_STRING);
         String requestPath = (String) axis2MessageContext.getProperty(SecurityHandlerConstants.API_BASEPATH_STRING);
         String apiContext = SecurityUtils.getContext(requestPath);
-        String requestHttpVersion = SecurityUtils.getHttpVersion(axis2MessageContext);
-
-        JSONObject opaPayload =
-                createRequestPayloadJson(apiContext, requestMethod, requestPath, requestHttpVersion, requestOriginIP,
-                        requestOriginPort, transportHeaders);
+        // The auth context differs for each API version, hence it is cached against the API name
+        String apiName = (String) messageContext.getProperty(RESTConstants.SYNAPSE_REST_API);
+        if (apiName == null) {
+            apiName = apiContext;
+        }
 
-        String authHeader = transportHeadersMap.get(SecurityHandlerConstants.AUTHORIZATION_HEADER_NAME);
+        String authHeader = null;
+        if (transportHeadersMap != null) {
+            authHeader = transportHeadersMap.get(SecurityHandlerConstants.AUTHORIZATION_HEADER_NAME);
+        }
+        // Authorization header added to the OPA input when it is not available in the transport headers
+        String derivedAuthHeader = null;
         AuthenticationContext authContext = (AuthenticationContext) messageContext.getProperty("__API_AUTH_CONTEXT");
         if (authContext != null) {
             //OAuth or APIKey header may not be included in the transport headers after the Authentication handler.
             //Therefore getApiKey method from authContext is used. This will return Oauth Token or API key and if it's
             //unauthenticated, ip is returned.
             String APIKey = authContext.getApiKey();
-            if (!SecurityHandlerConstants.UNAUTHENTICATED_TIER.equals(authContext.getTier()) && authContext != null) {
+            if (!SecurityHandlerConstants.UNAUTHENTICATED_TIER.equals(authContext.getTier())) {
                 if (APIKey != null && authHeader == null) {
                     authHeader = "Bearer " + APIKey;
-                    transportHeaders.put(SecurityHandlerConstants.AUTHORIZATION_HEADER_NAME, authHeader);
+                    derivedAuthHeader = authHeader;
                 }
             }
-            String authContextSting = new Gson().toJson(authContext);
-            JSONParser parser = new JSONParser();
-            JSONObject authContextJson;
-            try {
-                authContextJson = (JSONObject) parser.parse(authContextSting);
-                //User Info is added only if the request is Authenticated
-                opaPayload.put(SecurityHandlerConstants.JSON_KEY_AUTH_CONTEXT, authContextJson);
-            } catch (ParseException e) {
-                log.error("Error occurred when parsing authContext String", e);
-                opaPayload.put(SecurityHandlerConstants.JSON_KEY_AUTH_CONTEXT, authContextSting);
-            }
-
         }
-        String hashedToken = "";
+
+        CacheKeyDeriver cacheKeyDeriver = ServiceReferenceHolder.getInstance().getCacheKeyDeriver();
+        CacheKey hashedToken = null;
+        // The encoded auth context is only reused for requests authenticated with a token
+        boolean authContextCacheable = false;
         if (authHeader != null) {
             //This hashedToken is used as the key of cookie cache
-            hashedToken = DigestUtils.md5Hex(authHeader);
+            hashedToken = cacheKeyDeriver.derive(authHeader);
+            authContextCacheable = authContext != null
+                    && !SecurityHandlerConstants.UNAUTHENTICATED_TIER.equals(authContext.getTier());
         }
 
         String cookie = SecurityUtils.getCookie(transportHeadersMap);
-        String hashedCookie = "";
+        CacheKey hashedCookie = null;
         if (cookie != null) {
             //This cookieHash is used as the key of cookie cache
-            hashedCookie = DigestUtils.md5Hex(cookie);
+            hashedCookie = cacheKeyDeriver.derive(cookie);
+        }
+
+        CacheKey ipCacheKey = requestOriginIP != null ? cacheKeyDeriver.derive(requestOriginIP) : null;
+
+        CacheKey decisionCacheKey = null;
+        if (ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getCacheConfig()
+                .isDecisionCacheEnabled()) {
+            // The most specific principal identifies the client. The caches are tenant scoped, hence the tenant is
+            // not part of the key.
+            CacheKey principal = hashedToken != null ? hashedToken : hashedCookie != null ? hashedCookie : ipCacheKey;
+            if (principal != null) {
+                decisionCacheKey = cacheKeyDeriver.derive(principal,
+                        getRoute(messageContext, axis2MessageContext, apiName, requestPath));
+            }
         }
 
-        JSONObject requestPayload = new JSONObject();
-        JSONObject inputObject = new JSONObject();
-        inputObject.put(SecurityHandlerConstants.INPUT_KEY_NAME, opaPayload); // request payload is structured to wrap from input key
-        requestPayload.put(SecurityHandlerConstants.SERVER_PAYLOAD_KEY_NAME, inputObject);
-        requestPayload.put(SecurityHandlerConstants.JSON_KEY_API_CONTEXT, apiContext);
-        requestPayload.put(SecurityHandlerConstants.COOKIE_KEY_NAME, hashedCookie);
-        requestPayload.put(SecurityHandlerConstants.IP_KEY_NAME, requestOriginIP);
-        requestPayload.put(SecurityHandlerConstants.TOKEN_KEY_NAME, hashedToken);
-        return requestPayload;
+        long policyEpoch = ServiceReferenceHolder.getInstance().getPolicyEpoch().current();
+        return new RequestMetadata(apiContext, hashedToken, hashedCookie, ipCacheKey, decisionCacheKey, policyEpoch,
+                new RequestPayloadFactory(axis2MessageContext, transportHeadersMap, apiContext, requestPath,
+                        requestOriginIP, derivedAuthHeader, authContext, apiName,
+                        authContextCacheable ? hashedToken : null));
     }
 
     /**
-     * This method will format the extracted details to a given json format
+     * Returns the API, HTTP method and resource template a request is dispatched to. The resource template, such as
+     * /menu/{id}, is used rather than the raw path so that one decision is cached for every call to the resource.
+     * The path is used only if the API resource was not elected.
      */
-    private JSONObject createRequestPayloadJson(String apiContext, String requestMethod, String requestPath,
-                                                String requestHttpVersion,
-                                                String requestOriginIP, int requestOriginPort,
-                                                JSONObject transportHeaders) {
-
-        JSONObject requestBodyJson = new JSONObject();
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_API_CONTEXT, apiContext);
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_SOURCE_IP, requestOriginIP);
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_SOURCE_PORT, requestOriginPort);
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_METHOD, requestMethod);
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_API_BASEPATH, requestPath);
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_HTTP_VERSION, requestHttpVersion);
-        requestBodyJson.put(SecurityHandlerConstants.JSON_KEY_HEADERS, transportHeaders);
-        return requestBodyJson;
+    private String getRoute(MessageContext messageContext,
+                            org.apache.axis2.context.MessageContext axis2MessageContext, String apiName,
+                            String requestPath) {
+
+        String requestMethod = (String) axis2MessageContext.getProperty(SecurityHandlerConstants.HTTP_METHOD_STRING);
+        String resource = (String) messageContext.getProperty(SecurityHandlerConstants.API_ELECTED_RESOURCE);
+        if (resource == null) {
+            resource = requestPath;
+        }
+        return apiName + ' ' + requestMethod + ' ' + resource;
     }
 
     protected void handleAuthFailure(MessageContext messageContext, SecurityException e) {
@@ -306,5 +330,88 @@ public class OPASecurityHandler extends AbstractHandler {
         return logMessage;
     }
 
-}
+    /**
+     * Encodes the OPA input of a request from the values captured from its message context.
+     */
+    private static final class RequestPayloadFactory implements RequestMetadata.PayloadFactory {
+
+        private final org.apache.axis2.context.MessageContext axis2MessageContext;
+        private final TreeMap<String, String> transportHeadersMap;
+        private final String apiContext;
+        private final String requestPath;
+        private final String requestOriginIP;
+        private final String derivedAuthHeader;
+        private final AuthenticationContext authContext;
+        private final String apiName;
+        private final CacheKey authContextCacheKey;
+
+        /**
+         * @param authContextCacheKey token hash the encoded auth context is cached against, or null if the auth
+         *                            context must not be cached
+         */
+        RequestPayloadFactory(org.apache.axis2.context.MessageContext axis2MessageContext,
+                              TreeMap<String, String> transportHeadersMap, String apiContext, String requestPath,
+                              String requestOriginIP, String derivedAuthHeader, AuthenticationContext authContext,
+                              String apiName, CacheKey authContextCacheKey) {
+
+            this.axis2MessageContext = axis2MessageContext;
+            this.transportHeadersMap = transportHeadersMap;
+            this.apiContext = apiContext;
+            this.requestPath = requestPath;
+            this.requestOriginIP = requestOriginIP;
+            this.derivedAuthHeader = derivedAuthHeader;
+            this.authContext = authContext;
+            this.apiName = apiName;
+            this.authContextCacheKey = authContextCacheKey;
+        }
 
+        @Override
+        public byte[] createPayload() {
+
+            int requestOriginPort = SecurityHandlerConstants.DUMMY_REQUEST_PORT;
+            String requestMethod =
+                    (String) axis2MessageContext.getProperty(SecurityHandlerConstants.HTTP_METHOD_STRING);
+            String requestHttpVersion = SecurityUtils.getHttpVersion(axis2MessageContext);
+
+            SecurityHandlerConfig.InputProjectionConfig inputProjectionConfig = ServiceReferenceHolder.getInstance()
+                    .getSecurityHandlerConfig().getInputProjectionConfig();
+            SecurityHandlerConfig.InputSchema inputSchema = inputProjectionConfig.getSchema(apiContext);
+
+            OPAInputWriter inputWriter = OPAInputWriter.start(inputProjectionConfig.getMaxValueLength())
+                    .writeField(SecurityHandlerConstants.JSON_KEY_API_CONTEXT, apiContext)
+                    .writeField(SecurityHandlerConstants.JSON_KEY_SOURCE_IP, requestOriginIP)
+                    .writeField(SecurityHandlerConstants.JSON_KEY_SOURCE_PORT, requestOriginPort)
+                    .writeField(SecurityHandlerConstants.JSON_KEY_METHOD, requestMethod)
+                    .writeField(SecurityHandlerConstants.JSON_KEY_API_BASEPATH, requestPath)
+                    .writeField(SecurityHandlerConstants.JSON_KEY_HTTP_VERSION, requestHttpVersion)
+                    .writeHeaders(SecurityHandlerConstants.JSON_KEY_HEADERS, transportHeadersMap,
+                            inputSchema.getHeaders(),
+                            derivedAuthHeader != null ? SecurityHandlerConstants.AUTHORIZATION_HEADER_NAME : null,
+                            derivedAuthHeader);
+            if (authContext != null) {
+                //User Info is added only if the request is Authenticated
+                writeAuthContext(inputWriter, inputSchema);
+            }
+            return inputWriter.end();
+        }
+
+        private void writeAuthContext(OPAInputWriter inputWriter, SecurityHandlerConfig.InputSchema inputSchema) {
+
+            AuthContextFragmentCache fragmentCache = ServiceReferenceHolder.getInstance()
+                    .getAuthContextFragmentCache();
+            if (fragmentCache == null || authContextCacheKey == null) {
+                inputWriter.writeObject(SecurityHandlerConstants.JSON_KEY_AUTH_CONTEXT, authContext,
+                        inputSchema.getAuthContextFields());
+                return;
+            }
+            byte[] fragment = fragmentCache.get(authContextCacheKey, apiName);
+            if (fragment != null) {
+                inputWriter.writeRawField(SecurityHandlerConstants.JSON_KEY_AUTH_CONTEXT, fragment);
+            } else {
+                inputWriter.writeObject(SecurityHandlerConstants.JSON_KEY_AUTH_CONTEXT, authContext,
+                        inputSchema.getAuthContextFields());
+                fragmentCache.put(authContextCacheKey, apiName, inputWriter.copyLastValue());
+            }
+        }
+    }
+}
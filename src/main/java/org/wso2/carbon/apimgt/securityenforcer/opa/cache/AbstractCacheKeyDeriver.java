@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+/**
+ * Base class of the cache key derivers. The value is UTF-8 encoded into a reusable, thread local buffer before it is
+ * hashed, so that deriving a key does not allocate intermediate byte arrays.
+ */
+public abstract class AbstractCacheKeyDeriver implements CacheKeyDeriver {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // Buffers grown beyond this size by an unusually large value are not kept for reuse by the thread.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+    private static final int SCOPE_LENGTH = 16;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+
+            return new byte[INITIAL_BUFFER_SIZE];
+        }
+    };
+
+    @Override
+    public CacheKey derive(String value) {
+
+        byte[] buffer = getBuffer(value.length() * 3);
+        return derive(buffer, encode(value, buffer, 0));
+    }
+
+    @Override
+    public CacheKey derive(CacheKey scope, String value) {
+
+        byte[] buffer = getBuffer(SCOPE_LENGTH + value.length() * 3);
+        writeLong(scope.getHigh(), buffer, 0);
+        writeLong(scope.getLow(), buffer, 8);
+        return derive(buffer, encode(value, buffer, SCOPE_LENGTH));
+    }
+
+    /**
+     * Returns the key of the first length bytes of the given buffer.
+     */
+    protected abstract CacheKey derive(byte[] bytes, int length);
+
+    /**
+     * Returns the buffer of the current thread, grown to at least the given size. A char never takes more than three
+     * bytes in UTF-8 and surrogate pairs take four bytes for two chars.
+     */
+    private static byte[] getBuffer(int size) {
+
+        byte[] buffer = buffers.get();
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+                buffers.set(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    private static int encode(String value, byte[] buffer, int offset) {
+
+        int count = offset;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced as done by String.getBytes
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return count;
+    }
+
+    static void writeLong(long value, byte[] bytes, int offset) {
+
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long readLong(byte[] bytes, int offset) {
+
+        return (bytes[offset] & 0xffL) << 56 | (bytes[offset + 1] & 0xffL) << 48 | (bytes[offset + 2] & 0xffL) << 40
+                | (bytes[offset + 3] & 0xffL) << 32 | (bytes[offset + 4] & 0xffL) << 24
+                | (bytes[offset + 5] & 0xffL) << 16 | (bytes[offset + 6] & 0xffL) << 8 | (bytes[offset + 7] & 0xffL);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import java.io.Serializable;
+
+/**
+ * 128 bit key of the OPA response caches, derived from a request property such as the token or the cookie by a
+ * {@link CacheKeyDeriver}. The key is held as two longs, which is smaller and cheaper to compare than a hex string.
+ */
+public final class CacheKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long high;
+    private final long low;
+
+    public CacheKey(long high, long low) {
+
+        this.high = high;
+        this.low = low;
+    }
+
+    public long getHigh() {
+
+        return high;
+    }
+
+    public long getLow() {
+
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+
+        // The key is a hash already, so its low bits are well distributed
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /**
+     * Returns the key as 32 lower case hex digits, in the byte order of the hash.
+     */
+    @Override
+    public String toString() {
+
+        char[] chars = new char[32];
+        for (int i = 0; i < 16; i++) {
+            chars[i] = HEX_DIGITS[(int) (high >>> (60 - (i << 2))) & 0xf];
+            chars[i + 16] = HEX_DIGITS[(int) (low >>> (60 - (i << 2))) & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+/**
+ * Derives the cache keys of request properties such as the Authorization header, the cookie and the client IP.
+ * Implementations must be thread safe.
+ */
+public interface CacheKeyDeriver {
+
+    /**
+     * Returns the 128 bit key of the given value.
+     *
+     * @param value request property. Must not be null.
+     */
+    CacheKey derive(String value);
+
+    /**
+     * Returns the 128 bit key of the given value within a scope, such as a route of an API called by a principal.
+     * Keys derived for the same value within different scopes do not match.
+     *
+     * @param scope key of the scope. Must not be null.
+     * @param value value within the scope. Must not be null.
+     */
+    CacheKey derive(CacheKey scope, String value);
+}
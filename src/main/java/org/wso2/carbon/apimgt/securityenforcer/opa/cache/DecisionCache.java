@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process cache of OPA decisions, used in front of the Carbon caches.
+ * Reads never lock. They look up a ConcurrentHashMap and record the access in a {@link FrequencySketch}.
+ * Inserting a new key takes a lock held only by this cache. Once the cache is full, a few entries are sampled and the
+ * least frequently used one is replaced, provided that the new key was requested at least as often (TinyLFU
+ * admission). Entries expire a fixed time after they are written, unless an expiry time is given for the entry, and
+ * are removed by a timing wheel, which a background thread of the owner of the cache advances once per tick.
+ *
+ * @param <V> type of the cached decisions
+ */
+public class DecisionCache<V> {
+
+    private static final Log log = LogFactory.getLog(DecisionCache.class);
+    private static final int SAMPLE_SIZE = 8;
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK_MILLIS = 1000;
+
+    private final ConcurrentHashMap<CacheKey, Node<V>> nodes;
+    private final FrequencySketch sketch;
+    private final long expiryTimeMillis;
+    private final ScheduledFuture<?> sweepTask;
+
+    // The fields below are guarded by the eviction lock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Node<V>[] slots;
+    private final int[] freeSlots;
+    private int freeSlotCount;
+    private int hand;
+    private final ArrayDeque<Node<V>>[] wheel;
+    private long sweptTick;
+
+    /**
+     * @param maxEntries       maximum number of decisions kept in the cache
+     * @param expiryTimeMillis time after which a decision expires once it is written
+     * @param sweeper          executor which removes the expired entries. It is shared by the caches and is shut
+     *                         down by its owner.
+     */
+    @SuppressWarnings("unchecked")
+    public DecisionCache(int maxEntries, long expiryTimeMillis, ScheduledExecutorService sweeper) {
+
+        this.nodes = new ConcurrentHashMap<>(Math.min(maxEntries, 1024) * 4 / 3 + 1);
+        this.sketch = new FrequencySketch(maxEntries);
+        this.expiryTimeMillis = expiryTimeMillis;
+        this.slots = new Node[maxEntries];
+        this.freeSlots = new int[maxEntries];
+        for (int i = 0; i < maxEntries; i++) {
+            freeSlots[i] = maxEntries - 1 - i;
+        }
+        this.freeSlotCount = maxEntries;
+        this.wheel = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.sweptTick = System.currentTimeMillis() / TICK_MILLIS;
+        this.sweepTask = sweeper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    log.error("Error while removing the expired entries of the decision cache", e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the cached decision, or null if there is no decision or it has expired.
+     */
+    public V get(CacheKey key) {
+
+        sketch.increment(key.hashCode());
+        Node<V> node = nodes.get(key);
+        if (node == null || node.expiryTime <= System.currentTimeMillis()) {
+            return null;
+        }
+        return node.value;
+    }
+
+    public void put(CacheKey key, V value) {
+
+        put(key, value, System.currentTimeMillis() + expiryTimeMillis);
+    }
+
+    /**
+     * Caches a decision until the given time.
+     *
+     * @param expiryTime time in milliseconds since the epoch at which the decision expires
+     */
+    public void put(CacheKey key, V value, long expiryTime) {
+
+        Node<V> node = nodes.get(key);
+        if (node != null) {
+            // The timing wheel moves the node to the bucket of its new expiry time when the old one is swept
+            node.update(value, expiryTime);
+            return;
+        }
+        evictionLock.lock();
+        try {
+            node = nodes.get(key);
+            if (node != null) {
+                node.update(value, expiryTime);
+                return;
+            }
+            int slot;
+            if (freeSlotCount > 0) {
+                slot = freeSlots[--freeSlotCount];
+            } else {
+                Node<V> victim = selectVictim();
+                if (victim.expiryTime > System.currentTimeMillis()
+                        && sketch.frequency(key.hashCode()) < sketch.frequency(victim.key.hashCode())) {
+                    // The new key is less popular than every sampled entry, hence it is not admitted
+                    return;
+                }
+                removeLocked(victim);
+                slot = freeSlots[--freeSlotCount];
+            }
+            node = new Node<>(key, value, expiryTime, slot);
+            slots[slot] = node;
+            nodes.put(key, node);
+            schedule(node);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public void remove(CacheKey key) {
+
+        evictionLock.lock();
+        try {
+            Node<V> node = nodes.get(key);
+            if (node != null) {
+                removeLocked(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public int size() {
+
+        return nodes.size();
+    }
+
+    /**
+     * Visits the unexpired entries. Entries written while visiting may or may not be visited.
+     */
+    public void forEach(Visitor<V> visitor) {
+
+        long now = System.currentTimeMillis();
+        for (Node<V> node : nodes.values()) {
+            long expiryTime = node.expiryTime;
+            if (expiryTime > now) {
+                visitor.visit(node.key, node.value, expiryTime);
+            }
+        }
+    }
+
+    /**
+     * Stops removing the expired entries in the background. The cache must not be used afterwards.
+     */
+    public void close() {
+
+        sweepTask.cancel(false);
+    }
+
+    /**
+     * Returns the expired or, if none of them has expired, the least frequently used entry among the next few slots.
+     */
+    private Node<V> selectVictim() {
+
+        long now = System.currentTimeMillis();
+        Node<V> victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            Node<V> candidate = slots[hand];
+            hand = hand + 1 == slots.length ? 0 : hand + 1;
+            if (candidate.expiryTime <= now) {
+                return candidate;
+            }
+            int frequency = sketch.frequency(candidate.key.hashCode());
+            if (frequency < victimFrequency) {
+                victim = candidate;
+                victimFrequency = frequency;
+            }
+        }
+        return victim;
+    }
+
+    private void removeLocked(Node<V> node) {
+
+        nodes.remove(node.key);
+        slots[node.slot] = null;
+        freeSlots[freeSlotCount++] = node.slot;
+        node.removed = true;
+    }
+
+    private void schedule(Node<V> node) {
+
+        long tick = Math.max(node.expiryTime / TICK_MILLIS, sweptTick + 1);
+        wheel[(int) (tick & (WHEEL_SIZE - 1))].add(node);
+    }
+
+    /**
+     * Removes the entries in the buckets of the ticks passed since the last sweep. Entries which were updated, or
+     * which expire after more than a full turn of the wheel, are moved to the bucket of their current expiry time.
+     */
+    private void sweep() {
+
+        long now = System.currentTimeMillis();
+        long currentTick = now / TICK_MILLIS;
+        int removed = 0;
+        evictionLock.lock();
+        try {
+            long firstTick = Math.max(sweptTick + 1, currentTick - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                ArrayDeque<Node<V>> bucket = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+                int count = bucket.size();
+                sweptTick = tick;
+                for (int i = 0; i < count; i++) {
+                    Node<V> node = bucket.poll();
+                    if (node.removed) {
+                        continue;
+                    }
+                    if (node.expiryTime <= now) {
+                        removeLocked(node);
+                        removed++;
+                    } else {
+                        schedule(node);
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        if (removed > 0 && log.isDebugEnabled()) {
+            log.debug(removed + " expired entries removed from the decision cache");
+        }
+    }
+
+    /**
+     * Receives the entries of the cache.
+     *
+     * @param <V> type of the cached decisions
+     */
+    public interface Visitor<V> {
+
+        void visit(CacheKey key, V value, long expiryTime);
+    }
+
+    private static final class Node<V> {
+
+        private final CacheKey key;
+        private final int slot;
+        private volatile V value;
+        private volatile long expiryTime;
+        // Guarded by the eviction lock
+        private boolean removed;
+
+        Node(CacheKey key, V value, long expiryTime, int slot) {
+
+            this.key = key;
+            this.value = value;
+            this.expiryTime = expiryTime;
+            this.slot = slot;
+        }
+
+        void update(V value, long expiryTime) {
+
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of cached OPA decisions, written to a memory-mapped file so that a restarted gateway starts with warm
+ * caches. A snapshot is written to a temporary file, which replaces the previous snapshot once it is complete, hence a
+ * crash while writing never leaves a partial snapshot behind.
+ * <p>
+ * The file starts with a header holding the number of entries and a fingerprint of the cache key derivation. The
+ * fingerprint is a key derived from a fixed value, so a snapshot written with another key derivation or secret is not
+ * loaded, since its keys would never match. The header is followed by the policy epochs of the node, the global epoch
+ * and the epoch of each invalidated API context, so that the decisions of invalidated policies stay invalidated after
+ * a restart. Each entry is a fixed size record holding the tenant, the cache, the key, the decision, its refresh and
+ * expiry times and its policy epoch.
+ */
+public final class DecisionSnapshot {
+
+    private static final int MAGIC = 0x4f504143;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 48;
+    private static final int MAX_EPOCHS_SIZE = 1 << 24;
+    private static final int MAX_ENTRIES = (Integer.MAX_VALUE - HEADER_SIZE - MAX_EPOCHS_SIZE) / ENTRY_SIZE;
+
+    private DecisionSnapshot() {
+
+    }
+
+    /**
+     * Reads the policy epochs and the unexpired entries of a snapshot.
+     *
+     * @param file        the snapshot file
+     * @param fingerprint fingerprint of the current cache key derivation
+     * @param now         current time in milliseconds since the epoch
+     * @return the contents of the snapshot, which are empty if the file does not exist or was written with another
+     * key derivation
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static Contents read(File file, CacheKey fingerprint, long now) throws IOException {
+
+        List<Entry> entries = new ArrayList<>();
+        if (!file.isFile()) {
+            return new Contents(0, Collections.<String, Long>emptyMap(), entries);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size of the OPA decision snapshot " + file + ": " + length);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported OPA decision snapshot " + file);
+            }
+            int count = buffer.getInt(8);
+            int epochsSize = buffer.getInt(12);
+            if (count < 0 || epochsSize < 8 || epochsSize > MAX_EPOCHS_SIZE
+                    || HEADER_SIZE + epochsSize + (long) count * ENTRY_SIZE > length) {
+                throw new IOException("Truncated OPA decision snapshot " + file);
+            }
+            if (buffer.getLong(16) != fingerprint.getHigh() || buffer.getLong(24) != fingerprint.getLow()) {
+                return new Contents(0, Collections.<String, Long>emptyMap(), entries);
+            }
+            long globalEpoch = buffer.getLong(HEADER_SIZE);
+            Map<String, Long> contextEpochs = new HashMap<>();
+            int offset = HEADER_SIZE + 8;
+            int epochsEnd = HEADER_SIZE + epochsSize;
+            while (offset < epochsEnd) {
+                int contextLength = buffer.getShort(offset) & 0xffff;
+                if (offset + 2 + contextLength + 8 > epochsEnd) {
+                    throw new IOException("Invalid policy epochs in the OPA decision snapshot " + file);
+                }
+                byte[] context = new byte[contextLength];
+                buffer.position(offset + 2);
+                buffer.get(context);
+                contextEpochs.put(new String(context, StandardCharsets.UTF_8),
+                        buffer.getLong(offset + 2 + contextLength));
+                offset += 2 + contextLength + 8;
+            }
+            for (int i = 0; i < count; i++) {
+                offset = epochsEnd + i * ENTRY_SIZE;
+                long expiryTime = buffer.getLong(offset + 32);
+                if (expiryTime > now) {
+                    entries.add(new Entry(buffer.getInt(offset), buffer.get(offset + 4), buffer.get(offset + 5) != 0,
+                            new CacheKey(buffer.getLong(offset + 8), buffer.getLong(offset + 16)),
+                            buffer.getLong(offset + 24), expiryTime, buffer.getLong(offset + 40)));
+                }
+            }
+            return new Contents(globalEpoch, contextEpochs, entries);
+        }
+    }
+
+    /**
+     * Creates a writer of a new snapshot, which replaces the given file once it is committed.
+     *
+     * @param file          the snapshot file
+     * @param fingerprint   fingerprint of the current cache key derivation
+     * @param globalEpoch   policy epoch of the last invalidation of every API
+     * @param contextEpochs policy epochs of the API contexts invalidated since then
+     * @param capacity      maximum number of entries of the snapshot
+     * @throws IOException if the temporary file cannot be created or the policy epochs do not fit in the snapshot
+     */
+    public static Writer create(File file, CacheKey fingerprint, long globalEpoch, Map<String, Long> contextEpochs,
+                                int capacity) throws IOException {
+
+        List<byte[]> contexts = new ArrayList<>(contextEpochs.size());
+        List<Long> epochs = new ArrayList<>(contextEpochs.size());
+        int epochsSize = 8;
+        for (Map.Entry<String, Long> contextEpoch : contextEpochs.entrySet()) {
+            byte[] context = contextEpoch.getKey().getBytes(StandardCharsets.UTF_8);
+            if (context.length > 0xffff) {
+                throw new IOException("API context is too long for the OPA decision snapshot: "
+                        + contextEpoch.getKey());
+            }
+            contexts.add(context);
+            epochs.add(contextEpoch.getValue());
+            epochsSize += 2 + context.length + 8;
+        }
+        if (epochsSize > MAX_EPOCHS_SIZE) {
+            throw new IOException("Too many invalidated API contexts for the OPA decision snapshot");
+        }
+        Writer writer = new Writer(file, fingerprint, epochsSize, Math.min(Math.max(capacity, 0), MAX_ENTRIES));
+        writer.buffer.putLong(HEADER_SIZE, globalEpoch);
+        int offset = HEADER_SIZE + 8;
+        for (int i = 0; i < contexts.size(); i++) {
+            byte[] context = contexts.get(i);
+            writer.buffer.putShort(offset, (short) context.length);
+            writer.buffer.position(offset + 2);
+            writer.buffer.put(context);
+            writer.buffer.putLong(offset + 2 + context.length, epochs.get(i));
+            offset += 2 + context.length + 8;
+        }
+        return writer;
+    }
+
+    /**
+     * The policy epochs and the unexpired entries read from a snapshot.
+     */
+    public static final class Contents {
+
+        private final long globalEpoch;
+        private final Map<String, Long> contextEpochs;
+        private final List<Entry> entries;
+
+        Contents(long globalEpoch, Map<String, Long> contextEpochs, List<Entry> entries) {
+
+            this.globalEpoch = globalEpoch;
+            this.contextEpochs = contextEpochs;
+            this.entries = entries;
+        }
+
+        public long getGlobalEpoch() {
+
+            return globalEpoch;
+        }
+
+        public Map<String, Long> getContextEpochs() {
+
+            return contextEpochs;
+        }
+
+        public List<Entry> getEntries() {
+
+            return entries;
+        }
+    }
+
+    /**
+     * An entry read from a snapshot.
+     */
+    public static final class Entry {
+
+        private final int tenantId;
+        private final int cacheIndex;
+        private final boolean allowed;
+        private final CacheKey key;
+        private final long refreshTime;
+        private final long expiryTime;
+        private final long policyEpoch;
+
+        Entry(int tenantId, int cacheIndex, boolean allowed, CacheKey key, long refreshTime, long expiryTime,
+              long policyEpoch) {
+
+            this.tenantId = tenantId;
+            this.cacheIndex = cacheIndex;
+            this.allowed = allowed;
+            this.key = key;
+            this.refreshTime = refreshTime;
+            this.expiryTime = expiryTime;
+            this.policyEpoch = policyEpoch;
+        }
+
+        public int getTenantId() {
+
+            return tenantId;
+        }
+
+        public int getCacheIndex() {
+
+            return cacheIndex;
+        }
+
+        public boolean isAllowed() {
+
+            return allowed;
+        }
+
+        public CacheKey getKey() {
+
+            return key;
+        }
+
+        public long getRefreshTime() {
+
+            return refreshTime;
+        }
+
+        public long getExpiryTime() {
+
+            return expiryTime;
+        }
+
+        public long getPolicyEpoch() {
+
+            return policyEpoch;
+        }
+    }
+
+    /**
+     * Writes the entries of a snapshot into a memory-mapped temporary file. The snapshot replaces the previous one on
+     * {@link #commit()}. Closing a writer which was not committed discards the temporary file.
+     */
+    public static final class Writer implements Closeable {
+
+        private final File file;
+        private final File temporaryFile;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private final int entriesOffset;
+        private final int capacity;
+        private int count;
+        private boolean committed;
+
+        private Writer(File file, CacheKey fingerprint, int epochsSize, int capacity) throws IOException {
+
+            this.file = file;
+            this.temporaryFile = new File(file.getPath() + ".tmp");
+            this.entriesOffset = HEADER_SIZE + epochsSize;
+            this.capacity = capacity;
+            this.randomAccessFile = new RandomAccessFile(temporaryFile, "rw");
+            try {
+                randomAccessFile.setLength(0);
+                this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        entriesOffset + (long) capacity * ENTRY_SIZE);
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(12, epochsSize);
+            buffer.putLong(16, fingerprint.getHigh());
+            buffer.putLong(24, fingerprint.getLow());
+        }
+
+        /**
+         * Adds an entry to the snapshot.
+         *
+         * @return false if the snapshot is full
+         */
+        public boolean add(int tenantId, int cacheIndex, long keyHigh, long keyLow, boolean allowed, long refreshTime,
+                           long expiryTime, long policyEpoch) {
+
+            if (count == capacity) {
+                return false;
+            }
+            int offset = entriesOffset + count * ENTRY_SIZE;
+            buffer.putInt(offset, tenantId);
+            buffer.put(offset + 4, (byte) cacheIndex);
+            buffer.put(offset + 5, (byte) (allowed ? 1 : 0));
+            buffer.putLong(offset + 8, keyHigh);
+            buffer.putLong(offset + 16, keyLow);
+            buffer.putLong(offset + 24, refreshTime);
+            buffer.putLong(offset + 32, expiryTime);
+            buffer.putLong(offset + 40, policyEpoch);
+            count++;
+            return true;
+        }
+
+        public int getCount() {
+
+            return count;
+        }
+
+        /**
+         * Flushes the snapshot to the disk and replaces the previous snapshot with it.
+         */
+        public void commit() throws IOException {
+
+            buffer.putInt(8, count);
+            buffer.force();
+            randomAccessFile.close();
+            try {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (!committed) {
+                randomAccessFile.close();
+                Files.deleteIfExists(temporaryFile.toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+/**
+ * Count-min sketch with 4 bit counters, estimating how often a key was requested recently. Counters are halved once
+ * the number of recorded accesses reaches ten times the cache capacity, so that old popularity fades out.
+ * Updates are not synchronized. A lost update only makes an estimate slightly lower, which is acceptable for an
+ * admission policy.
+ */
+final class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L};
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxEntries) {
+
+        int size = Integer.highestOneBit(Math.max(maxEntries, 16) - 1) << 1;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * Math.max(maxEntries, 16);
+    }
+
+    /**
+     * Records an access to the key with the given hash.
+     */
+    void increment(int hash) {
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), counterOf(hash, i));
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent accesses to the key with the given hash, at most 15.
+     */
+    int frequency(int hash) {
+
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int offset = counterOf(hash, i) << 2;
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        long word = table[index];
+        if ((word & mask) != mask) {
+            table[index] = word + (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    private int indexOf(int hash, int i) {
+
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return (int) (h >>> 32) & tableMask;
+    }
+
+    private static int counterOf(int hash, int i) {
+
+        // Each long holds 16 counters, a different nibble of the hash selects the counter for each row
+        return (hash >>> (i << 3)) & 0xf;
+    }
+
+    private void reset() {
+
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = 0;
+    }
+}
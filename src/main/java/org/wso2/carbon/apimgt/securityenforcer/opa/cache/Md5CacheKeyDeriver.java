@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Derives the cache keys with MD5. The digest and its output buffer are reused by each thread. The string form of the
+ * keys is the same as the MD5 hex digest the handler used as the cache key before.
+ */
+public class Md5CacheKeyDeriver extends AbstractCacheKeyDeriver {
+
+    public static final String NAME = "MD5";
+    private static final int DIGEST_LENGTH = 16;
+
+    private static final ThreadLocal<Digest> digests = new ThreadLocal<Digest>() {
+
+        @Override
+        protected Digest initialValue() {
+
+            try {
+                return new Digest(MessageDigest.getInstance(NAME));
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support MD5
+                throw new IllegalStateException("MD5 message digest is not available", e);
+            }
+        }
+    };
+
+    @Override
+    protected CacheKey derive(byte[] bytes, int length) {
+
+        Digest digest = digests.get();
+        digest.messageDigest.update(bytes, 0, length);
+        try {
+            digest.messageDigest.digest(digest.output, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Error while computing the MD5 digest of a cache key", e);
+        }
+        return new CacheKey(readLong(digest.output, 0), readLong(digest.output, 8));
+    }
+
+    private static final class Digest {
+
+        private final MessageDigest messageDigest;
+        private final byte[] output = new byte[DIGEST_LENGTH];
+
+        Digest(MessageDigest messageDigest) {
+
+            this.messageDigest = messageDigest;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Store of OPA decisions kept outside of the Java heap, so that millions of cached tokens and IPs do not add to the
+ * garbage collection pauses of the gateway. The store is an open addressing table over direct byte buffers. Each slot
+ * holds the 128 bit key, a long packing the decision, its refresh and expiry times in seconds and whether it is being
+ * refreshed, and the policy epoch of the decision. A key is looked up in a window of {@value #PROBE_LENGTH} slots
+ * starting from its home slot. When the window is full, the entry expiring first is replaced.
+ * <p>
+ * The table is split into segments, each with its own buffer and lock, which keeps the locks uncontended. Entries are
+ * returned as packed longs and decoded with the static methods of this class, so that reads do not allocate.
+ */
+public class OffHeapDecisionStore {
+
+    private static final int SLOT_SIZE = 32;
+    private static final int PROBE_LENGTH = 8;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_SEGMENT_SLOTS = 256;
+
+    private static final long ALLOWED = 1L;
+    private static final long REFRESHING = 1L << 1;
+    private static final int REFRESH_OFFSET_SHIFT = 2;
+    private static final long MAX_REFRESH_OFFSET = (1L << 30) - 1;
+    private static final int EXPIRY_SHIFT = 32;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final int segmentSlotMask;
+
+    /**
+     * Allocates the direct buffers of the store.
+     *
+     * @param maxEntries number of entries the store is sized for
+     */
+    public OffHeapDecisionStore(int maxEntries) {
+
+        int slotCount = Integer.highestOneBit(Math.min(Math.max(maxEntries, MIN_SEGMENT_SLOTS), 1 << 30) - 1) << 1;
+        int segmentCount = Math.min(MAX_SEGMENTS, slotCount / MIN_SEGMENT_SLOTS);
+        int segmentSlots = slotCount / segmentCount;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentSlots);
+        }
+        this.segmentMask = segmentCount - 1;
+        this.segmentSlotMask = segmentSlots - 1;
+    }
+
+    /**
+     * Returns the packed entry of the key, or 0 if there is no entry, it has expired or its policy epoch is older than
+     * the given one.
+     *
+     * @param now          current time in milliseconds since the epoch
+     * @param minimumEpoch oldest policy epoch of the entries which can be used
+     */
+    public long get(CacheKey key, long now, long minimumEpoch) {
+
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            int slot = segment.find(key, homeSlot(key));
+            if (slot < 0) {
+                return 0;
+            }
+            long entry = segment.entry(slot);
+            return getExpiryTime(entry) > now && segment.epoch(slot) >= minimumEpoch ? entry : 0;
+        }
+    }
+
+    /**
+     * Stores a decision, replacing any entry of the key.
+     *
+     * @param refreshTime time in milliseconds since the epoch at which the decision is due for a refresh
+     * @param expiryTime  time in milliseconds since the epoch after which the decision is not used
+     * @param policyEpoch policy epoch of the decision
+     */
+    public void put(CacheKey key, boolean allowed, long refreshTime, long expiryTime, long policyEpoch) {
+
+        // Expiry times are rounded up to the second, so that a short lived decision is not expired when written
+        long expirySeconds = (expiryTime + 999) / 1000;
+        long refreshOffset = Math.min(Math.max(expirySeconds - refreshTime / 1000, 0), MAX_REFRESH_OFFSET);
+        long entry = expirySeconds << EXPIRY_SHIFT | refreshOffset << REFRESH_OFFSET_SHIFT | (allowed ? ALLOWED : 0);
+        Segment segment = segmentOf(key);
+        int home = homeSlot(key);
+        synchronized (segment) {
+            int slot = segment.find(key, home);
+            if (slot < 0) {
+                slot = segment.selectSlot(home, System.currentTimeMillis() / 1000);
+            }
+            segment.write(slot, key, entry, policyEpoch);
+        }
+    }
+
+    /**
+     * Marks the entry as being refreshed, unless it was marked already or it has been replaced since it was read.
+     *
+     * @param entry the entry returned by {@link #get(CacheKey, long, long)}
+     * @return true if the caller has to refresh the entry
+     */
+    public boolean startRefresh(CacheKey key, long entry) {
+
+        if ((entry & REFRESHING) != 0) {
+            return false;
+        }
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            int slot = segment.find(key, homeSlot(key));
+            if (slot < 0 || segment.entry(slot) != entry) {
+                return false;
+            }
+            segment.setEntry(slot, entry | REFRESHING);
+            return true;
+        }
+    }
+
+    public void remove(CacheKey key) {
+
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            int slot = segment.find(key, homeSlot(key));
+            if (slot >= 0) {
+                segment.clear(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the store, including the expired entries which were not replaced yet.
+     */
+    public int size() {
+
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Visits the unexpired entries. Each segment is locked while its entries are visited.
+     *
+     * @param now current time in milliseconds since the epoch
+     */
+    public void forEach(Visitor visitor, long now) {
+
+        long nowSeconds = now / 1000;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot <= segment.slotMask; slot++) {
+                    long entry = segment.entry(slot);
+                    if (getExpirySeconds(entry) > nowSeconds) {
+                        int offset = slot * SLOT_SIZE;
+                        visitor.visit(segment.slots.getLong(offset), segment.slots.getLong(offset + 8), entry,
+                                segment.epoch(slot));
+                    }
+                }
+            }
+        }
+    }
+
+    public static boolean isAllowed(long entry) {
+
+        return (entry & ALLOWED) != 0;
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch at which the decision of the entry is due for a refresh.
+     */
+    public static long getRefreshTime(long entry) {
+
+        return (getExpirySeconds(entry) - (entry >>> REFRESH_OFFSET_SHIFT & MAX_REFRESH_OFFSET)) * 1000;
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch after which the decision of the entry is not used.
+     */
+    public static long getExpiryTime(long entry) {
+
+        return getExpirySeconds(entry) * 1000;
+    }
+
+    private static long getExpirySeconds(long entry) {
+
+        return entry >>> EXPIRY_SHIFT;
+    }
+
+    private Segment segmentOf(CacheKey key) {
+
+        return segments[(int) key.getLow() & segmentMask];
+    }
+
+    private int homeSlot(CacheKey key) {
+
+        return (int) key.getHigh() & segmentSlotMask;
+    }
+
+    /**
+     * Receives the entries of the store as the two longs of the key, the packed entry and its policy epoch.
+     */
+    public interface Visitor {
+
+        void visit(long keyHigh, long keyLow, long entry, long policyEpoch);
+    }
+
+    /**
+     * A part of the table with its own buffer. The methods must be called while holding the lock of the segment.
+     */
+    private static final class Segment {
+
+        private final ByteBuffer slots;
+        private final int slotMask;
+        private int size;
+
+        Segment(int slotCount) {
+
+            this.slots = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+            this.slotMask = slotCount - 1;
+        }
+
+        /**
+         * Returns the slot of the key in the probe window starting from the home slot, or -1 if it is not found.
+         * Removed entries leave empty slots behind, hence the whole window is searched.
+         */
+        int find(CacheKey key, int home) {
+
+            for (int i = 0; i < PROBE_LENGTH; i++) {
+                int slot = (home + i) & slotMask;
+                int offset = slot * SLOT_SIZE;
+                if (slots.getLong(offset + 16) != 0 && slots.getLong(offset) == key.getHigh()
+                        && slots.getLong(offset + 8) == key.getLow()) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns an empty or expired slot in the probe window or, if there is none, the slot expiring first.
+         */
+        int selectSlot(int home, long nowSeconds) {
+
+            int victim = home;
+            long victimExpiry = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_LENGTH; i++) {
+                int slot = (home + i) & slotMask;
+                long expirySeconds = getExpirySeconds(entry(slot));
+                if (expirySeconds <= nowSeconds) {
+                    return slot;
+                }
+                if (expirySeconds < victimExpiry) {
+                    victim = slot;
+                    victimExpiry = expirySeconds;
+                }
+            }
+            return victim;
+        }
+
+        long entry(int slot) {
+
+            return slots.getLong(slot * SLOT_SIZE + 16);
+        }
+
+        long epoch(int slot) {
+
+            return slots.getLong(slot * SLOT_SIZE + 24);
+        }
+
+        void setEntry(int slot, long entry) {
+
+            slots.putLong(slot * SLOT_SIZE + 16, entry);
+        }
+
+        void write(int slot, CacheKey key, long entry, long policyEpoch) {
+
+            int offset = slot * SLOT_SIZE;
+            if (slots.getLong(offset + 16) == 0) {
+                size++;
+            }
+            slots.putLong(offset, key.getHigh());
+            slots.putLong(offset + 8, key.getLow());
+            slots.putLong(offset + 16, entry);
+            slots.putLong(offset + 24, policyEpoch);
+        }
+
+        void clear(int slot) {
+
+            slots.putLong(slot * SLOT_SIZE + 16, 0);
+            size--;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Invalidates cached decisions in bulk when policies change, without iterating the caches. Every cached decision is
+ * tagged with its policy epoch, which is the time the request it was made for was received. Invalidating moves the
+ * epoch of every API, or of a single API context, to the current time, and a cached decision is only used while its
+ * epoch is not older than the epoch of the API it is used for. Decisions made by the OPA server before an invalidation
+ * are therefore never cached afterwards, even if the response arrives later. Times are used instead of counters so
+ * that epochs written by other nodes to a distributed cache are comparable.
+ */
+public class PolicyEpoch implements PolicyEpochMBean {
+
+    private static final Log log = LogFactory.getLog(PolicyEpoch.class);
+
+    private volatile long globalEpoch;
+    private final ConcurrentHashMap<String, Long> contextEpochs = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the epoch of the decisions made from now on.
+     */
+    public long current() {
+
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the oldest epoch of the decisions which can be used for the requests to an API.
+     *
+     * @param apiContext context of the API, or null to only consider the invalidations of every API
+     */
+    public long getMinimumEpoch(String apiContext) {
+
+        long epoch = globalEpoch;
+        if (apiContext != null && !contextEpochs.isEmpty()) {
+            Long contextEpoch = contextEpochs.get(apiContext);
+            if (contextEpoch != null && contextEpoch > epoch) {
+                return contextEpoch;
+            }
+        }
+        return epoch;
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+
+        globalEpoch = nextEpoch(globalEpoch);
+        // The global epoch covers every context now
+        contextEpochs.clear();
+        log.info("Cached OPA decisions of every API invalidated");
+    }
+
+    @Override
+    public synchronized void invalidateContext(String apiContext) {
+
+        Long contextEpoch = contextEpochs.get(apiContext);
+        contextEpochs.put(apiContext, nextEpoch(Math.max(globalEpoch, contextEpoch != null ? contextEpoch : 0)));
+        log.info("Cached OPA decisions of the API context " + apiContext + " invalidated");
+    }
+
+    @Override
+    public long getGlobalEpoch() {
+
+        return globalEpoch;
+    }
+
+    /**
+     * Returns a copy of the epochs of the API contexts invalidated since every API was last invalidated.
+     */
+    public synchronized Map<String, Long> getContextEpochs() {
+
+        return new HashMap<>(contextEpochs);
+    }
+
+    /**
+     * Restores the epochs persisted before a restart, keeping the later epoch of an API context if it was invalidated
+     * again since then.
+     *
+     * @param epoch     epoch of the last invalidation of every API
+     * @param apiEpochs epochs of the API contexts invalidated since then
+     */
+    public synchronized void restore(long epoch, Map<String, Long> apiEpochs) {
+
+        if (epoch > globalEpoch) {
+            globalEpoch = epoch;
+        }
+        for (Map.Entry<String, Long> apiEpoch : apiEpochs.entrySet()) {
+            Long contextEpoch = contextEpochs.get(apiEpoch.getKey());
+            if (apiEpoch.getValue() > globalEpoch && (contextEpoch == null || apiEpoch.getValue() > contextEpoch)) {
+                contextEpochs.put(apiEpoch.getKey(), apiEpoch.getValue());
+            }
+        }
+        // Drop the contexts covered by a later global epoch
+        for (Map.Entry<String, Long> contextEpoch : contextEpochs.entrySet()) {
+            if (contextEpoch.getValue() <= globalEpoch) {
+                contextEpochs.remove(contextEpoch.getKey(), contextEpoch.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns an epoch later than both the given epoch and the epochs of the requests received so far, including the
+     * ones received in the current millisecond.
+     */
+    private long nextEpoch(long epoch) {
+
+        return Math.max(epoch, current()) + 1;
+    }
+}
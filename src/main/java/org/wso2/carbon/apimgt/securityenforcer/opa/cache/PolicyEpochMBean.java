@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+/**
+ * JMX interface of {@link PolicyEpoch}, used to invalidate the cached decisions once new policies are pushed to the
+ * OPA server.
+ */
+public interface PolicyEpochMBean {
+
+    /**
+     * Invalidates the decisions cached for every API.
+     */
+    void invalidateAll();
+
+    /**
+     * Invalidates the decisions cached for the requests to an API.
+     *
+     * @param apiContext context of the API, as used in the path of its OPA policy
+     */
+    void invalidateContext(String apiContext);
+
+    /**
+     * Returns the time in milliseconds since the epoch of the last invalidation of every API.
+     */
+    long getGlobalEpoch();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import java.security.SecureRandom;
+
+/**
+ * Derives the cache keys with the 128 bit output variant of SipHash-2-4. SipHash is a keyed hash function, so unlike
+ * a plain non cryptographic hash, clients cannot craft tokens that collide in the caches without knowing the secret.
+ * It is considerably cheaper than MD5 for the short values the handler hashes.
+ */
+public class SipHashCacheKeyDeriver extends AbstractCacheKeyDeriver {
+
+    public static final String NAME = "SipHash";
+    private static final int SECRET_LENGTH = 16;
+
+    private final long k0;
+    private final long k1;
+
+    /**
+     * Creates a deriver with a random secret. Keys derived by different instances, including the instances of other
+     * gateway nodes, do not match.
+     */
+    public SipHashCacheKeyDeriver() {
+
+        this(randomSecret());
+    }
+
+    /**
+     * @param secret 16 byte secret of the hash function
+     */
+    public SipHashCacheKeyDeriver(byte[] secret) {
+
+        if (secret.length != SECRET_LENGTH) {
+            throw new IllegalArgumentException("SipHash secret must be " + SECRET_LENGTH + " bytes long");
+        }
+        k0 = Long.reverseBytes(readLong(secret, 0));
+        k1 = Long.reverseBytes(readLong(secret, 8));
+    }
+
+    private static byte[] randomSecret() {
+
+        byte[] secret = new byte[SECRET_LENGTH];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+
+    @Override
+    protected CacheKey derive(byte[] bytes, int length) {
+
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL ^ 0xee;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+
+        // Compression, with the remaining bytes and the length forming the last block
+        int end = length - (length & 7);
+        for (int offset = 0; offset <= end; offset += 8) {
+            long m;
+            if (offset < end) {
+                m = Long.reverseBytes(readLong(bytes, offset));
+            } else {
+                m = (long) length << 56;
+                for (int i = end; i < length; i++) {
+                    m |= (bytes[i] & 0xffL) << ((i - end) << 3);
+                }
+            }
+            v3 ^= m;
+            for (int round = 0; round < 2; round++) {
+                v0 += v1;
+                v1 = Long.rotateLeft(v1, 13) ^ v0;
+                v0 = Long.rotateLeft(v0, 32);
+                v2 += v3;
+                v3 = Long.rotateLeft(v3, 16) ^ v2;
+                v0 += v3;
+                v3 = Long.rotateLeft(v3, 21) ^ v0;
+                v2 += v1;
+                v1 = Long.rotateLeft(v1, 17) ^ v2;
+                v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+
+        // Finalization, producing one 64 bit word per pass
+        long first = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 0) {
+                v2 ^= 0xee;
+            } else {
+                v1 ^= 0xdd;
+            }
+            for (int round = 0; round < 4; round++) {
+                v0 += v1;
+                v1 = Long.rotateLeft(v1, 13) ^ v0;
+                v0 = Long.rotateLeft(v0, 32);
+                v2 += v3;
+                v3 = Long.rotateLeft(v3, 16) ^ v2;
+                v0 += v3;
+                v3 = Long.rotateLeft(v3, 21) ^ v0;
+                v2 += v1;
+                v1 = Long.rotateLeft(v1, 17) ^ v2;
+                v2 = Long.rotateLeft(v2, 32);
+            }
+            if (pass == 0) {
+                first = v0 ^ v1 ^ v2 ^ v3;
+            }
+        }
+        long second = v0 ^ v1 ^ v2 ^ v3;
+        // SipHash outputs little endian words, they are stored in the byte order of the hash
+        return new CacheKey(Long.reverseBytes(first), Long.reverseBytes(second));
+    }
+}
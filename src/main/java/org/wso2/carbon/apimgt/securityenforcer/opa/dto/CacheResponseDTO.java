@@ -4,6 +4,7 @@ public class CacheResponseDTO {
 
     private boolean availableInCache = false;
     private boolean cachedResponse = false;
+    private boolean refreshDue = false;
 
     public boolean isAvailableInCache() {
 
@@ -24,4 +25,18 @@ public class CacheResponseDTO {
 
         this.cachedResponse = cachedResponse;
     }
+
+    /**
+     * Returns true if the cached response is stale or about to expire, and the caller is the one that has to refresh
+     * it in the background.
+     */
+    public boolean isRefreshDue() {
+
+        return refreshDue;
+    }
+
+    public void setRefreshDue(boolean refreshDue) {
+
+        this.refreshDue = refreshDue;
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.dto;
+
+/**
+ * This class holds the decision of the OPA server for a request, together with the optional cache hints the policy
+ * returned along with it.
+ */
+public final class Decision {
+
+    /**
+     * TTL of decisions which do not carry a TTL. Such decisions are cached for the configured cache expiry time.
+     */
+    public static final int DEFAULT_TTL = -1;
+
+    private static final Decision ALLOW = new Decision(true, DEFAULT_TTL, true);
+    private static final Decision DENY = new Decision(false, DEFAULT_TTL, true);
+
+    private final boolean allowed;
+    private final int ttlSeconds;
+    private final boolean cacheable;
+
+    /**
+     * @param allowed    whether the request is allowed
+     * @param ttlSeconds number of seconds the decision may be cached for, or {@link #DEFAULT_TTL}
+     * @param cacheable  whether the decision may be cached at all
+     */
+    public Decision(boolean allowed, int ttlSeconds, boolean cacheable) {
+
+        this.allowed = allowed;
+        this.ttlSeconds = ttlSeconds;
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * Returns a cacheable decision without a TTL.
+     */
+    public static Decision of(boolean allowed) {
+
+        return allowed ? ALLOW : DENY;
+    }
+
+    public boolean isAllowed() {
+
+        return allowed;
+    }
+
+    public int getTtlSeconds() {
+
+        return ttlSeconds;
+    }
+
+    public boolean isCacheable() {
+
+        return cacheable;
+    }
+
+    @Override
+    public String toString() {
+
+        return "Decision{allowed=" + allowed + ", ttlSeconds=" + ttlSeconds + ", cacheable=" + cacheable + "}";
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.dto;
+
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
+
+/**
+ * This class holds the meta data extracted from a client request. It carries the precomputed keys used to look up
+ * the token, cookie and IP caches and the policy epoch of the request together with the OPA server payload. The
+ * payload is only encoded when a publisher asks for it, so requests answered from the caches never pay for it. Apart
+ * from that lazily created payload, instances are immutable and are shared between the gateway thread and the
+ * publishing threads.
+ */
+public final class RequestMetadata {
+
+    private final String apiContext;
+    private final CacheKey tokenCacheKey;
+    private final CacheKey cookieCacheKey;
+    private final CacheKey ipCacheKey;
+    private final CacheKey decisionCacheKey;
+    private final long policyEpoch;
+    private volatile byte[] serverPayload;
+    private volatile PayloadFactory payloadFactory;
+
+    /**
+     * @param apiContext       context of the API, used to select the OPA policy
+     * @param tokenCacheKey    hash of the Authorization header, or null if the request does not carry a token
+     * @param cookieCacheKey   hash of the Cookie header, or null if the request does not carry a cookie
+     * @param ipCacheKey       key derived from the origin IP of the request
+     * @param decisionCacheKey key derived from the principal of the request and the API resource it calls, or null
+     *                         if the decision cache is disabled
+     * @param policyEpoch      policy epoch at the time the request was received, which the decisions made for the
+     *                         request are tagged with
+     * @param payloadFactory   creates the UTF-8 encoded request body for the OPA server, wrapped in the input key
+     */
+    public RequestMetadata(String apiContext, CacheKey tokenCacheKey, CacheKey cookieCacheKey, CacheKey ipCacheKey,
+                           CacheKey decisionCacheKey, long policyEpoch, PayloadFactory payloadFactory) {
+
+        this.apiContext = apiContext;
+        this.tokenCacheKey = tokenCacheKey;
+        this.cookieCacheKey = cookieCacheKey;
+        this.ipCacheKey = ipCacheKey;
+        this.decisionCacheKey = decisionCacheKey;
+        this.policyEpoch = policyEpoch;
+        this.payloadFactory = payloadFactory;
+    }
+
+    public String getApiContext() {
+
+        return apiContext;
+    }
+
+    public CacheKey getTokenCacheKey() {
+
+        return tokenCacheKey;
+    }
+
+    public CacheKey getCookieCacheKey() {
+
+        return cookieCacheKey;
+    }
+
+    public CacheKey getIpCacheKey() {
+
+        return ipCacheKey;
+    }
+
+    public CacheKey getDecisionCacheKey() {
+
+        return decisionCacheKey;
+    }
+
+    public long getPolicyEpoch() {
+
+        return policyEpoch;
+    }
+
+    /**
+     * Returns the encoded OPA server payload, creating it on the first call. The payload factory reads from the
+     * message context of the request, hence the first call must happen either on the gateway thread or while the
+     * gateway thread is waiting for the result. The returned array is shared and must not be modified.
+     */
+    public byte[] getServerPayload() {
+
+        byte[] payload = serverPayload;
+        if (payload == null) {
+            PayloadFactory factory = payloadFactory;
+            if (factory == null) {
+                // Created by another thread. The payload is always set before the factory is released.
+                return serverPayload;
+            }
+            payload = factory.createPayload();
+            serverPayload = payload;
+            // Release the references to the message context held by the factory
+            payloadFactory = null;
+        }
+        return payload;
+    }
+
+    /**
+     * Creates the OPA server payload of a request on demand.
+     */
+    public interface PayloadFactory {
+
+        byte[] createPayload();
+    }
+}
@@ -18,6 +18,13 @@ package org.wso2.carbon.apimgt.securityenforcer.opa.dto;
 
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  * This class contains the config data for Security Handler.
  */
@@ -33,8 +40,9 @@ public class SecurityHandlerConfig {
     private ServerConfig serverConfig;
     private CacheConfig cacheConfig;
     private SecurityHandlerConfig.DataPublisherConfig dataPublisherConfig;
-    private SecurityHandlerConfig.StackObjectPoolConfig stackObjectPoolConfig;
     private SecurityHandlerConfig.ThreadPoolExecutorConfig threadPoolExecutorConfig;
+    private InputProjectionConfig inputProjectionConfig = new InputProjectionConfig();
+    private WasmPolicyConfig wasmPolicyConfig = new WasmPolicyConfig();
 
     public boolean isPolicyEnforcementEnabled() {
 
@@ -136,14 +144,24 @@ public class SecurityHandlerConfig {
         this.threadPoolExecutorConfig = threadPoolExecutorConfig;
     }
 
-    public StackObjectPoolConfig getStackObjectPoolConfig() {
+    public InputProjectionConfig getInputProjectionConfig() {
+
+        return inputProjectionConfig;
+    }
+
+    public void setInputProjectionConfig(InputProjectionConfig inputProjectionConfig) {
 
-        return stackObjectPoolConfig;
+        this.inputProjectionConfig = inputProjectionConfig;
     }
 
-    public void setStackObjectPoolConfig(StackObjectPoolConfig stackObjectPoolConfig) {
+    public WasmPolicyConfig getWasmPolicyConfig() {
 
-        this.stackObjectPoolConfig = stackObjectPoolConfig;
+        return wasmPolicyConfig;
+    }
+
+    public void setWasmPolicyConfig(WasmPolicyConfig wasmPolicyConfig) {
+
+        this.wasmPolicyConfig = wasmPolicyConfig;
     }
 
     public static class ServerConfig {
@@ -155,6 +173,8 @@ public class SecurityHandlerConfig {
         private String currentEndpoint;
 
         private String authToken = "";
+        private boolean queryPolicyPackage = false;
+        private int policyRegistryRefreshInterval = 0;
 
         public String getEndPoint() {
 
@@ -193,6 +213,19 @@ public class SecurityHandlerConfig {
             return backupServerEndPoint;
         }
 
+        /**
+         * Returns true if the primary or the backup endpoint is a Unix domain socket.
+         */
+        public boolean isUnixSocketEndPointUsed() {
+
+            return isUnixSocketEndPoint(primaryServerEndPoint) || isUnixSocketEndPoint(backupServerEndPoint);
+        }
+
+        public static boolean isUnixSocketEndPoint(String endPoint) {
+
+            return endPoint != null && endPoint.startsWith(SecurityHandlerConstants.UNIX_SOCKET_URI_PREFIX);
+        }
+
         public void setBackupServerEndPoint(String backupServerEndPoint) {
 
             this.backupServerEndPoint = backupServerEndPoint;
@@ -207,6 +240,26 @@ public class SecurityHandlerConfig {
 
             this.authToken = authToken;
         }
+
+        public boolean isQueryPolicyPackage() {
+
+            return queryPolicyPackage;
+        }
+
+        public void setQueryPolicyPackage(boolean queryPolicyPackage) {
+
+            this.queryPolicyPackage = queryPolicyPackage;
+        }
+
+        public int getPolicyRegistryRefreshInterval() {
+
+            return policyRegistryRefreshInterval;
+        }
+
+        public void setPolicyRegistryRefreshInterval(int policyRegistryRefreshInterval) {
+
+            this.policyRegistryRefreshInterval = policyRegistryRefreshInterval;
+        }
     }
 
     public static class CacheConfig {
@@ -214,6 +267,19 @@ public class SecurityHandlerConfig {
         private boolean tokenCacheEnabled = true;
         private boolean cookieCacheEnabled = true;
         private boolean IPCacheEnabled = true;
+        private boolean authContextCacheEnabled = true;
+        private int authContextCacheSize = 10000;
+        private String keyDerivation = "MD5";
+        private int localCacheSize = 10000;
+        private int offHeapCacheSize = 0;
+        private boolean decisionCacheEnabled = false;
+        private boolean syncModeCacheEnabled = false;
+        private int maxDecisionTTL = 0;
+        private double refreshAheadFactor = 0;
+        private int staleWhileRevalidate = 0;
+        private String keyDerivationSecret;
+        private String snapshotFile;
+        private int snapshotInterval = 60;
 
         public boolean isTokenCacheEnabled() {
 
@@ -244,6 +310,145 @@ public class SecurityHandlerConfig {
 
             this.IPCacheEnabled = IPCacheEnabled;
         }
+
+        public boolean isAuthContextCacheEnabled() {
+
+            return authContextCacheEnabled;
+        }
+
+        public void setAuthContextCacheEnabled(boolean authContextCacheEnabled) {
+
+            this.authContextCacheEnabled = authContextCacheEnabled;
+        }
+
+        public int getAuthContextCacheSize() {
+
+            return authContextCacheSize;
+        }
+
+        public void setAuthContextCacheSize(int authContextCacheSize) {
+
+            this.authContextCacheSize = authContextCacheSize;
+        }
+
+        public boolean isDecisionCacheEnabled() {
+
+            return decisionCacheEnabled;
+        }
+
+        public void setDecisionCacheEnabled(boolean decisionCacheEnabled) {
+
+            this.decisionCacheEnabled = decisionCacheEnabled;
+        }
+
+        public boolean isSyncModeCacheEnabled() {
+
+            return syncModeCacheEnabled;
+        }
+
+        public void setSyncModeCacheEnabled(boolean syncModeCacheEnabled) {
+
+            this.syncModeCacheEnabled = syncModeCacheEnabled;
+        }
+
+        public int getMaxDecisionTTL() {
+
+            return maxDecisionTTL;
+        }
+
+        public void setMaxDecisionTTL(int maxDecisionTTL) {
+
+            this.maxDecisionTTL = maxDecisionTTL;
+        }
+
+        public double getRefreshAheadFactor() {
+
+            return refreshAheadFactor;
+        }
+
+        public void setRefreshAheadFactor(double refreshAheadFactor) {
+
+            this.refreshAheadFactor = refreshAheadFactor;
+        }
+
+        public int getStaleWhileRevalidate() {
+
+            return staleWhileRevalidate;
+        }
+
+        public void setStaleWhileRevalidate(int staleWhileRevalidate) {
+
+            this.staleWhileRevalidate = staleWhileRevalidate;
+        }
+
+        /**
+         * Returns true if cached decisions are refreshed in the background before they expire or while they are
+         * served stale.
+         */
+        public boolean isBackgroundRefreshEnabled() {
+
+            return refreshAheadFactor > 0 || staleWhileRevalidate > 0;
+        }
+
+        public int getLocalCacheSize() {
+
+            return localCacheSize;
+        }
+
+        public void setLocalCacheSize(int localCacheSize) {
+
+            this.localCacheSize = localCacheSize;
+        }
+
+        public int getOffHeapCacheSize() {
+
+            return offHeapCacheSize;
+        }
+
+        public void setOffHeapCacheSize(int offHeapCacheSize) {
+
+            this.offHeapCacheSize = offHeapCacheSize;
+        }
+
+        public String getKeyDerivation() {
+
+            return keyDerivation;
+        }
+
+        public void setKeyDerivation(String keyDerivation) {
+
+            this.keyDerivation = keyDerivation;
+        }
+
+        public String getKeyDerivationSecret() {
+
+            return keyDerivationSecret;
+        }
+
+        public void setKeyDerivationSecret(String keyDerivationSecret) {
+
+            this.keyDerivationSecret = keyDerivationSecret;
+        }
+
+        public String getSnapshotFile() {
+
+            return snapshotFile;
+        }
+
+        public void setSnapshotFile(String snapshotFile) {
+
+            this.snapshotFile = snapshotFile;
+        }
+
+        public int getSnapshotInterval() {
+
+            return snapshotInterval;
+        }
+
+        public void setSnapshotInterval(int snapshotInterval) {
+
+            this.snapshotInterval = snapshotInterval;
+        }
     }
 
     public static class DataPublisherConfig {
@@ -251,6 +456,13 @@ public class SecurityHandlerConfig {
         private Integer maxOpenConnections = 500;
         private Integer maxPerRoute = 200;
         private Integer connectionTimeout = 30;
+        private String transport = SecurityHandlerConstants.BLOCKING_TRANSPORT_STRING;
+        // Maximum number of decisions requested together. Batching is disabled unless it is greater than 1.
+        private int batchSize = 0;
+        // Maximum time in microseconds a decision waits for the batch to fill up
+        private long batchDelay = 500;
+        private String batchRule = "batch";
+        private boolean coalesceRequests = false;
 
         public Integer getMaxOpenConnections() {
 
@@ -281,31 +493,70 @@ public class SecurityHandlerConfig {
 
             this.connectionTimeout = connectionTimeout;
         }
-    }
 
-    public static class StackObjectPoolConfig {
+        public String getTransport() {
+
+            return transport;
+        }
+
+        public void setTransport(String transport) {
+
+            this.transport = transport;
+        }
+
+        public boolean isNonBlockingTransport() {
+
+            return SecurityHandlerConstants.NIO_TRANSPORT_STRING.equals(transport);
+        }
+
+        public boolean isHttp2Transport() {
+
+            return SecurityHandlerConstants.HTTP2_TRANSPORT_STRING.equals(transport);
+        }
+
+        public int getBatchSize() {
 
-        private Integer maxIdle = 100;
-        private Integer initIdleCapacity = 50;
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+
+            this.batchSize = batchSize;
+        }
+
+        public long getBatchDelay() {
+
+            return batchDelay;
+        }
+
+        public void setBatchDelay(long batchDelay) {
 
-        public Integer getMaxIdle() {
+            this.batchDelay = batchDelay;
+        }
+
+        public String getBatchRule() {
+
+            return batchRule;
+        }
 
-            return maxIdle;
+        public void setBatchRule(String batchRule) {
+
+            this.batchRule = batchRule;
         }
 
-        public void setMaxIdle(Integer maxIdle) {
+        public boolean isBatchingEnabled() {
 
-            this.maxIdle = maxIdle;
+            return batchSize > 1;
         }
 
-        public Integer getInitIdleCapacity() {
+        public boolean isCoalesceRequests() {
 
-            return initIdleCapacity;
+            return coalesceRequests;
         }
 
-        public void setInitIdleCapacity(Integer initIdleCapacity) {
+        public void setCoalesceRequests(boolean coalesceRequests) {
 
-            this.initIdleCapacity = initIdleCapacity;
+            this.coalesceRequests = coalesceRequests;
         }
     }
 
@@ -314,6 +565,13 @@ public class SecurityHandlerConfig {
         private Integer corePoolSize = 200;
         private Integer maximumPoolSize = 500;
         private Long keepAliveTime = 100L;
+        private String syncDispatch = SecurityHandlerConstants.EXECUTOR_SYNC_DISPATCH_STRING;
+        private String threadType = SecurityHandlerConstants.PLATFORM_THREAD_TYPE_STRING;
+        private int virtualThreadConcurrency = 10000;
+        private int queueCapacity = 0;
+        private String cacheMissOverflowPolicy = SecurityHandlerConstants.DROP_OLDEST_OVERFLOW_POLICY_STRING;
+        private String refreshOverflowPolicy = SecurityHandlerConstants.DROP_NEWEST_OVERFLOW_POLICY_STRING;
+        private int overflowSampleRate = 10;
 
         public Integer getCorePoolSize() {
 
@@ -344,6 +602,210 @@ public class SecurityHandlerConfig {
 
             this.keepAliveTime = keepAliveTime;
         }
+
+        public String getSyncDispatch() {
+
+            return syncDispatch;
+        }
+
+        public void setSyncDispatch(String syncDispatch) {
+
+            this.syncDispatch = syncDispatch;
+        }
+
+        public boolean isCallerThreadSyncDispatch() {
+
+            return SecurityHandlerConstants.CALLER_SYNC_DISPATCH_STRING.equals(syncDispatch);
+        }
+
+        public String getThreadType() {
+
+            return threadType;
+        }
+
+        public void setThreadType(String threadType) {
+
+            this.threadType = threadType;
+        }
+
+        public boolean isVirtualThreads() {
+
+            return SecurityHandlerConstants.VIRTUAL_THREAD_TYPE_STRING.equals(threadType);
+        }
+
+        public int getVirtualThreadConcurrency() {
+
+            return virtualThreadConcurrency;
+        }
+
+        public void setVirtualThreadConcurrency(int virtualThreadConcurrency) {
+
+            this.virtualThreadConcurrency = virtualThreadConcurrency;
+        }
+
+        public int getQueueCapacity() {
+
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+
+            this.queueCapacity = queueCapacity;
+        }
+
+        public String getCacheMissOverflowPolicy() {
+
+            return cacheMissOverflowPolicy;
+        }
+
+        public void setCacheMissOverflowPolicy(String cacheMissOverflowPolicy) {
+
+            this.cacheMissOverflowPolicy = cacheMissOverflowPolicy;
+        }
+
+        public String getRefreshOverflowPolicy() {
+
+            return refreshOverflowPolicy;
+        }
+
+        public void setRefreshOverflowPolicy(String refreshOverflowPolicy) {
+
+            this.refreshOverflowPolicy = refreshOverflowPolicy;
+        }
+
+        public int getOverflowSampleRate() {
+
+            return overflowSampleRate;
+        }
+
+        public void setOverflowSampleRate(int overflowSampleRate) {
+
+            this.overflowSampleRate = overflowSampleRate;
+        }
     }
 
+    /**
+     * Locates the policies compiled to WebAssembly which are evaluated in the gateway in wasm mode, and the runtime
+     * they are run in.
+     */
+    public static class WasmPolicyConfig {
+
+        private String directory;
+        private Integer reloadInterval = 10;
+        private String runtime;
+
+        public String getDirectory() {
+
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+
+            this.directory = directory;
+        }
+
+        public Integer getReloadInterval() {
+
+            return reloadInterval;
+        }
+
+        public void setReloadInterval(Integer reloadInterval) {
+
+            this.reloadInterval = reloadInterval;
+        }
+
+        public String getRuntime() {
+
+            return runtime;
+        }
+
+        public void setRuntime(String runtime) {
+
+            this.runtime = runtime;
+        }
+    }
+
+    /**
+     * Selects the parts of a request which are sent to the OPA server as the policy input. A schema can be defined
+     * per API context, and the default schema applies to every other API.
+     */
+    public static class InputProjectionConfig {
+
+        // Header and authentication context values longer than this are truncated. Zero disables truncation.
+        private int maxValueLength = 0;
+        private InputSchema defaultSchema = new InputSchema();
+        private Map<String, InputSchema> apiSchemas = new HashMap<>();
+
+        public int getMaxValueLength() {
+
+            return maxValueLength;
+        }
+
+        public void setMaxValueLength(int maxValueLength) {
+
+            this.maxValueLength = maxValueLength;
+        }
+
+        public InputSchema getDefaultSchema() {
+
+            return defaultSchema;
+        }
+
+        public void setDefaultSchema(InputSchema defaultSchema) {
+
+            this.defaultSchema = defaultSchema;
+        }
+
+        public void addApiSchema(String apiContext, InputSchema inputSchema) {
+
+            apiSchemas.put(apiContext, inputSchema);
+        }
+
+        /**
+         * Returns the input schema of the given API context, or the default schema if the API does not have one.
+         */
+        public InputSchema getSchema(String apiContext) {
+
+            InputSchema inputSchema = apiSchemas.get(apiContext);
+            return inputSchema != null ? inputSchema : defaultSchema;
+        }
+    }
+
+    /**
+     * Whitelist of the transport headers and authentication context fields of an API. A null whitelist sends
+     * every header or field.
+     */
+    public static class InputSchema {
+
+        private Set<String> headers;
+        private Set<String> authContextFields;
+
+        public Set<String> getHeaders() {
+
+            return headers;
+        }
+
+        /**
+         * Header names are matched case insensitively.
+         */
+        public void setHeaders(Collection<String> headers) {
+
+            if (headers == null) {
+                this.headers = null;
+            } else {
+                this.headers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                this.headers.addAll(headers);
+            }
+        }
+
+        public Set<String> getAuthContextFields() {
+
+            return authContextFields;
+        }
+
+        public void setAuthContextFields(Collection<String> authContextFields) {
+
+            this.authContextFields = authContextFields != null ? new LinkedHashSet<>(authContextFields) : null;
+        }
+    }
 }
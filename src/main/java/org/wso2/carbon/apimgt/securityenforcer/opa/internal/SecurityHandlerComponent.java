@@ -18,18 +18,27 @@
 
 package org.wso2.carbon.apimgt.securityenforcer.opa.internal;
 
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Component;
+import org.wso2.carbon.apimgt.securityenforcer.opa.OPAResponseStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKeyDeriver;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.Md5CacheKeyDeriver;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.PolicyEpoch;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.SipHashCacheKeyDeriver;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PolicyRegistry;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.Publisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PublisherQueueStats;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async.AsyncPublisher;
-import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async.AsyncPublisherThreadPool;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.sync.SyncPublisher;
-import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.sync.SyncPublisherThreadPool;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.wasm.WasmPublisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.AuthContextFragmentCache;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.hybrid.HybridPublisher;
@@ -38,6 +47,11 @@ import org.wso2.carbon.utils.CarbonUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 @Component(name = "org.wso2.carbon.apimgt.securityenforcer", immediate = true)
 public class SecurityHandlerComponent implements BundleActivator {
@@ -46,6 +60,7 @@ public class SecurityHandlerComponent implements BundleActivator {
 
     private String operationMode;
     private HttpDataPublisher httpDataPublisher;
+    private WasmPublisher wasmPublisher;
     private SecurityHandlerConfig securityHandlerConfig;
 
     public void start(BundleContext bundleContext) throws Exception {
@@ -62,6 +77,11 @@ public class SecurityHandlerComponent implements BundleActivator {
             Publisher requestPublisher;
             Publisher responsePublisher;
 
+            // Created before the publishers, which register their executors in it
+            PublisherQueueStats publisherQueueStats = new PublisherQueueStats();
+            ServiceReferenceHolder.getInstance().setPublisherQueueStats(publisherQueueStats);
+            registerMBean(publisherQueueStats, SecurityHandlerConstants.PUBLISHER_QUEUE_STATS_MBEAN_NAME);
+
             switch (operationMode) {
                 case SecurityHandlerConstants.SYNC_MODE_STRING:
                     requestPublisher = new SyncPublisher();
@@ -72,11 +92,38 @@ public class SecurityHandlerComponent implements BundleActivator {
                 case SecurityHandlerConstants.HYBRID_MODE_STRING:
                     requestPublisher = new HybridPublisher();
                     break;
+                case SecurityHandlerConstants.WASM_MODE_STRING:
+                    wasmPublisher = new WasmPublisher();
+                    requestPublisher = wasmPublisher;
+                    break;
                 default:
                     throw new Exception("Operation mode is incorrect for OPA Security Handler");
             }
             ServiceReferenceHolder.getInstance().setRequestPublisher(requestPublisher);
 
+            SecurityHandlerConfig.CacheConfig cacheConfig = securityHandlerConfig.getCacheConfig();
+            ServiceReferenceHolder.getInstance().setCacheKeyDeriver(getCacheKeyDeriver(cacheConfig));
+            PolicyEpoch policyEpoch = new PolicyEpoch();
+            ServiceReferenceHolder.getInstance().setPolicyEpoch(policyEpoch);
+            registerMBean(policyEpoch, SecurityHandlerConstants.POLICY_EPOCH_MBEAN_NAME);
+            if (cacheConfig.isAuthContextCacheEnabled()) {
+                ServiceReferenceHolder.getInstance().setAuthContextFragmentCache(new AuthContextFragmentCache(
+                        cacheConfig.getAuthContextCacheSize(), securityHandlerConfig.getCacheExpiryTime()));
+            }
+            String snapshotFile = cacheConfig.getSnapshotFile();
+            if (snapshotFile != null && !snapshotFile.isEmpty()) {
+                File file = new File(snapshotFile);
+                if (!file.isAbsolute()) {
+                    file = new File(CarbonUtils.getCarbonHome(), snapshotFile);
+                }
+                OPAResponseStore.startSnapshots(file, cacheConfig.getSnapshotInterval());
+            }
+
+            if (wasmPublisher != null) {
+                // Policies are evaluated in the gateway, hence the OPA server is not called
+                return;
+            }
+
             try {
                 httpDataPublisher = new HttpDataPublisher(securityHandlerConfig);
             } catch (SecurityException e) {
@@ -85,6 +132,15 @@ public class SecurityHandlerComponent implements BundleActivator {
             }
 
             ServiceReferenceHolder.getInstance().setHttpDataPublisher(httpDataPublisher);
+
+            int policyRegistryRefreshInterval = securityHandlerConfig.getServerConfig()
+                    .getPolicyRegistryRefreshInterval();
+            if (policyRegistryRefreshInterval > 0) {
+                PolicyRegistry policyRegistry = new PolicyRegistry(httpDataPublisher,
+                        securityHandlerConfig.getServerConfig());
+                policyRegistry.start(policyRegistryRefreshInterval);
+                ServiceReferenceHolder.getInstance().setPolicyRegistry(policyRegistry);
+            }
         } else {
             log.info("OPA security handler policy enforcement disabled");
         }
@@ -94,18 +150,41 @@ public class SecurityHandlerComponent implements BundleActivator {
 
         if (securityHandlerConfig.isPolicyEnforcementEnabled()) {
             log.info("OSGi stop method for OPA Security Handler");
-            if (SecurityHandlerConstants.ASYNC_MODE_STRING.equals(operationMode)) {
-                log.info("Cleaning the Async thread pool");
-                AsyncPublisherThreadPool.getInstance().cleanup();
-            } else {
-                log.info("Cleaning both Async and sync thread pools");
-                AsyncPublisherThreadPool.getInstance().cleanup();
-                SyncPublisherThreadPool.getInstance().cleanup();
+            if (SecurityHandlerConstants.WASM_MODE_STRING.equals(operationMode)) {
+                log.info("Stopping the OPA WebAssembly policy loader");
+                wasmPublisher.stop();
             }
 
+            log.info("Cleaning the in-process decision caches and writing the decision snapshot");
+            OPAResponseStore.cleanup();
+            unregisterMBean(SecurityHandlerConstants.POLICY_EPOCH_MBEAN_NAME);
+            unregisterMBean(SecurityHandlerConstants.PUBLISHER_QUEUE_STATS_MBEAN_NAME);
+
+            PolicyRegistry policyRegistry = ServiceReferenceHolder.getInstance().getPolicyRegistry();
+            if (policyRegistry != null) {
+                log.info("Stopping the OPA policy registry");
+                policyRegistry.stop();
+                ServiceReferenceHolder.getInstance().setPolicyRegistry(null);
+            }
+
+            if (httpDataPublisher == null) {
+                return;
+            }
+            if (httpDataPublisher.getDecisionBatcher() != null) {
+                log.info("Stopping the OPA decision batcher");
+                httpDataPublisher.getDecisionBatcher().close();
+            }
             try {
                 log.info("Closing the Http Client");
                 httpDataPublisher.getHttpClient().close();
+                if (httpDataPublisher.getAsyncHttpClient() != null) {
+                    log.info("Closing the non-blocking Http Client");
+                    httpDataPublisher.getAsyncHttpClient().close();
+                }
+                if (httpDataPublisher.getHttp2Client() != null) {
+                    log.info("Closing the HTTP/2 Client");
+                    httpDataPublisher.getHttp2Client().close();
+                }
             } catch (IOException e) {
                 log.error("Error when closing the HttpClient");
             }
@@ -123,6 +202,63 @@ public class SecurityHandlerComponent implements BundleActivator {
         return configuration.getSecurityHandlerProperties();
     }
 
+    /**
+     * This method will register an MBean in JMX, such as the policy epoch, so that cached decisions can be invalidated
+     * when policies are pushed to the OPA server, or the publisher queue stats. The handler works without them,
+     * hence a failure is only logged.
+     */
+    private void registerMBean(Object mBean, String mBeanName) {
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(mBeanName);
+            if (mBeanServer.isRegistered(name)) {
+                // Left behind by a previous instance of the bundle
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(mBean, name);
+        } catch (JMException e) {
+            log.error("Error when registering the MBean " + mBeanName + " of OPA Security Handler", e);
+        }
+    }
+
+    private void unregisterMBean(String mBeanName) {
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(mBeanName);
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.error("Error when unregistering the MBean " + mBeanName + " of OPA Security Handler", e);
+        }
+    }
+
+    /**
+     * This method will create the cache key deriver selected in the cache config.
+     */
+    private CacheKeyDeriver getCacheKeyDeriver(SecurityHandlerConfig.CacheConfig cacheConfig) throws Exception {
+
+        String keyDerivation = cacheConfig.getKeyDerivation();
+        if (Md5CacheKeyDeriver.NAME.equalsIgnoreCase(keyDerivation)) {
+            return new Md5CacheKeyDeriver();
+        } else if (SipHashCacheKeyDeriver.NAME.equalsIgnoreCase(keyDerivation)) {
+            String secret = cacheConfig.getKeyDerivationSecret();
+            if (secret == null || secret.isEmpty()) {
+                // Keys derived with a random secret do not match the keys of the other nodes of a cluster
+                log.debug("Cache key derivation secret is not set. A random secret is used.");
+                return new SipHashCacheKeyDeriver();
+            }
+            try {
+                return new SipHashCacheKeyDeriver(Hex.decodeHex(secret.toCharArray()));
+            } catch (DecoderException | IllegalArgumentException e) {
+                throw new Exception("Cache key derivation secret of OPA Security Handler must be 32 hex digits", e);
+            }
+        }
+        throw new Exception("Cache key derivation is incorrect for OPA Security Handler");
+    }
+
     private void logConfigData(SecurityHandlerConfig securityHandlerConfig) {
 
         if (log.isDebugEnabled()) {
@@ -138,17 +274,32 @@ public class SecurityHandlerComponent implements BundleActivator {
                         .getDataPublisherConfig().getMaxOpenConnections();
                 logMessage = logMessage + ", DataPublisher- ConnectionTimeout: " + securityHandlerConfig
                         .getDataPublisherConfig().getConnectionTimeout();
+                logMessage = logMessage + ", DataPublisher- Transport: " + securityHandlerConfig
+                        .getDataPublisherConfig().getTransport();
+                logMessage = logMessage + ", DataPublisher- BatchSize: " + securityHandlerConfig
+                        .getDataPublisherConfig().getBatchSize();
+                logMessage = logMessage + ", DataPublisher- BatchDelay: " + securityHandlerConfig
+                        .getDataPublisherConfig().getBatchDelay();
+                if (SecurityHandlerConstants.WASM_MODE_STRING.equals(securityHandlerConfig.getMode())) {
+                    logMessage = logMessage + ", WasmPolicy- Directory: " + securityHandlerConfig
+                            .getWasmPolicyConfig().getDirectory();
+                    logMessage = logMessage + ", WasmPolicy- ReloadInterval: " + securityHandlerConfig
+                            .getWasmPolicyConfig().getReloadInterval();
+                    logMessage = logMessage + ", WasmPolicy- Runtime: " + securityHandlerConfig
+                            .getWasmPolicyConfig().getRuntime();
+                }
                 logMessage = logMessage + ", ThreadPoolExecutor- CorePoolSize: " + securityHandlerConfig
                         .getThreadPoolExecutorConfig().getCorePoolSize();
                 logMessage = logMessage + ", ThreadPoolExecutor- MaximumPoolSize: " + securityHandlerConfig
                         .getThreadPoolExecutorConfig().getMaximumPoolSize();
                 logMessage = logMessage + ", ThreadPoolExecutor- KeepAliveTime: " + securityHandlerConfig
                         .getThreadPoolExecutorConfig().getKeepAliveTime();
-                logMessage =
-                        logMessage + ", StackObjectPool- MaxIdle: " + securityHandlerConfig.getStackObjectPoolConfig()
-                                .getMaxIdle();
-                logMessage = logMessage + ", StackObjectPool- InitIdleCapacity: " + securityHandlerConfig
-                        .getStackObjectPoolConfig().getInitIdleCapacity();
+                logMessage = logMessage + ", ThreadPoolExecutor- QueueCapacity: " + securityHandlerConfig
+                        .getThreadPoolExecutorConfig().getQueueCapacity();
+                logMessage = logMessage + ", ThreadPoolExecutor- CacheMissOverflowPolicy: " + securityHandlerConfig
+                        .getThreadPoolExecutorConfig().getCacheMissOverflowPolicy();
+                logMessage = logMessage + ", ThreadPoolExecutor- RefreshOverflowPolicy: " + securityHandlerConfig
+                        .getThreadPoolExecutorConfig().getRefreshOverflowPolicy();
                 log.debug(logMessage);
             }
         }
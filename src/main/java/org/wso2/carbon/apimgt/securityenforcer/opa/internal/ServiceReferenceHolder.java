@@ -19,9 +19,14 @@
 package org.wso2.carbon.apimgt.securityenforcer.opa.internal;
 
 import org.json.simple.JSONObject;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKeyDeriver;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.PolicyEpoch;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PolicyRegistry;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.Publisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PublisherQueueStats;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.AuthContextFragmentCache;
 
 public class ServiceReferenceHolder {
 
@@ -31,6 +36,11 @@ public class ServiceReferenceHolder {
     private volatile Publisher requestPublisher;
     private volatile HttpDataPublisher httpDataPublisher;
     private JSONObject managementAPIPayload;
+    private AuthContextFragmentCache authContextFragmentCache;
+    private CacheKeyDeriver cacheKeyDeriver;
+    private PolicyEpoch policyEpoch;
+    private volatile PolicyRegistry policyRegistry;
+    private PublisherQueueStats publisherQueueStats;
 
     private ServiceReferenceHolder() {
 
@@ -80,4 +90,54 @@ public class ServiceReferenceHolder {
 
         this.managementAPIPayload = managementAPIPayload;
     }
+
+    public AuthContextFragmentCache getAuthContextFragmentCache() {
+
+        return authContextFragmentCache;
+    }
+
+    public void setAuthContextFragmentCache(AuthContextFragmentCache authContextFragmentCache) {
+
+        this.authContextFragmentCache = authContextFragmentCache;
+    }
+
+    public CacheKeyDeriver getCacheKeyDeriver() {
+
+        return cacheKeyDeriver;
+    }
+
+    public void setCacheKeyDeriver(CacheKeyDeriver cacheKeyDeriver) {
+
+        this.cacheKeyDeriver = cacheKeyDeriver;
+    }
+
+    public PolicyEpoch getPolicyEpoch() {
+
+        return policyEpoch;
+    }
+
+    public void setPolicyEpoch(PolicyEpoch policyEpoch) {
+
+        this.policyEpoch = policyEpoch;
+    }
+
+    public PublisherQueueStats getPublisherQueueStats() {
+
+        return publisherQueueStats;
+    }
+
+    public void setPublisherQueueStats(PublisherQueueStats publisherQueueStats) {
+
+        this.publisherQueueStats = publisherQueueStats;
+    }
+
+    public PolicyRegistry getPolicyRegistry() {
+
+        return policyRegistry;
+    }
+
+    public void setPolicyRegistry(PolicyRegistry policyRegistry) {
+
+        this.policyRegistry = policyRegistry;
+    }
 }
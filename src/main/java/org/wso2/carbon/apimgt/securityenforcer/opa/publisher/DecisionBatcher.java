@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import com.google.gson.JsonSyntaxException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the decision requests of each API into batches, which are sent to the batch rule of the API as a single
+ * request. A batch is sent once it holds BatchSize requests, or BatchDelay microseconds after its first request,
+ * whichever comes first. The input of the batch rule is {"batch":[input, ...]} with the inputs of the requests in
+ * order, and its result must be an array holding the result of the allow rule, or the package document, for each of
+ * them, as in:
+ * <pre>
+ * batch := [result | some i; input.batch[i]; result := allow with input as input.batch[i]]
+ * </pre>
+ * Batches are sent by the threads of the batcher, and the decisions are handed back to the waiting callers through
+ * their futures.
+ */
+public class DecisionBatcher {
+
+    private static final Log log = LogFactory.getLog(DecisionBatcher.class);
+    private static final byte[] BATCH_PREFIX = ("{\"" + SecurityHandlerConstants.INPUT_KEY_NAME + "\":{\""
+            + SecurityHandlerConstants.BATCH_INPUT_KEY_NAME + "\":[").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH_SUFFIX = "]}}".getBytes(StandardCharsets.UTF_8);
+    // Length of the {"input": prefix of the request payloads, which hold a single input object
+    private static final int INPUT_OFFSET = ("{\"" + SecurityHandlerConstants.INPUT_KEY_NAME + "\":")
+            .getBytes(StandardCharsets.UTF_8).length;
+
+    private final HttpDataPublisher httpDataPublisher;
+    private final int batchSize;
+    private final long batchDelay;
+    private final boolean defaultActionIfPolicyNotFound;
+    private final boolean defaultActionIfServerNotReachable;
+    private final ConcurrentMap<String, Batch> openBatches = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor executor;
+
+    public DecisionBatcher(HttpDataPublisher httpDataPublisher, SecurityHandlerConfig securityHandlerConfig) {
+
+        this.httpDataPublisher = httpDataPublisher;
+        this.batchSize = securityHandlerConfig.getDataPublisherConfig().getBatchSize();
+        this.batchDelay = securityHandlerConfig.getDataPublisherConfig().getBatchDelay();
+        this.defaultActionIfPolicyNotFound = securityHandlerConfig.getDefaultActionIfPolicyNotFound();
+        this.defaultActionIfServerNotReachable = securityHandlerConfig.getDefaultActionIfServerNotReachable();
+        executor = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "OPA-Decision-Batcher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Adds the request to the open batch of its API, opening a new batch if there is none.
+     *
+     * @param callback called with the decision on a thread of the batcher or an I/O thread of the client, or null
+     * @return future completed with the decision once the response to the batch is read. It always completes with a
+     * decision, since failures are handled in the same way as in the other transports.
+     */
+    public Future<Decision> submit(RequestMetadata data, String correlationID, FutureCallback<Decision> callback) {
+
+        BasicFuture<Decision> result = new BasicFuture<>(callback);
+        // The payload is created on the calling thread, since it is read from the message context of the request
+        byte[] payload = data.getServerPayload();
+        String apiContext = data.getApiContext();
+        while (true) {
+            Batch batch = openBatches.get(apiContext);
+            if (batch == null) {
+                Batch newBatch = new Batch(apiContext);
+                batch = openBatches.putIfAbsent(apiContext, newBatch);
+                if (batch == null) {
+                    batch = newBatch;
+                    batch.schedule();
+                }
+            }
+            if (batch.add(payload, correlationID, result)) {
+                return result;
+            }
+            // The batch was closed after it was read from the map
+        }
+    }
+
+    /**
+     * Stops the batcher. Requests of the batches which are not sent yet get the action for an unreachable server.
+     */
+    public void close() {
+
+        executor.shutdownNow();
+        for (Batch batch : openBatches.values()) {
+            if (batch.close()) {
+                batch.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Requests of an API which are sent together.
+     */
+    private class Batch implements Runnable {
+
+        private final String apiContext;
+        private final List<byte[]> payloads = new ArrayList<>();
+        private final List<String> correlationIDs = new ArrayList<>();
+        private final List<BasicFuture<Decision>> results = new ArrayList<>();
+        private Future<?> scheduledSend;
+        private boolean closed;
+
+        Batch(String apiContext) {
+
+            this.apiContext = apiContext;
+        }
+
+        synchronized void schedule() {
+
+            if (!closed) {
+                scheduledSend = executor.schedule(this, batchDelay, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        /**
+         * Adds the request to the batch, and hands the batch to a thread of the batcher once it is full.
+         *
+         * @return false if the batch is already closed
+         */
+        boolean add(byte[] payload, String correlationID, BasicFuture<Decision> result) {
+
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                payloads.add(payload);
+                correlationIDs.add(correlationID);
+                results.add(result);
+                if (payloads.size() < batchSize) {
+                    return true;
+                }
+                closed = true;
+                if (scheduledSend != null) {
+                    scheduledSend.cancel(false);
+                }
+            }
+            openBatches.remove(apiContext, this);
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    send();
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Closes the batch, so that no more requests are added to it.
+         *
+         * @return false if the batch was already closed
+         */
+        boolean close() {
+
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                closed = true;
+            }
+            openBatches.remove(apiContext, this);
+            return true;
+        }
+
+        /**
+         * Sends the batch when its delay has passed.
+         */
+        @Override
+        public void run() {
+
+            if (close()) {
+                send();
+            }
+        }
+
+        private void send() {
+
+            final String batchName = "batch of " + payloads.size() + " requests of the API " + apiContext;
+            if (log.isDebugEnabled()) {
+                log.debug("Sending the " + batchName + " with the request ids " + correlationIDs);
+            }
+            ByteArrayOutputStream batchPayload = new ByteArrayOutputStream();
+            batchPayload.write(BATCH_PREFIX, 0, BATCH_PREFIX.length);
+            for (int i = 0; i < payloads.size(); i++) {
+                if (i > 0) {
+                    batchPayload.write(',');
+                }
+                byte[] payload = payloads.get(i);
+                // The input object of the payload, without the enclosing {"input": and }
+                batchPayload.write(payload, INPUT_OFFSET, payload.length - INPUT_OFFSET - 1);
+            }
+            batchPayload.write(BATCH_SUFFIX, 0, BATCH_SUFFIX.length);
+            try {
+                httpDataPublisher.publishBatch(apiContext, batchPayload.toByteArray(), batchName,
+                        new FutureCallback<HttpResponse>() {
+
+                            @Override
+                            public void completed(HttpResponse response) {
+
+                                complete(readResults(response, batchName));
+                            }
+
+                            @Override
+                            public void failed(Exception ex) {
+
+                                complete(null);
+                            }
+
+                            @Override
+                            public void cancelled() {
+
+                                complete(null);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                log.error("Error sending the " + batchName, e);
+                complete(null);
+            }
+        }
+
+        /**
+         * Reads the decisions of the batch rule. Responses other than a success are handled in the same way as an
+         * unreachable server.
+         *
+         * @return the decision of each request, an empty list if the batch rule is not defined, or null if there are
+         * no decisions
+         */
+        private List<Decision> readResults(HttpResponse response, String batchName) {
+
+            int serverResponseCode = response.getStatusLine().getStatusCode();
+            if (serverResponseCode != SecurityHandlerConstants.SERVER_RESPONSE_CODE_SUCCESS) {
+                log.error("OPA Server error code " + serverResponseCode + " sent for the " + batchName);
+                return null;
+            }
+            try {
+                InputStream content;
+                if (log.isDebugEnabled()) {
+                    byte[] responseBytes = EntityUtils.toByteArray(response.getEntity());
+                    log.debug("OPA Server Response for the " + batchName + " was "
+                            + new String(responseBytes, StandardCharsets.UTF_8));
+                    content = new ByteArrayInputStream(responseBytes);
+                } else {
+                    content = response.getEntity().getContent();
+                }
+                List<Decision> decisions;
+                try {
+                    decisions = DecisionReader.readBatch(content, apiContext);
+                } finally {
+                    content.close();
+                }
+                if (decisions == null) {
+                    // The batch rule of this API has not been created at the OPA server
+                    if (log.isDebugEnabled()) {
+                        log.debug("OPA batch rule was not defined for the API " + apiContext);
+                    }
+                    return Collections.emptyList();
+                }
+                if (decisions.size() == payloads.size()) {
+                    return decisions;
+                }
+                log.error("OPA batch rule of the API " + apiContext + " did not return a result for each request of "
+                        + "the " + batchName);
+            } catch (IOException | JsonSyntaxException e) {
+                log.error("Error reading the response for the " + batchName, e);
+            }
+            return null;
+        }
+
+        /**
+         * Completes the futures of the batch with their decisions. Requests without a result get the action for a
+         * missing policy, and every request gets the action for an unreachable server if there are no decisions.
+         */
+        void complete(List<Decision> decisions) {
+
+            for (int i = 0; i < results.size(); i++) {
+                Decision decision;
+                if (decisions == null) {
+                    decision = Decision.of(defaultActionIfServerNotReachable);
+                } else if (i >= decisions.size() || decisions.get(i) == null) {
+                    decision = Decision.of(defaultActionIfPolicyNotFound);
+                } else {
+                    decision = decisions.get(i);
+                }
+                results.get(i).completed(decision);
+            }
+        }
+    }
+}
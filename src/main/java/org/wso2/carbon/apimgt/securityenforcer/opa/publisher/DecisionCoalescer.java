@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.PolicyEpoch;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+/**
+ * Coalesces identical decision requests which are in flight at the same time, so that they share a single call to
+ * the OPA server. Requests are identical if they send the same OPA request body and the same invalidation applies to
+ * them, which is the minimum policy epoch of their API when they join. The decision cache key is not used, since it
+ * only covers the principal and the API resource while the policy may read any field of the input. The policy epoch
+ * of each request is not used either, since it is the time the request was received. A request joining after the
+ * policies of its API are invalidated starts a new flight, hence it never gets a decision made with the previous
+ * policies. The first of the requests leads and requests the decision, and the others wait for its result.
+ */
+public class DecisionCoalescer {
+
+    private final ConcurrentMap<FlightKey, Flight> flights = new ConcurrentHashMap<>();
+    private final PolicyEpoch policyEpoch;
+
+    /**
+     * @param policyEpoch epochs of the policy invalidations, or null if policies are never invalidated
+     */
+    public DecisionCoalescer(PolicyEpoch policyEpoch) {
+
+        this.policyEpoch = policyEpoch;
+    }
+
+    /**
+     * Creates the flight of a request, which is led by the caller unless an identical request is in flight already.
+     *
+     * @param data the request
+     */
+    public Flight newFlight(RequestMetadata data) {
+
+        long minimumEpoch = policyEpoch != null ? policyEpoch.getMinimumEpoch(data.getApiContext()) : 0;
+        return new Flight(new FlightKey(data.getServerPayload(), minimumEpoch));
+    }
+
+    /**
+     * Joins the flight of an identical request, or starts the given flight if there is none.
+     *
+     * @param flight flight the caller completes with the decision if it leads
+     * @return the future of the leading request, or null if the caller leads. A leader must call
+     * {@link #land(Flight)} once it has the decision, or has failed.
+     */
+    public Future<Decision> join(Flight flight) {
+
+        return flights.putIfAbsent(flight.key, flight);
+    }
+
+    /**
+     * Ends the flight led by the caller. The requests waiting for it fail if it was not completed.
+     */
+    public void land(Flight flight) {
+
+        flights.remove(flight.key, flight);
+        flight.cancel();
+    }
+
+    /**
+     * The decision of a request in flight. The key is kept with the flight, so that the flight is ended even if the
+     * policies were invalidated meanwhile.
+     */
+    public static final class Flight extends BasicFuture<Decision> {
+
+        private final FlightKey key;
+
+        Flight(FlightKey key) {
+
+            super(null);
+            this.key = key;
+        }
+    }
+
+    private static final class FlightKey {
+
+        private final byte[] payload;
+        private final long minimumEpoch;
+        private final int hash;
+
+        FlightKey(byte[] payload, long minimumEpoch) {
+
+            this.payload = payload;
+            this.minimumEpoch = minimumEpoch;
+            this.hash = Arrays.hashCode(payload);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FlightKey)) {
+                return false;
+            }
+            FlightKey other = (FlightKey) o;
+            return minimumEpoch == other.minimumEpoch && hash == other.hash && Arrays.equals(payload, other.payload);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import org.apache.axis2.util.JavaUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of the responses of the OPA data API. The decision is read from the top level result while the
+ * response body is parsed, without building the body as a string or the result as a map. Other top level fields,
+ * such as the decision id and the metrics, and the fields of a package document other than the decision hints are
+ * skipped. The result is either the value of the allow rule or the package document of the API, and is interpreted
+ * in the same way as {@link org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils#getDecision}. A null
+ * result is handled in the same way as an unreachable server, while a response without a result is undefined.
+ * Malformed responses cause a {@link JsonSyntaxException}.
+ */
+public final class DecisionReader {
+
+    private static final Log log = LogFactory.getLog(DecisionReader.class);
+
+    private DecisionReader() {
+
+    }
+
+    /**
+     * Reads the decision from the response.
+     *
+     * @param content    body of the response, which is read up to the end of the top level object
+     * @param apiContext context of the API
+     * @return the decision, or null if the response has no result, which is the case when there is no policy
+     * @throws IOException if the body cannot be read
+     */
+    public static Decision read(InputStream content, String apiContext) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+        try {
+            Decision decision = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (SecurityHandlerConstants.JSON_KEY_RESULT.equals(reader.nextName())) {
+                    decision = readResult(reader, apiContext);
+                    if (decision == null) {
+                        decision = Decision.of(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
+                                .getDefaultActionIfServerNotReachable());
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return decision;
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads the decisions of a batch from the response of a batch rule, whose result is an array with the result of
+     * each request of the batch.
+     *
+     * @param content    body of the response, which is read up to the end of the top level object
+     * @param apiContext context of the API
+     * @return the decision of each request, which is null for an undefined result, or null if the batch rule is
+     * undefined
+     * @throws IOException if the body cannot be read
+     */
+    public static List<Decision> readBatch(InputStream content, String apiContext) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(content, StandardCharsets.UTF_8));
+        try {
+            List<Decision> decisions = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (SecurityHandlerConstants.JSON_KEY_RESULT.equals(reader.nextName())) {
+                    decisions = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        decisions.add(readResult(reader, apiContext));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return decisions;
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Reads the decision from the value of the allow rule or from the package document.
+     *
+     * @return the decision, or null if the result is null
+     */
+    private static Decision readResult(JsonReader reader, String apiContext) throws IOException {
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token != JsonToken.BEGIN_OBJECT) {
+            return Decision.of(JavaUtils.isTrueExplicitly(readScalar(reader)));
+        }
+        Object allow = null;
+        int ttlSeconds = Decision.DEFAULT_TTL;
+        boolean cacheable = true;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (SecurityHandlerConstants.JSON_KEY_ALLOW.equals(name)) {
+                allow = readScalar(reader);
+            } else if (SecurityHandlerConstants.JSON_KEY_TTL_SECONDS.equals(name)) {
+                Object ttl = readScalar(reader);
+                if (ttl instanceof Number) {
+                    ttlSeconds = Math.max(0, ((Number) ttl).intValue());
+                }
+            } else if (SecurityHandlerConstants.JSON_KEY_CACHEABLE.equals(name)) {
+                Object cacheableObject = readScalar(reader);
+                if (cacheableObject != null) {
+                    cacheable = JavaUtils.isTrueExplicitly(cacheableObject);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (allow == null) {
+            // A package without an allow rule is handled in the same way as a missing policy
+            if (log.isDebugEnabled()) {
+                log.debug("OPA Policy allow rule was not defined for the API " + apiContext);
+            }
+            return Decision.of(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
+                    .getDefaultActionIfPolicyNotFound());
+        }
+        return new Decision(JavaUtils.isTrueExplicitly(allow), ttlSeconds, cacheable);
+    }
+
+    /**
+     * Reads a scalar value as json-simple would parse it. Objects and arrays are skipped, and read as an empty
+     * string, which is neither true nor a number.
+     */
+    private static Object readScalar(JsonReader reader) throws IOException {
+
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                String number = reader.nextString();
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+                    try {
+                        return Long.valueOf(number);
+                    } catch (NumberFormatException e) {
+                        // Integers out of the range of a long are read as a double
+                    }
+                }
+                return Double.valueOf(number);
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return "";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequests;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * HTTP/2 client of the OPA server. Decision requests are multiplexed as streams over a single connection to each
+ * endpoint, which is negotiated through ALPN (h2) for https endpoints and opened with prior knowledge (h2c) for http
+ * endpoints. Requests and responses are adapted from and to the HttpClient 4 types used by {@link HttpDataPublisher},
+ * so that the request building and the response parsing are shared with the other transports.
+ */
+public class Http2Client implements Closeable {
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private final CloseableHttpAsyncClient httpClient;
+
+    /**
+     * Creates and starts the client.
+     *
+     * @param protocol                   service endpoint protocol. It can be http/https
+     * @param dataPublisherConfiguration DataPublisher Configurations
+     */
+    public Http2Client(String protocol, SecurityHandlerConfig.DataPublisherConfig dataPublisherConfiguration)
+            throws SecurityException {
+
+        int connectionTimeout = dataPublisherConfiguration.getConnectionTimeout();
+        //Socket timeout is set to 10 seconds addition to connection timeout.
+        H2AsyncClientBuilder builder = HttpAsyncClients.customHttp2()
+                .setH2Config(H2Config.custom().setPushEnabled(false).build())
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Runtime.getRuntime().availableProcessors()).build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(Timeout.ofSeconds(connectionTimeout))
+                        .setResponseTimeout(Timeout.ofSeconds(connectionTimeout + 10)).build());
+        if (SecurityHandlerConstants.HTTPS_PROTOCOL.equals(protocol)) {
+            try {
+                builder.setTlsStrategy(new DefaultClientTlsStrategy(SecurityUtils.getSSLContext(),
+                        SecurityUtils.getHostnameVerifier()));
+            } catch (Exception e) {
+                throw new SecurityException(e);
+            }
+        }
+        httpClient = builder.build();
+        httpClient.start();
+    }
+
+    /**
+     * Sends the request as a stream of the connection to its endpoint. The callback is called on an I/O thread of the
+     * client, with the response body buffered in memory.
+     */
+    public void execute(HttpPost request, final FutureCallback<HttpResponse> callback) {
+
+        SimpleHttpRequest http2Request = SimpleHttpRequests.post(request.getURI().toString());
+        for (Header header : request.getAllHeaders()) {
+            http2Request.setHeader(header.getName(), header.getValue());
+        }
+        try {
+            // Requests to the OPA server always carry a JSON payload
+            http2Request.setBody(EntityUtils.toByteArray(request.getEntity()), ContentType.APPLICATION_JSON);
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        httpClient.execute(http2Request, new org.apache.hc.core5.concurrent.FutureCallback<SimpleHttpResponse>() {
+
+            @Override
+            public void completed(SimpleHttpResponse http2Response) {
+
+                BasicHttpResponse response = new BasicHttpResponse(HTTP_2, http2Response.getCode(),
+                        http2Response.getReasonPhrase());
+                byte[] body = http2Response.getBodyBytes();
+                if (body != null) {
+                    response.setEntity(new ByteArrayEntity(body));
+                }
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+
+                callback.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+
+                callback.cancelled();
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        httpClient.close();
+    }
+}
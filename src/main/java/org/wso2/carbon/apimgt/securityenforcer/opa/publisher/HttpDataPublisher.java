@@ -16,23 +16,30 @@
 
 package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
 
-import org.apache.axis2.util.JavaUtils;
+import com.google.gson.JsonSyntaxException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.util.EntityUtils;
-import org.apache.openjpa.persistence.jest.JSON;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
@@ -49,6 +56,10 @@ public class HttpDataPublisher {
     private static final Log log = LogFactory.getLog(HttpDataPublisher.class);
 
     private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncHttpClient;
+    private Http2Client http2Client;
+    private UnixSocketConnectionSocketFactory unixSocketFactory;
+    private DecisionBatcher decisionBatcher;
     private String authToken;
     private String endPoint;
     private SecurityHandlerConfig securityHandlerConfig;
@@ -56,18 +67,37 @@ public class HttpDataPublisher {
     public HttpDataPublisher(SecurityHandlerConfig securityHandlerConfig) throws
             SecurityException {
 
+        SecurityHandlerConfig.ServerConfig serverConfig = securityHandlerConfig.getServerConfig();
         String protocol;
-        try {
-            protocol = new URL(securityHandlerConfig.getServerConfig().getEndPoint()).getProtocol();
-        } catch (MalformedURLException e) {
-            log.error("Error when getting the OPA Server endpoint protocol", e);
-            throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE,
-                    e);
+        if (SecurityHandlerConfig.ServerConfig.isUnixSocketEndPoint(serverConfig.getEndPoint())) {
+            protocol = SecurityHandlerConstants.UNIX_SOCKET_PROTOCOL;
+        } else {
+            try {
+                protocol = new URL(serverConfig.getEndPoint()).getProtocol();
+            } catch (MalformedURLException e) {
+                log.error("Error when getting the OPA Server endpoint protocol", e);
+                throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE,
+                        e);
+            }
+        }
+        if (serverConfig.isUnixSocketEndPointUsed()) {
+            unixSocketFactory = new UnixSocketConnectionSocketFactory(serverConfig.getEndPoint(),
+                    serverConfig.getBackupServerEndPoint());
+        }
+        httpClient = SecurityUtils.getHttpClient(protocol, securityHandlerConfig.getDataPublisherConfig(),
+                unixSocketFactory);
+        if (securityHandlerConfig.getDataPublisherConfig().isHttp2Transport()) {
+            http2Client = new Http2Client(protocol, securityHandlerConfig.getDataPublisherConfig());
+        } else if (securityHandlerConfig.getDataPublisherConfig().isNonBlockingTransport()) {
+            asyncHttpClient = SecurityUtils.getAsyncHttpClient(protocol,
+                    securityHandlerConfig.getDataPublisherConfig());
         }
-        httpClient = SecurityUtils.getHttpClient(protocol, securityHandlerConfig.getDataPublisherConfig());
         setAuthToken(securityHandlerConfig.getServerConfig().getAuthToken());
         setEndPoint(securityHandlerConfig.getServerConfig().getEndPoint());
         this.securityHandlerConfig = securityHandlerConfig;
+        if (securityHandlerConfig.getDataPublisherConfig().isBatchingEnabled()) {
+            decisionBatcher = new DecisionBatcher(this, securityHandlerConfig);
+        }
     }
 
     public HttpDataPublisher(String endPoint, String authToken) {
@@ -76,70 +106,24 @@ public class HttpDataPublisher {
         setEndPoint(endPoint);
     }
 
-    public boolean publish(JSONObject data, String correlationID) {
+    /**
+     * Sends the request meta data to the OPA server and returns its decision. If the policy package document is
+     * queried, the TTL and cacheable hints returned along with the allow rule are added to the decision.
+     */
+    public Decision publish(RequestMetadata data, String correlationID) {
 
         String localEndPoint = endPoint;
-        JSONObject serverRequestPayload = (JSONObject) data.get(SecurityHandlerConstants.SERVER_PAYLOAD_KEY_NAME);
-        String apiContext = (String) data.get(SecurityHandlerConstants.JSON_KEY_API_CONTEXT);
-        String validationEndpoint = endPoint + "/" + apiContext + SecurityHandlerConstants.ALLOW_RULE;
-        HttpPost postRequest = new HttpPost(validationEndpoint);
-        postRequest.addHeader(SecurityHandlerConstants.AUTH_TOKEN_HEADER, authToken);
-        postRequest.addHeader("Content-type", "application/json");
-
-        if (log.isDebugEnabled()){
-            log.debug("Request endpoint is " + validationEndpoint + " and request payload " + serverRequestPayload.toString());
-
-        }
+        HttpPost postRequest = createRequest(localEndPoint, data);
 
         CloseableHttpResponse response = null;
-        int serverResponseCode;
-        boolean serverResponse = securityHandlerConfig.getDefaultActionIfServerNotReachable();
+        Decision serverResponse = Decision.of(securityHandlerConfig.getDefaultActionIfServerNotReachable());
         try {
-            postRequest.setEntity(new StringEntity(serverRequestPayload.toString()));
             long publishingStartTime = System.nanoTime();
             response = httpClient.execute(postRequest);
             long publishingEndTime = System.nanoTime();
 
             if (response != null) {
-                serverResponseCode = response.getStatusLine().getStatusCode();
-                switch (serverResponseCode) {
-                    case SecurityHandlerConstants.SERVER_RESPONSE_BAD_REQUEST:
-                        log.error("Incorrect JSON format sent for the server from the request " + correlationID);
-                        break;
-                    case SecurityHandlerConstants.SERVER_RESPONSE_SERVER_ERROR:
-                        if (log.isDebugEnabled()) {
-                            log.debug("OPA Server error code sent for the request " + correlationID);
-                        }
-                        break;
-                    case SecurityHandlerConstants.SERVER_RESPONSE_CODE_SUCCESS:
-                        HttpEntity entity = response.getEntity();
-                        String responseString = EntityUtils.toString(entity, "UTF-8");
-                        if (log.isDebugEnabled()) {
-                            log.debug("OPA Server Response for for the request " + correlationID
-                                    + " was " + responseString);
-                        }
-                        if (responseString.equals("{}")) {
-                            //The policy for this API has not been created at the OPA server. Request will be sent to
-                            // backend without validation
-                            if (log.isDebugEnabled()) {
-                                log.debug("OPA Policy was not defined for the API " + apiContext);
-                            }
-                            serverResponse = securityHandlerConfig.getDefaultActionIfPolicyNotFound();
-                        } else {
-                            JSONParser parser = new JSONParser();
-                            try {
-                                JSONObject responseObject = (JSONObject) parser.parse(responseString);
-                                Object resultObject = responseObject.get("result");
-                                if (resultObject != null) {
-                                    serverResponse = JavaUtils.isTrueExplicitly(resultObject);
-                                }
-                            } catch (ParseException e) {
-                                log.error("Parsing exception for response " + correlationID);
-                            }
-                        }
-                        break;
-                }
-
+                serverResponse = readDecision(response, data.getApiContext(), correlationID);
                 if (log.isDebugEnabled()) {
                     log.debug("OPA Server connection time for the request " + correlationID + " in nano seconds is "
                             + (publishingEndTime - publishingStartTime));
@@ -149,8 +133,7 @@ public class HttpDataPublisher {
             }
         } catch (Exception ex) {
             log.error("Error sending the HTTP Request with id " + correlationID, ex);
-            securityHandlerConfig.getServerConfig().shiftEndpoint(localEndPoint);
-            endPoint = securityHandlerConfig.getServerConfig().getEndPoint();
+            shiftEndpoint(localEndPoint);
         } finally {
             if (response != null) {
                 try {
@@ -163,6 +146,236 @@ public class HttpDataPublisher {
         return serverResponse;
     }
 
+    /**
+     * Sends the request meta data to the OPA server through the non-blocking or the HTTP/2 client. The calling thread
+     * only serializes the request, and the returned future is completed by an I/O thread of the client once the
+     * decision is read. The callback is called on that I/O thread, hence it must not block. The future always
+     * completes with a decision, since failures are handled in the same way as
+     * {@link #publish(RequestMetadata, String)}. If batching is enabled, the request is added to the pending batch
+     * of its API instead, and the future is completed once the decisions of the batch are read.
+     *
+     * @param callback called with the decision, or null
+     */
+    public Future<Decision> publishNonBlocking(RequestMetadata data, final String correlationID,
+                                               FutureCallback<Decision> callback) {
+
+        if (decisionBatcher != null) {
+            return decisionBatcher.submit(data, correlationID, callback);
+        }
+        final String localEndPoint = endPoint;
+        final String apiContext = data.getApiContext();
+        final BasicFuture<Decision> result = new BasicFuture<>(callback);
+        HttpPost postRequest = createRequest(localEndPoint, data);
+        final long publishingStartTime = System.nanoTime();
+        FutureCallback<HttpResponse> responseCallback = new FutureCallback<HttpResponse>() {
+
+            @Override
+            public void completed(HttpResponse response) {
+
+                Decision serverResponse;
+                try {
+                    serverResponse = readDecision(response, apiContext, correlationID);
+                } catch (IOException e) {
+                    failed(e);
+                    return;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("OPA Server connection time for the request " + correlationID + " in nano seconds is "
+                            + (System.nanoTime() - publishingStartTime));
+                }
+                result.completed(serverResponse);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+
+                log.error("Error sending the HTTP Request with id " + correlationID, ex);
+                shiftEndpoint(localEndPoint);
+                result.completed(Decision.of(securityHandlerConfig.getDefaultActionIfServerNotReachable()));
+            }
+
+            @Override
+            public void cancelled() {
+
+                result.completed(Decision.of(securityHandlerConfig.getDefaultActionIfServerNotReachable()));
+            }
+        };
+        if (http2Client != null) {
+            http2Client.execute(postRequest, responseCallback);
+        } else {
+            asyncHttpClient.execute(postRequest, responseCallback);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a batch of decision requests to the batch rule of the API. The callback is called with the response on
+     * the calling thread for the blocking transport, or on an I/O thread of the client otherwise, and the response is
+     * closed once the callback returns.
+     *
+     * @param apiContext context of the API
+     * @param payload    request body holding the inputs of the batch
+     * @param batchName  name of the batch used in the logs
+     */
+    void publishBatch(String apiContext, byte[] payload, final String batchName,
+                      final FutureCallback<HttpResponse> callback) {
+
+        final String localEndPoint = endPoint;
+        String batchEndPoint = getHttpEndPoint(localEndPoint) + "/" + apiContext + "/"
+                + securityHandlerConfig.getDataPublisherConfig().getBatchRule();
+        HttpPost postRequest = new HttpPost(batchEndPoint);
+        postRequest.addHeader(SecurityHandlerConstants.AUTH_TOKEN_HEADER, authToken);
+        postRequest.setEntity(new ByteArrayEntity(payload, ContentType.APPLICATION_JSON));
+        if (log.isDebugEnabled()) {
+            log.debug("Sending the " + batchName + " to " + batchEndPoint);
+        }
+        if (http2Client != null || asyncHttpClient != null) {
+            FutureCallback<HttpResponse> responseCallback = new FutureCallback<HttpResponse>() {
+
+                @Override
+                public void completed(HttpResponse response) {
+
+                    callback.completed(response);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+
+                    log.error("Error sending the HTTP Request of the " + batchName, ex);
+                    shiftEndpoint(localEndPoint);
+                    callback.failed(ex);
+                }
+
+                @Override
+                public void cancelled() {
+
+                    callback.cancelled();
+                }
+            };
+            if (http2Client != null) {
+                http2Client.execute(postRequest, responseCallback);
+            } else {
+                asyncHttpClient.execute(postRequest, responseCallback);
+            }
+            return;
+        }
+        CloseableHttpResponse response;
+        try {
+            response = httpClient.execute(postRequest);
+        } catch (IOException e) {
+            log.error("Error sending the HTTP Request of the " + batchName, e);
+            shiftEndpoint(localEndPoint);
+            callback.failed(e);
+            return;
+        }
+        try {
+            callback.completed(response);
+        } finally {
+            try {
+                response.close();
+            } catch (IOException e) {
+                log.error("Error when closing the response of the " + batchName, e);
+            }
+        }
+    }
+
+    /**
+     * Returns true if decisions are requested through the non-blocking or the HTTP/2 client, or in batches. The
+     * decisions are then returned through {@link #publishNonBlocking(RequestMetadata, String, FutureCallback)}.
+     */
+    public boolean isNonBlocking() {
+
+        return asyncHttpClient != null || http2Client != null || decisionBatcher != null;
+    }
+
+    /**
+     * Returns the HTTP URL the requests to the given OPA server endpoint are sent to, which differs from the endpoint
+     * for Unix domain socket endpoints.
+     */
+    public String getHttpEndPoint(String endPoint) {
+
+        return unixSocketFactory != null ? unixSocketFactory.getHttpEndPoint(endPoint) : endPoint;
+    }
+
+    private HttpPost createRequest(String localEndPoint, RequestMetadata data) {
+
+        byte[] serverRequestPayload = data.getServerPayload();
+        String validationEndpoint = getHttpEndPoint(localEndPoint) + "/" + data.getApiContext();
+        if (!securityHandlerConfig.getServerConfig().isQueryPolicyPackage()) {
+            validationEndpoint = validationEndpoint + SecurityHandlerConstants.ALLOW_RULE;
+        }
+        HttpPost postRequest = new HttpPost(validationEndpoint);
+        postRequest.addHeader(SecurityHandlerConstants.AUTH_TOKEN_HEADER, authToken);
+
+        if (log.isDebugEnabled()){
+            log.debug("Request endpoint is " + validationEndpoint + " and request payload "
+                    + new String(serverRequestPayload, StandardCharsets.UTF_8));
+
+        }
+        postRequest.setEntity(new ByteArrayEntity(serverRequestPayload, ContentType.APPLICATION_JSON));
+        return postRequest;
+    }
+
+    /**
+     * Reads the decision from the response of the OPA server. Responses other than a success, and responses which
+     * cannot be parsed, are handled in the same way as an unreachable server.
+     *
+     * @throws IOException if the body of the response cannot be received
+     */
+    private Decision readDecision(HttpResponse response, String apiContext, String correlationID)
+            throws IOException {
+
+        Decision serverResponse = Decision.of(securityHandlerConfig.getDefaultActionIfServerNotReachable());
+        int serverResponseCode = response.getStatusLine().getStatusCode();
+        switch (serverResponseCode) {
+            case SecurityHandlerConstants.SERVER_RESPONSE_BAD_REQUEST:
+                log.error("Incorrect JSON format sent for the server from the request " + correlationID);
+                break;
+            case SecurityHandlerConstants.SERVER_RESPONSE_SERVER_ERROR:
+                if (log.isDebugEnabled()) {
+                    log.debug("OPA Server error code sent for the request " + correlationID);
+                }
+                break;
+            case SecurityHandlerConstants.SERVER_RESPONSE_CODE_SUCCESS:
+                HttpEntity entity = response.getEntity();
+                InputStream content;
+                if (log.isDebugEnabled()) {
+                    byte[] responseBytes = EntityUtils.toByteArray(entity);
+                    log.debug("OPA Server Response for for the request " + correlationID
+                            + " was " + new String(responseBytes, StandardCharsets.UTF_8));
+                    content = new ByteArrayInputStream(responseBytes);
+                } else {
+                    content = entity.getContent();
+                }
+                try {
+                    Decision decision = DecisionReader.read(content, apiContext);
+                    if (decision == null) {
+                        //The policy for this API has not been created at the OPA server. Request will be sent to
+                        // backend without validation
+                        if (log.isDebugEnabled()) {
+                            log.debug("OPA Policy was not defined for the API " + apiContext);
+                        }
+                        serverResponse = Decision.of(securityHandlerConfig.getDefaultActionIfPolicyNotFound());
+                    } else {
+                        serverResponse = decision;
+                    }
+                } catch (JsonSyntaxException | IOException e) {
+                    // The server is reachable, hence a response which cannot be parsed does not shift the endpoint
+                    log.error("Parsing exception for response " + correlationID, e);
+                } finally {
+                    content.close();
+                }
+                break;
+        }
+        return serverResponse;
+    }
+
+    private void shiftEndpoint(String failedEndPoint) {
+
+        securityHandlerConfig.getServerConfig().shiftEndpoint(failedEndPoint);
+        endPoint = securityHandlerConfig.getServerConfig().getEndPoint();
+    }
+
     private void setAuthToken(String authToken) {
 
         this.authToken = authToken;
@@ -183,4 +396,19 @@ public class HttpDataPublisher {
         this.httpClient = httpClient;
     }
 
+    public CloseableHttpAsyncClient getAsyncHttpClient() {
+
+        return asyncHttpClient;
+    }
+
+    public Http2Client getHttp2Client() {
+
+        return http2Client;
+    }
+
+    public DecisionBatcher getDecisionBatcher() {
+
+        return decisionBatcher;
+    }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the API contexts which have a policy at the OPA server. The policies are listed through the policy API
+ * of the OPA server when the registry starts and at a fixed interval afterwards. The handler applies the default
+ * action for a missing policy to the requests to the other APIs without calling the OPA server. Until the policies
+ * are listed for the first time, every API is considered to have a policy.
+ */
+public class PolicyRegistry {
+
+    private static final Log log = LogFactory.getLog(PolicyRegistry.class);
+
+    private final HttpDataPublisher httpDataPublisher;
+    private final SecurityHandlerConfig.ServerConfig serverConfig;
+    private ScheduledExecutorService scheduler;
+    // Contexts having a policy, or null until the policies are listed
+    private volatile Set<String> guardedContexts;
+
+    public PolicyRegistry(HttpDataPublisher httpDataPublisher, SecurityHandlerConfig.ServerConfig serverConfig) {
+
+        this.httpDataPublisher = httpDataPublisher;
+        this.serverConfig = serverConfig;
+    }
+
+    /**
+     * Lists the policies in the background now and at the given interval.
+     *
+     * @param intervalSeconds interval in seconds between two listings
+     */
+    public void start(long intervalSeconds) {
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "OPA-Policy-Registry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    log.error("Error while listing the policies of the OPA server", e);
+                }
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns true if the policies were listed and none of them is the policy of the API context.
+     */
+    public boolean isPolicyMissing(String apiContext) {
+
+        Set<String> contexts = guardedContexts;
+        return contexts != null && !contexts.contains(apiContext);
+    }
+
+    /**
+     * Lists the policies of the OPA server. The contexts found by the previous listing are kept if the policies
+     * cannot be listed.
+     */
+    void refresh() {
+
+        String endPoint = httpDataPublisher.getHttpEndPoint(serverConfig.getEndPoint());
+        int dataPathIndex = endPoint.indexOf(SecurityHandlerConstants.OPA_DATA_API_PATH);
+        if (dataPathIndex < 0) {
+            log.error("OPA policies cannot be listed, since the OPA server endpoint " + endPoint
+                    + " is not under the data API");
+            return;
+        }
+        // Policies of the APIs are in the packages below the document the endpoint points to
+        List<String> packagePrefix = new ArrayList<>();
+        for (String segment : endPoint.substring(dataPathIndex + SecurityHandlerConstants.OPA_DATA_API_PATH.length())
+                .split("/")) {
+            if (!segment.isEmpty()) {
+                packagePrefix.add(segment);
+            }
+        }
+        HttpGet getRequest = new HttpGet(endPoint.substring(0, dataPathIndex)
+                + SecurityHandlerConstants.OPA_POLICIES_API_PATH);
+        getRequest.addHeader(SecurityHandlerConstants.AUTH_TOKEN_HEADER, serverConfig.getAuthToken());
+        try (CloseableHttpResponse response = httpDataPublisher.getHttpClient().execute(getRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != SecurityHandlerConstants.SERVER_RESPONSE_CODE_SUCCESS) {
+                log.error("OPA server responded with " + statusCode + " when listing the policies");
+                return;
+            }
+            String responseString = EntityUtils.toString(response.getEntity(), "UTF-8");
+            JSONObject responseObject = (JSONObject) new JSONParser().parse(responseString);
+            Set<String> contexts = getGuardedContexts(responseObject, packagePrefix);
+            if (log.isDebugEnabled() && !contexts.equals(guardedContexts)) {
+                log.debug("API contexts with an OPA policy: " + contexts);
+            }
+            guardedContexts = contexts;
+        } catch (IOException | ParseException | ClassCastException e) {
+            log.error("Error while listing the policies of the OPA server", e);
+        }
+    }
+
+    /**
+     * Returns the API contexts of the packages of the listed policies. The package data.a.b.pizzashack is the policy
+     * of the pizzashack context if the endpoint is /v1/data/a/b.
+     */
+    private static Set<String> getGuardedContexts(JSONObject responseObject, List<String> packagePrefix) {
+
+        Set<String> contexts = new HashSet<>();
+        Object result = responseObject.get(SecurityHandlerConstants.JSON_KEY_RESULT);
+        if (!(result instanceof JSONArray)) {
+            return contexts;
+        }
+        for (Object module : (JSONArray) result) {
+            JSONObject ast = (JSONObject) ((JSONObject) module).get("ast");
+            JSONObject packageObject = ast != null ? (JSONObject) ast.get("package") : null;
+            JSONArray path = packageObject != null ? (JSONArray) packageObject.get("path") : null;
+            // The first term of the path is the data document
+            if (path == null || path.size() < packagePrefix.size() + 2) {
+                continue;
+            }
+            boolean underPrefix = true;
+            for (int i = 0; i < packagePrefix.size() && underPrefix; i++) {
+                underPrefix = packagePrefix.get(i).equals(getTermValue(path.get(i + 1)));
+            }
+            Object context = getTermValue(path.get(packagePrefix.size() + 1));
+            if (underPrefix && context != null) {
+                contexts.add(context.toString());
+            }
+        }
+        return Collections.unmodifiableSet(contexts);
+    }
+
+    private static Object getTermValue(Object term) {
+
+        return term instanceof JSONObject ? ((JSONObject) term).get("value") : null;
+    }
+}
@@ -16,7 +16,7 @@
 
 package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
 
-import org.json.simple.JSONObject;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
 
 /**
@@ -39,6 +39,6 @@ public interface Publisher {
      * this returns through without considering the OPA Server response)
      * @throws SecurityException If an request failure or some other error occurs
      */
-    boolean verifyRequest(JSONObject requestMetaData, String correlationID) throws SecurityException;
+    boolean verifyRequest(RequestMetadata requestMetaData, String correlationID) throws SecurityException;
 
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Depth of the publisher queues, the number of async requests in flight on the non-blocking client and the number of
+ * events shed once they are full. The publishers register their executors here when they are created, and count the
+ * requests they send and the events they drop.
+ */
+public class PublisherQueueStats implements PublisherQueueStatsMBean {
+
+    private volatile ExecutorService asyncExecutor;
+    private volatile ExecutorService syncExecutor;
+    private final AtomicInteger asyncInFlightRequests = new AtomicInteger();
+    private final AtomicLong droppedCacheMissEvents = new AtomicLong();
+    private final AtomicLong droppedRefreshEvents = new AtomicLong();
+    private final AtomicLong rejectedSyncRequests = new AtomicLong();
+
+    public void setAsyncExecutor(ExecutorService asyncExecutor) {
+
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public void setSyncExecutor(ExecutorService syncExecutor) {
+
+        this.syncExecutor = syncExecutor;
+    }
+
+    /**
+     * Counts an async request sent through the non-blocking client.
+     */
+    public void asyncRequestStarted() {
+
+        asyncInFlightRequests.incrementAndGet();
+    }
+
+    /**
+     * Counts an async request of the non-blocking client which got its decision, failed or was cancelled.
+     */
+    public void asyncRequestEnded() {
+
+        asyncInFlightRequests.decrementAndGet();
+    }
+
+    /**
+     * Counts an event dropped from the async queue or the requests in flight.
+     *
+     * @param refresh whether the event was refreshing a cached response
+     */
+    public void eventDropped(boolean refresh) {
+
+        if (refresh) {
+            droppedRefreshEvents.incrementAndGet();
+        } else {
+            droppedCacheMissEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a request rejected by the sync queue.
+     */
+    public void syncRequestRejected() {
+
+        rejectedSyncRequests.incrementAndGet();
+    }
+
+    @Override
+    public int getAsyncQueueDepth() {
+
+        return getQueueDepth(asyncExecutor);
+    }
+
+    @Override
+    public int getSyncQueueDepth() {
+
+        return getQueueDepth(syncExecutor);
+    }
+
+    @Override
+    public int getAsyncInFlightRequests() {
+
+        return asyncInFlightRequests.get();
+    }
+
+    @Override
+    public long getDroppedCacheMissEvents() {
+
+        return droppedCacheMissEvents.get();
+    }
+
+    @Override
+    public long getDroppedRefreshEvents() {
+
+        return droppedRefreshEvents.get();
+    }
+
+    @Override
+    public long getRejectedSyncRequests() {
+
+        return rejectedSyncRequests.get();
+    }
+
+    private int getQueueDepth(ExecutorService executor) {
+
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        } else if (executor instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) executor).getQueuedTasks();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+/**
+ * JMX interface of {@link PublisherQueueStats}, used to watch the queues of the publishers under load.
+ */
+public interface PublisherQueueStatsMBean {
+
+    /**
+     * Returns the number of events waiting in the queue of the async publisher.
+     */
+    int getAsyncQueueDepth();
+
+    /**
+     * Returns the number of requests waiting in the queue of the sync publisher.
+     */
+    int getSyncQueueDepth();
+
+    /**
+     * Returns the number of async requests in flight on the non-blocking client, which are bounded by the queue
+     * capacity as well.
+     */
+    int getAsyncInFlightRequests();
+
+    /**
+     * Returns the number of events of requests with no cached response which were dropped as the async queue or the
+     * in-flight limit was full.
+     */
+    long getDroppedCacheMissEvents();
+
+    /**
+     * Returns the number of events refreshing cached responses which were dropped as the async queue or the in-flight
+     * limit was full.
+     */
+    long getDroppedRefreshEvents();
+
+    /**
+     * Returns the number of requests which got the default action of an unreachable server as the sync queue was
+     * full.
+     */
+    long getRejectedSyncRequests();
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Connects the HTTP client to OPA servers listening on a Unix domain socket, such as an OPA sidecar on the gateway
+ * host. An endpoint is given as unix:///path/opa.sock, optionally followed by the path of the data API as in
+ * unix:///path/opa.sock:/v1/data/apim, and the data API path is /v1/data if it is not given.
+ * <p>
+ * Each socket is given a host name, and its endpoint is rewritten to an HTTP URL of the unix scheme with that host
+ * name, which the connection manager routes to this factory. Connections to each socket are pooled on their own
+ * route, hence the primary and the backup endpoints can be two sockets, or a socket and a TCP endpoint. The host
+ * names resolve to the loopback address, since the connection manager resolves the host before connecting.
+ */
+public class UnixSocketConnectionSocketFactory implements ConnectionSocketFactory, DnsResolver {
+
+    private static final String HOST_NAME_PREFIX = "opa-unix-socket-";
+    // Explicit port of the rewritten endpoints, since the unix scheme has no default port
+    private static final int PORT = 80;
+
+    private final Map<String, File> socketFiles = new HashMap<>();
+    private final Map<String, String> httpEndPoints = new HashMap<>();
+
+    /**
+     * Creates the factory for the Unix domain socket endpoints among the given endpoints.
+     */
+    public UnixSocketConnectionSocketFactory(String... endPoints) {
+
+        for (String endPoint : endPoints) {
+            if (SecurityHandlerConfig.ServerConfig.isUnixSocketEndPoint(endPoint)
+                    && !httpEndPoints.containsKey(endPoint)) {
+                String address = endPoint.substring(SecurityHandlerConstants.UNIX_SOCKET_URI_PREFIX.length());
+                String socketPath = address;
+                String dataApiPath = SecurityHandlerConstants.OPA_DATA_API_PATH;
+                int pathIndex = address.indexOf(":/");
+                if (pathIndex >= 0) {
+                    socketPath = address.substring(0, pathIndex);
+                    dataApiPath = address.substring(pathIndex + 1);
+                }
+                String hostName = HOST_NAME_PREFIX + socketFiles.size();
+                socketFiles.put(hostName, new File(socketPath));
+                httpEndPoints.put(endPoint, SecurityHandlerConstants.UNIX_SOCKET_PROTOCOL + "://" + hostName + ":"
+                        + PORT + dataApiPath);
+            }
+        }
+    }
+
+    /**
+     * Returns the HTTP URL the requests to the endpoint are sent to. Endpoints other than the Unix domain socket
+     * endpoints of the factory are returned as they are.
+     */
+    public String getHttpEndPoint(String endPoint) {
+
+        String httpEndPoint = httpEndPoints.get(endPoint);
+        return httpEndPoint != null ? httpEndPoint : endPoint;
+    }
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+
+        return AFUNIXSocket.newInstance();
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                InetSocketAddress localAddress, HttpContext context) throws IOException {
+
+        File socketFile = socketFiles.get(host.getHostName());
+        if (socketFile == null) {
+            throw new UnknownHostException("No Unix domain socket is configured for " + host);
+        }
+        Socket unixSocket = socket != null ? socket : createSocket(context);
+        try {
+            unixSocket.connect(new AFUNIXSocketAddress(socketFile), connectTimeout);
+        } catch (IOException e) {
+            unixSocket.close();
+            throw e;
+        }
+        return unixSocket;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+
+        if (socketFiles.containsKey(host)) {
+            return new InetAddress[]{InetAddress.getLoopbackAddress()};
+        }
+        return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+    }
+}
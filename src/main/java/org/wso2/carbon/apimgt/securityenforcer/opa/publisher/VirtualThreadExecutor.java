@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor which runs each task on a new virtual thread, so that tasks blocked on the OPA server do not hold a
+ * platform thread and its stack. At most a fixed number of tasks run at a time, and the other tasks wait for a permit
+ * on their own virtual thread, hence submitting a task never blocks. Tasks are rejected once the number of waiting
+ * tasks reaches the queue capacity, if there is one. Virtual threads are available from Java 21, and are created
+ * through reflection since the bundle also runs on older runtimes.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private static final Log log = LogFactory.getLog(VirtualThreadExecutor.class);
+
+    private final ThreadFactory threadFactory;
+    private final Semaphore permits;
+    private final int queueCapacity;
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    private final Object lock = new Object();
+    private int activeTasks;
+    private boolean shutdown;
+
+    private VirtualThreadExecutor(ThreadFactory threadFactory, int concurrency, int queueCapacity) {
+
+        this.threadFactory = threadFactory;
+        this.permits = new Semaphore(concurrency);
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Creates the executor.
+     *
+     * @param namePrefix    prefix of the names of the threads, which are numbered
+     * @param concurrency   maximum number of tasks running at a time
+     * @param queueCapacity maximum number of tasks waiting to run, or 0 for no limit
+     * @return the executor, or null if the runtime does not support virtual threads
+     */
+    public static VirtualThreadExecutor create(String namePrefix, int concurrency, int queueCapacity) {
+
+        ThreadFactory threadFactory;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix, 0L);
+            threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not supported by the Java runtime. A thread pool is used instead.");
+            return null;
+        }
+        return new VirtualThreadExecutor(threadFactory, concurrency, queueCapacity);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor of " + command + " has been shut down");
+            }
+            if (queueCapacity > 0 && queuedTasks.get() >= queueCapacity) {
+                throw new RejectedExecutionException("Queue of the executor of " + command + " is full");
+            }
+            activeTasks++;
+            queuedTasks.incrementAndGet();
+        }
+        Thread thread = threadFactory.newThread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    permits.acquireUninterruptibly();
+                    queuedTasks.decrementAndGet();
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                } finally {
+                    taskDone();
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Returns the number of tasks waiting to run.
+     */
+    public int getQueuedTasks() {
+
+        return queuedTasks.get();
+    }
+
+    private void taskDone() {
+
+        synchronized (lock) {
+            activeTasks--;
+            if (activeTasks == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+
+        synchronized (lock) {
+            shutdown = true;
+        }
+    }
+
+    /**
+     * Shuts the executor down. Tasks which have started are left to complete, since their threads are not tracked.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+
+        shutdown();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+
+        synchronized (lock) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+
+        synchronized (lock) {
+            return shutdown && activeTasks == 0;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (!shutdown || activeTasks > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -18,24 +18,44 @@ package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.JSONObject;
+import org.apache.http.concurrent.FutureCallback;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.Publisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PublisherQueueStats;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.VirtualThreadExecutor;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 import org.wso2.carbon.context.PrivilegedCarbonContext;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AsyncPublisher implements Publisher {
 
     private static final Log log = LogFactory.getLog(AsyncPublisher.class);
 
-    private static AsyncPublisherThreadPool asyncPublisherThreadPool;
-    private ThreadPoolExecutor asyncExecutor;
+    private ExecutorService asyncExecutor;
+    private PublisherQueueStats publisherQueueStats;
+    private OverflowHandler overflowHandler;
+    // Bounds the requests in flight on the non-blocking client by the queue capacity, or null if it is unbounded
+    private Semaphore inFlightPermits;
+    // Requests in flight on the non-blocking client, oldest first, which are cancelled to shed load
+    private final Queue<DecisionCallback> inFlightRequests = new ConcurrentLinkedQueue<>();
 
     /**
      * This method will initialize DataPublisher. Inside this we will start executor and initialize
@@ -45,82 +65,274 @@ public class AsyncPublisher implements Publisher {
 
         SecurityHandlerConfig.ThreadPoolExecutorConfig threadPoolExecutorConfig = ServiceReferenceHolder.getInstance()
                 .getSecurityHandlerConfig().getThreadPoolExecutorConfig();
-        asyncPublisherThreadPool = AsyncPublisherThreadPool.getInstance();
-        asyncExecutor = new AsyncPublisherThreadPoolExecutor(threadPoolExecutorConfig.getCorePoolSize(),
-                threadPoolExecutorConfig.getMaximumPoolSize(), threadPoolExecutorConfig.getKeepAliveTime(),
-                TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
-
-        });
+        publisherQueueStats = ServiceReferenceHolder.getInstance().getPublisherQueueStats();
+        int queueCapacity = threadPoolExecutorConfig.getQueueCapacity();
+        overflowHandler = new OverflowHandler(threadPoolExecutorConfig);
+        if (queueCapacity > 0) {
+            inFlightPermits = new Semaphore(queueCapacity);
+        }
+        if (threadPoolExecutorConfig.isVirtualThreads()) {
+            asyncExecutor = VirtualThreadExecutor.create("OPA-Async-Publisher-",
+                    threadPoolExecutorConfig.getVirtualThreadConcurrency(), queueCapacity);
+        }
+        if (asyncExecutor == null) {
+            LinkedBlockingDeque<Runnable> workQueue = queueCapacity > 0
+                    ? new LinkedBlockingDeque<Runnable>(queueCapacity) : new LinkedBlockingDeque<Runnable>();
+            asyncExecutor = new AsyncPublisherThreadPoolExecutor(threadPoolExecutorConfig.getCorePoolSize(),
+                    threadPoolExecutorConfig.getMaximumPoolSize(), threadPoolExecutorConfig.getKeepAliveTime(),
+                    TimeUnit.SECONDS, workQueue, overflowHandler);
+        }
+        if (publisherQueueStats != null) {
+            publisherQueueStats.setAsyncExecutor(asyncExecutor);
+        }
         log.info("Async publisher instance created for OPA Security Handler");
     }
 
     /**
      * This method used to pass requestBody and let it run within separate asynchronous thread.
      *
-     * @param requestBody   is the json with the extracted details of the original request.
+     * @param requestBody   is the meta data extracted of the original request.
      * @param correlationID is the String with the xCorrelation ID.
+     * @param refresh       is whether the event refreshes a cached response. Events of requests with no cached
+     *                      response and refresh events are shed with their own policy once the queue is full.
      */
-    public void publishAsyncEvent(JSONObject requestBody, String correlationID)
+    public void publishAsyncEvent(RequestMetadata requestBody, String correlationID, boolean refresh)
             throws SecurityException {
 
-        if (asyncPublisherThreadPool != null) {
-            AsyncPublishingAgent agent;
-            try {
-                agent = asyncPublisherThreadPool.get();
-            } catch (Exception e) {
-                log.error("Error when borrowing an agent from asyncPublisherThreadPool", e);
-                throw new SecurityException(SecurityException.HANDLER_ERROR,
-                        SecurityException.HANDLER_ERROR_MESSAGE, e);
+        HttpDataPublisher httpDataPublisher = ServiceReferenceHolder.getInstance().getHttpDataPublisher();
+        if (httpDataPublisher == null) {
+            log.error("HttpDataPublisher not initialized");
+            throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE);
+        }
+        // The gateway thread continues with the message context once the event is queued. Therefore the OPA
+        // payload is created before handing the request over to the async thread.
+        requestBody.getServerPayload();
+        String tenantDomain = PrivilegedCarbonContext.getThreadLocalCarbonContext().getTenantDomain();
+        AsyncPublishingAgent agent = new AsyncPublishingAgent(httpDataPublisher, requestBody, correlationID,
+                tenantDomain, refresh);
+        if (log.isDebugEnabled()) {
+            log.debug("Async call executed for the id " + correlationID);
+        }
+        if (httpDataPublisher.isNonBlocking()) {
+            // No thread of the pool is held while the decision is requested. The agent only updates the caches
+            // once the decision is read by the non-blocking client.
+            publishNonBlocking(httpDataPublisher, requestBody, agent);
+        } else {
+            dispatch(agent);
+        }
+    }
+
+    /**
+     * Requests the decision through the non-blocking client. Requests in flight are not queued by the executor,
+     * hence they are bounded by the queue capacity, and the requests beyond it are shed with the overflow policy of
+     * their traffic. Replacing the oldest request cancels it, so its decision is ignored when it arrives.
+     */
+    private void publishNonBlocking(HttpDataPublisher httpDataPublisher, RequestMetadata requestBody,
+                                    AsyncPublishingAgent agent) {
+
+        if (inFlightPermits != null && !inFlightPermits.tryAcquire()
+                && !(overflowHandler.isReplaceOldest(agent) && cancelOldestRequest() && inFlightPermits.tryAcquire())) {
+            dropAgent(agent);
+            return;
+        }
+        DecisionCallback callback = new DecisionCallback(agent);
+        if (inFlightPermits != null) {
+            // Requests mostly end in order, hence the ended ones are removed from the head
+            DecisionCallback oldest;
+            while ((oldest = inFlightRequests.peek()) != null && oldest.ended.get()) {
+                inFlightRequests.remove(oldest);
             }
-            String tenantDomain = PrivilegedCarbonContext.getThreadLocalCarbonContext().getTenantDomain();
-            agent.setDataReference(requestBody, correlationID, tenantDomain);
-            if (log.isDebugEnabled()) {
-                log.debug("Async call executed for the id " + correlationID);
+            inFlightRequests.offer(callback);
+        }
+        if (publisherQueueStats != null) {
+            publisherQueueStats.asyncRequestStarted();
+        }
+        try {
+            callback.result = httpDataPublisher.publishNonBlocking(requestBody, agent.getCorrelationID(), callback);
+        } catch (RuntimeException e) {
+            callback.end();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels the oldest request in flight which has not ended yet, and returns whether there was one.
+     */
+    private boolean cancelOldestRequest() {
+
+        DecisionCallback oldest;
+        while ((oldest = inFlightRequests.poll()) != null) {
+            Future<Decision> result = oldest.result;
+            if (result != null && result.cancel(false)) {
+                dropAgent(oldest.agent);
+                return true;
             }
-            asyncExecutor.execute(agent);
-        } else {
-            log.error("AsyncPublisherThreadPool not initialized");
-            throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE);
         }
+        return false;
     }
 
     @Override
-    public boolean verifyRequest(JSONObject requestMetaData, String correlationID) throws SecurityException {
+    public boolean verifyRequest(RequestMetadata requestMetaData, String correlationID) throws SecurityException {
 
-        publishAsyncEvent(requestMetaData, correlationID);
+        publishAsyncEvent(requestMetaData, correlationID, false);
         SecurityUtils.verifyPropertiesWithCache(requestMetaData, correlationID);
         return true;
     }
 
     /**
-     * This class will act as thread pool executor and after executing each thread it will return runnable
-     * object back to pool. This implementation specifically used to minimize number of objects created during
-     * runtime. In this queuing strategy the submitted task will wait in the queue if the core Pool size threads are
-     * busy and the task will be allocated if any of the threads become idle.Thus ThreadPool will always have number
-     * of threads running  as mentioned in the corePoolSize.
+     * Hands the decision read by the non-blocking client over to the agent, which is run by the executor since cache
+     * updates must not block the I/O threads of the client. The in-flight permit of the request is released once it
+     * ends.
+     */
+    private class DecisionCallback implements FutureCallback<Decision> {
+
+        private final AsyncPublishingAgent agent;
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private volatile Future<Decision> result;
+
+        DecisionCallback(AsyncPublishingAgent agent) {
+
+            this.agent = agent;
+        }
+
+        @Override
+        public void completed(Decision serverResponse) {
+
+            end();
+            dispatch(agent.withServerResponse(serverResponse));
+        }
+
+        @Override
+        public void failed(Exception ex) {
+
+            end();
+            log.error("Error getting the decision of the OPA server", ex);
+        }
+
+        @Override
+        public void cancelled() {
+
+            end();
+            if (log.isDebugEnabled()) {
+                log.debug("Decision request of the OPA server was cancelled for the id " + agent.getCorrelationID());
+            }
+        }
+
+        void end() {
+
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            if (inFlightPermits != null) {
+                inFlightPermits.release();
+            }
+            if (publisherQueueStats != null) {
+                publisherQueueStats.asyncRequestEnded();
+            }
+        }
+    }
+
+    /**
+     * Hands the agent over to the executor. An agent rejected by the executor is dropped, which only happens when the
+     * queue of the virtual thread executor is full, since the thread pool executor sheds load with its overflow
+     * handler.
+     */
+    private void dispatch(AsyncPublishingAgent agent) {
+
+        try {
+            asyncExecutor.execute(agent);
+        } catch (RejectedExecutionException e) {
+            dropAgent(agent);
+        }
+    }
+
+    private void dropAgent(AsyncPublishingAgent agent) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Async publisher queue or in-flight limit is full, hence the event of the request "
+                    + agent.getCorrelationID() + " is dropped");
+        }
+        if (publisherQueueStats != null) {
+            publisherQueueStats.eventDropped(agent.isRefresh());
+        }
+    }
+
+    /**
+     * Sheds load once the bounded queue of the executor is full, with the overflow policy of the traffic the event
+     * belongs to. With drop-oldest the event is queued in place of the oldest queued event, with drop-newest the
+     * event is dropped, and with sample one in every sample rate overflowing events is queued in place of the oldest
+     * queued event while the rest are dropped. The same policies shed the requests in flight on the non-blocking
+     * client.
+     */
+    private class OverflowHandler implements RejectedExecutionHandler {
+
+        // Number of times an overflowing event tries to replace the oldest queued event before it is dropped
+        private static final int MAX_REPLACE_ATTEMPTS = 3;
+        private final String cacheMissOverflowPolicy;
+        private final String refreshOverflowPolicy;
+        private final int overflowSampleRate;
+        private final AtomicLong overflowCount = new AtomicLong();
+
+        OverflowHandler(SecurityHandlerConfig.ThreadPoolExecutorConfig threadPoolExecutorConfig) {
+
+            cacheMissOverflowPolicy = threadPoolExecutorConfig.getCacheMissOverflowPolicy();
+            refreshOverflowPolicy = threadPoolExecutorConfig.getRefreshOverflowPolicy();
+            overflowSampleRate = threadPoolExecutorConfig.getOverflowSampleRate();
+        }
+
+        /**
+         * Returns whether the overflowing event replaces the oldest event, or else is dropped.
+         */
+        boolean isReplaceOldest(AsyncPublishingAgent agent) {
+
+            String overflowPolicy = agent.isRefresh() ? refreshOverflowPolicy : cacheMissOverflowPolicy;
+            return SecurityHandlerConstants.DROP_OLDEST_OVERFLOW_POLICY_STRING.equals(overflowPolicy)
+                    || (SecurityHandlerConstants.SAMPLE_OVERFLOW_POLICY_STRING.equals(overflowPolicy)
+                    && overflowCount.incrementAndGet() % overflowSampleRate == 0);
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+
+            AsyncPublishingAgent agent = (AsyncPublishingAgent) r;
+            if (executor.isShutdown()) {
+                return;
+            }
+            if (isReplaceOldest(agent)) {
+                // The queue may be filled again by other threads meanwhile, hence the event is offered a bounded
+                // number of times, without executing it again, which would overflow again on this thread
+                for (int attempt = 0; attempt < MAX_REPLACE_ATTEMPTS; attempt++) {
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest != null) {
+                        dropAgent((AsyncPublishingAgent) oldest);
+                    }
+                    if (executor.getQueue().offer(agent)) {
+                        return;
+                    }
+                }
+            }
+            dropAgent(agent);
+        }
+    }
+
+    /**
+     * This class will act as thread pool executor of the publishing agents. In this queuing strategy the submitted
+     * task will wait in the queue if the core Pool size threads are busy and the task will be allocated if any of the
+     * threads become idle.Thus ThreadPool will always have number of threads running  as mentioned in the corePoolSize.
      * LinkedBlockingQueue without the capacity can be used for this queuing strategy.If the corePoolsize of the
      * thread pool is less and there are more number of time consuming task were submitted,there is more possibility
      * that the task has to wait in the queue for more time before it is run by any of the ideal thread.
      * So tuning core pool size is something we need to tune properly.
-     * Also no task will be rejected in Thread pool until the thread pool was shutdown.
+     * If a queue capacity is configured, threads are added up to the maximum pool size once the queue is full, and
+     * the overflow handler sheds load beyond that.
      */
 
     private class AsyncPublisherThreadPoolExecutor extends ThreadPoolExecutor {
 
         AsyncPublisherThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
-                                         LinkedBlockingDeque<Runnable> workQueue) {
-
-            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
-        }
+                                         LinkedBlockingDeque<Runnable> workQueue, RejectedExecutionHandler handler) {
 
-        protected void afterExecute(java.lang.Runnable r, java.lang.Throwable t) {
-
-            try {
-                AsyncPublishingAgent agent = (AsyncPublishingAgent) r;
-                asyncPublisherThreadPool.release(agent);
-            } catch (Exception e) {
-                log.error("Error while returning AsyncPublishingAgent back to pool", e);
-            }
+            super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, handler);
         }
     }
 }
@@ -20,8 +20,9 @@ package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.JSONObject;
 import org.wso2.carbon.apimgt.securityenforcer.opa.OPAResponseStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
@@ -35,53 +36,75 @@ import org.wso2.carbon.utils.multitenancy.MultitenantConstants;
  * need to execute using thread pool executor. Primary task of this class it is accept message context as parameter
  * and perform time consuming data extraction and verifyRequest event to data publisher. Having data extraction and
  * transformation logic in this class will help to reduce overhead added to main message flow.
+ * <p>
+ * An agent is created for each event and is not modified once created, hence it is handed over to the executor
+ * without any pooling or locking.
  */
 public class AsyncPublishingAgent implements Runnable {
 
     private static final Log log = LogFactory.getLog(AsyncPublishingAgent.class);
 
-    private HttpDataPublisher httpDataPublisher;
-    private JSONObject requestBody;
-    private String correlationID;
-    private boolean tenantFlowStarted = false;
-    private String tenantDomain;
+    private final HttpDataPublisher httpDataPublisher;
+    private final RequestMetadata requestBody;
+    private final String correlationID;
+    private final Decision serverResponse;
+    private final String tenantDomain;
+    private final boolean refresh;
 
-    AsyncPublishingAgent() {
+    AsyncPublishingAgent(HttpDataPublisher httpDataPublisher, RequestMetadata requestBody, String correlationID,
+                         String tenantDomain, boolean refresh) {
 
-        httpDataPublisher = getHttpDataPublisher();
+        this(httpDataPublisher, requestBody, correlationID, tenantDomain, refresh, null);
+    }
+
+    private AsyncPublishingAgent(HttpDataPublisher httpDataPublisher, RequestMetadata requestBody,
+                                 String correlationID, String tenantDomain, boolean refresh,
+                                 Decision serverResponse) {
+
+        this.httpDataPublisher = httpDataPublisher;
+        this.requestBody = requestBody;
+        this.correlationID = correlationID;
+        this.tenantDomain = tenantDomain != null ? tenantDomain : MultitenantConstants.SUPER_TENANT_DOMAIN_NAME;
+        this.refresh = refresh;
+        this.serverResponse = serverResponse;
     }
 
     /**
-     * This method will clean data references. This method should call whenever we return data process and verifyRequest
-     * agent back to pool. Every time when we add new property we need to implement cleaning logic as well.
+     * Returns whether the agent refreshes a cached response, rather than requesting the decision of a request with no
+     * cached response.
      */
-    void clearDataReference() {
+    boolean isRefresh() {
 
-        this.requestBody = null;
-        this.correlationID = null;
-        this.tenantDomain = null;
+        return refresh;
+    }
+
+    String getCorrelationID() {
+
+        return correlationID;
     }
 
     /**
-     * This method will use to set message context.
+     * This method will return an agent with the decision already read by the non-blocking client, so that the agent
+     * only updates the caches.
      */
-    void setDataReference(JSONObject requestBody, String correlationID, String tenantDomain) {
-
-        this.requestBody = requestBody;
-        this.correlationID = correlationID;
-        this.tenantDomain = tenantDomain;
+    AsyncPublishingAgent withServerResponse(Decision serverResponse) {
 
+        return new AsyncPublishingAgent(httpDataPublisher, requestBody, correlationID, tenantDomain, refresh,
+                serverResponse);
     }
 
     public void run() {
 
-        boolean serverResponse = httpDataPublisher.publish(this.requestBody, this.correlationID);
+        Decision serverResponse = this.serverResponse;
+        if (serverResponse == null) {
+            serverResponse = httpDataPublisher.publish(this.requestBody, this.correlationID);
+        }
         String operationMode = ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getMode();
         startTenantFlow();
         if (SecurityHandlerConstants.ASYNC_MODE_STRING.equals(operationMode)){
             try {
                 // This is to check whether we have to update the cache or not. If server response was to block the request, an exception will be thrown.
-                SecurityUtils.verifServerResponse(serverResponse, correlationID, "Async Publisher");
+                SecurityUtils.verifServerResponse(serverResponse.isAllowed(), correlationID, "Async Publisher");
                 if (log.isDebugEnabled()) {
                     log.debug("Server response was not to block the request " + this.correlationID);
                 }
@@ -94,6 +117,13 @@ public class AsyncPublishingAgent implements Runnable {
                 //In Async mode, only a block list will be maintained.
                 OPAResponseStore.updateCache(requestBody, serverResponse, correlationID);
             }
+        } else if (SecurityHandlerConstants.SYNC_MODE_STRING.equals(operationMode)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Cached decision refreshed as " + serverResponse + " for the request " + this.correlationID);
+            }
+            //In Sync mode, only the decision cache is used
+            OPAResponseStore.writeToOPAResponseCache(SecurityHandlerConstants.DECISION_CACHE_NAME,
+                    requestBody.getDecisionCacheKey(), serverResponse, requestBody.getPolicyEpoch());
         } else {
             if (log.isDebugEnabled()) {
                 log.debug("Hybrid publisher will update the server response in the cache as " + serverResponse
@@ -102,14 +132,7 @@ public class AsyncPublishingAgent implements Runnable {
             //In Hybrid mode, both block and allow lists will be maintained
             OPAResponseStore.updateCache(requestBody, serverResponse, correlationID);
         }
-        if (tenantFlowStarted) {
-            endTenantFlow();
-        }
-    }
-
-    private HttpDataPublisher getHttpDataPublisher() {
-
-        return ServiceReferenceHolder.getInstance().getHttpDataPublisher();
+        endTenantFlow();
     }
 
     private void endTenantFlow() {
@@ -117,12 +140,8 @@ public class AsyncPublishingAgent implements Runnable {
     }
 
     private void startTenantFlow() {
-        if (this.tenantDomain == null){
-            this.tenantDomain = MultitenantConstants.SUPER_TENANT_DOMAIN_NAME;
-        }
         PrivilegedCarbonContext.startTenantFlow();
         PrivilegedCarbonContext.getThreadLocalCarbonContext().setTenantDomain(tenantDomain, true);
-        tenantFlowStarted = true;
     }
 }
 
@@ -18,12 +18,17 @@ package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.hybrid;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.JSONObject;
 import org.wso2.carbon.apimgt.securityenforcer.opa.OPAResponseStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.CacheResponseDTO;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.Publisher;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async.AsyncPublisher;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.sync.SyncPublisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils;
 
 public class HybridPublisher implements Publisher {
@@ -31,46 +36,86 @@ public class HybridPublisher implements Publisher {
     private static final Log log = LogFactory.getLog(HybridPublisher.class);
     private AsyncPublisher asyncPublisher;
     private SyncPublisher syncPublisher;
+    private boolean backgroundRefreshEnabled;
 
     public HybridPublisher() {
 
         syncPublisher = new SyncPublisher();
         asyncPublisher = new AsyncPublisher();
+        SecurityHandlerConfig.CacheConfig cacheConfig =
+                ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getCacheConfig();
+        backgroundRefreshEnabled = cacheConfig.isBackgroundRefreshEnabled();
         log.info("Hybrid publisher instance created for OPA Security Handler");
     }
 
     @Override
-    public boolean verifyRequest(JSONObject requestMetaData, String correlationID) throws SecurityException {
+    public boolean verifyRequest(RequestMetadata requestMetaData, String correlationID) throws SecurityException {
 
-        boolean serverResponse;
+        Decision serverResponse;
+        // With refresh-ahead or stale-while-revalidate, only the request which found a cached decision due for a
+        // refresh revalidates it, whether the decision allows or blocks the request, for the decision cache as well as
+        // the token, ip and cookie caches. Otherwise every request revalidates the cached decision.
+        boolean refreshRequired = true;
         try {
-            boolean cachedOPAResponseAvailable = SecurityUtils.verifyPropertiesWithCache(requestMetaData,
-                    correlationID);
+            // The decision cached for the API resource is used when available. Otherwise any cached decision of the
+            // token, ip or cookie is used.
+            boolean cachedOPAResponseAvailable;
+            if (requestMetaData.getDecisionCacheKey() != null) {
+                CacheResponseDTO cacheResponse = SecurityUtils.getDecisionFromCache(requestMetaData);
+                cachedOPAResponseAvailable = cacheResponse.isAvailableInCache();
+                refreshRequired = !backgroundRefreshEnabled || cacheResponse.isRefreshDue();
+                SecurityUtils.verifyCacheResponse(SecurityHandlerConstants.DECISION_CACHE_NAME, cacheResponse,
+                        correlationID);
+            } else {
+                String apiContext = requestMetaData.getApiContext();
+                CacheResponseDTO tokenCacheResponse = OPAResponseStore.getFromOPAResponseCache(
+                        SecurityHandlerConstants.TOKEN_CACHE_NAME, requestMetaData.getTokenCacheKey(), apiContext);
+                CacheResponseDTO ipCacheResponse = OPAResponseStore.getFromOPAResponseCache(
+                        SecurityHandlerConstants.IP_CACHE_NAME, requestMetaData.getIpCacheKey(), apiContext);
+                CacheResponseDTO cookieCacheResponse = OPAResponseStore.getFromOPAResponseCache(
+                        SecurityHandlerConstants.COOKIE_CACHE_NAME, requestMetaData.getCookieCacheKey(), apiContext);
+                cachedOPAResponseAvailable = tokenCacheResponse.isAvailableInCache()
+                        || ipCacheResponse.isAvailableInCache() || cookieCacheResponse.isAvailableInCache();
+                // The cached responses are refreshed together, when any of them is due for a refresh
+                refreshRequired = !backgroundRefreshEnabled || tokenCacheResponse.isRefreshDue()
+                        || ipCacheResponse.isRefreshDue() || cookieCacheResponse.isRefreshDue();
+                SecurityUtils.verifyCacheResponse(SecurityHandlerConstants.TOKEN_CACHE_NAME, tokenCacheResponse,
+                        correlationID);
+                SecurityUtils.verifyCacheResponse(SecurityHandlerConstants.IP_CACHE_NAME, ipCacheResponse,
+                        correlationID);
+                SecurityUtils.verifyCacheResponse(SecurityHandlerConstants.COOKIE_CACHE_NAME, cookieCacheResponse,
+                        correlationID);
+            }
             if (!cachedOPAResponseAvailable) {
                 if (log.isDebugEnabled()) {
                     log.debug("Cached OPA response is not available for the request " + correlationID
                             + " hence SYNC mode used");
                 }
-                //A Cached response is not available for token, ip or cookie. Therefore sync mode is used
+                //A Cached response is not available for the request. Therefore sync mode is used
                 serverResponse = syncPublisher.publishSyncEvent(requestMetaData, correlationID);
                 OPAResponseStore.updateCache(requestMetaData, serverResponse, correlationID);
-                SecurityUtils.verifServerResponse(serverResponse, correlationID, "Sync Publisher");
+                SecurityUtils.verifServerResponse(serverResponse.isAllowed(), correlationID, "Sync Publisher");
             } else {
                 //A Cached response is available for a one or all of the properties and non of them is to block the
                 // request. Async mode is used.
                 if (log.isDebugEnabled()) {
                     log.debug("Cached OPA response is available for the request " + correlationID
-                            + " hence ASYNC mode used");
+                            + (refreshRequired ? " hence ASYNC mode used" : " and is not due for a refresh"));
+                }
+                if (refreshRequired) {
+                    asyncPublisher.publishAsyncEvent(requestMetaData, correlationID, true);
                 }
-                asyncPublisher.publishAsyncEvent(requestMetaData, correlationID);
             }
         } catch (SecurityException e) {
             // if cached response is to block the request, there will be an exception and cache will be updated
             // with a new async sideband call
             if (log.isDebugEnabled()) {
-                log.debug("Cached OPA response is to block the request " + correlationID);
+                log.debug("Cached OPA response is to block the request " + correlationID
+                        + (refreshRequired ? "" : " and is not due for a refresh"));
+            }
+            if (refreshRequired) {
+                asyncPublisher.publishAsyncEvent(requestMetaData, correlationID, true);
             }
-            asyncPublisher.publishAsyncEvent(requestMetaData, correlationID);
             throw e;
         }
         return true;
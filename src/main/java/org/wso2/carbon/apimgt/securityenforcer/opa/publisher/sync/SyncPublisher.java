@@ -18,16 +18,29 @@ package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.sync;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.JSONObject;
+import org.wso2.carbon.apimgt.securityenforcer.opa.OPAResponseStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.CacheResponseDTO;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.DecisionCoalescer;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.Publisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PublisherQueueStats;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.VirtualThreadExecutor;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async.AsyncPublisher;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -35,8 +48,13 @@ public class SyncPublisher implements Publisher {
 
     private static final Log log = LogFactory.getLog(SyncPublisher.class);
 
-    private static SyncPublisherThreadPool syncPublisherThreadPool;
-    private ThreadPoolExecutor syncExecutor;
+    private ExecutorService syncExecutor;
+    private boolean decisionCacheEnabled;
+    private AsyncPublisher asyncPublisher;
+    private DecisionCoalescer decisionCoalescer;
+    private Semaphore callerThreadPermits;
+    private long permitTimeout;
+    private PublisherQueueStats publisherQueueStats;
 
     /**
      * This method will initialize DataPublisher. Inside this we will start executor and initialize
@@ -45,36 +63,119 @@ public class SyncPublisher implements Publisher {
     public SyncPublisher() {
         SecurityHandlerConfig.ThreadPoolExecutorConfig threadPoolExecutorConfig = ServiceReferenceHolder.getInstance()
                 .getSecurityHandlerConfig().getThreadPoolExecutorConfig();
-        syncPublisherThreadPool = SyncPublisherThreadPool.getInstance();
-        syncExecutor = new SyncPublisherThreadPoolExecutor(threadPoolExecutorConfig.getCorePoolSize(),
-                threadPoolExecutorConfig.getMaximumPoolSize(), threadPoolExecutorConfig.getKeepAliveTime(),
-                TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
-
-        });
+        if (threadPoolExecutorConfig.isCallerThreadSyncDispatch()) {
+            // The executor runs at most core pool size requests at a time, since its queue is unbounded. The same
+            // limit applies to the requests sent on the gateway threads.
+            callerThreadPermits = new Semaphore(threadPoolExecutorConfig.getCorePoolSize());
+            // A permit is waited for as long as a request to the OPA server may take
+            permitTimeout = ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getDataPublisherConfig()
+                    .getConnectionTimeout() + 10;
+        } else {
+            publisherQueueStats = ServiceReferenceHolder.getInstance().getPublisherQueueStats();
+            int queueCapacity = threadPoolExecutorConfig.getQueueCapacity();
+            if (threadPoolExecutorConfig.isVirtualThreads()) {
+                syncExecutor = VirtualThreadExecutor.create("OPA-Sync-Publisher-",
+                        threadPoolExecutorConfig.getVirtualThreadConcurrency(), queueCapacity);
+            }
+            if (syncExecutor == null) {
+                LinkedBlockingDeque<Runnable> workQueue = queueCapacity > 0
+                        ? new LinkedBlockingDeque<Runnable>(queueCapacity) : new LinkedBlockingDeque<Runnable>();
+                syncExecutor = new SyncPublisherThreadPoolExecutor(threadPoolExecutorConfig.getCorePoolSize(),
+                        threadPoolExecutorConfig.getMaximumPoolSize(), threadPoolExecutorConfig.getKeepAliveTime(),
+                        TimeUnit.SECONDS, workQueue);
+            }
+            if (publisherQueueStats != null) {
+                publisherQueueStats.setSyncExecutor(syncExecutor);
+            }
+        }
+        // Decisions are cached per principal and API resource, hence a cached decision applies to the request as a
+        // whole and can be used in sync mode
+        SecurityHandlerConfig.CacheConfig cacheConfig = ServiceReferenceHolder.getInstance()
+                .getSecurityHandlerConfig().getCacheConfig();
+        decisionCacheEnabled = cacheConfig.isDecisionCacheEnabled() && cacheConfig.isSyncModeCacheEnabled();
+        // Cached decisions due for a refresh are revalidated in the background. The hybrid publisher refreshes the
+        // decisions with its own async publisher.
+        String operationMode = ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getMode();
+        if (decisionCacheEnabled && cacheConfig.isBackgroundRefreshEnabled()
+                && SecurityHandlerConstants.SYNC_MODE_STRING.equals(operationMode)) {
+            asyncPublisher = new AsyncPublisher();
+        }
+        if (ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().getDataPublisherConfig()
+                .isCoalesceRequests()) {
+            decisionCoalescer = new DecisionCoalescer(ServiceReferenceHolder.getInstance().getPolicyEpoch());
+        }
         log.info("Sync publisher instance created for OPA Security Handler");
     }
 
     /**
      * This method used to pass requestBody and let it run within separate synchronous thread.
      *
-     * @param requestBody    is the json with the extracted details of the original request.
+     * @param requestBody    is the meta data extracted of the original request.
      * @param correlationID is the String with the xCorrelation ID.
      */
-    public boolean publishSyncEvent(JSONObject requestBody, String correlationID)
+    public Decision publishSyncEvent(RequestMetadata requestBody, String correlationID)
             throws SecurityException {
 
-        boolean response = false;
-        if (syncPublisherThreadPool != null) {
-            SyncPublishingAgent agent;
+        if (decisionCoalescer == null) {
+            return requestDecision(requestBody, correlationID);
+        }
+        DecisionCoalescer.Flight flight = decisionCoalescer.newFlight(requestBody);
+        Future<Decision> leadingFlight = decisionCoalescer.join(flight);
+        if (leadingFlight != null) {
+            // An identical request is in flight, hence its decision is used
+            if (log.isDebugEnabled()) {
+                log.debug("Decision of an identical request in flight is used for the request " + correlationID);
+            }
+            try {
+                return leadingFlight.get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                log.error("Error getting the decision of an identical request for the request id " + correlationID,
+                        e);
+                throw new SecurityException(SecurityException.HANDLER_ERROR,
+                        SecurityException.HANDLER_ERROR_MESSAGE, e);
+            }
+        }
+        try {
+            Decision response = requestDecision(requestBody, correlationID);
+            flight.completed(response);
+            return response;
+        } finally {
+            decisionCoalescer.land(flight);
+        }
+    }
+
+    private Decision requestDecision(RequestMetadata requestBody, String correlationID) throws SecurityException {
+
+        Decision response;
+        HttpDataPublisher httpDataPublisher = ServiceReferenceHolder.getInstance().getHttpDataPublisher();
+        if (httpDataPublisher.isNonBlocking()) {
+            // The gateway thread waits for the decision while the request is sent by the I/O threads of the
+            // non-blocking client, hence no thread of the pool is held for the request
             try {
-                agent = syncPublisherThreadPool.get();
-            } catch (Exception e) {
-                log.error("Error borrowing an agent from client pool for the request id " + correlationID, e);
+                response = httpDataPublisher.publishNonBlocking(requestBody, correlationID, null).get();
+            } catch (InterruptedException | ExecutionException e) {
+                log.error("Error getting the decision of the OPA server for the request id " + correlationID, e);
                 throw new SecurityException(SecurityException.HANDLER_ERROR,
                         SecurityException.HANDLER_ERROR_MESSAGE, e);
             }
-            agent.setDataReference(requestBody, correlationID);
-            Future<Boolean> result = syncExecutor.submit(agent);
+        } else if (callerThreadPermits != null) {
+            response = publishOnCallerThread(httpDataPublisher, requestBody, correlationID);
+        } else if (syncExecutor != null) {
+            SyncPublishingAgent agent = new SyncPublishingAgent(httpDataPublisher, requestBody, correlationID);
+            Future<Decision> result;
+            try {
+                result = syncExecutor.submit(agent);
+            } catch (RejectedExecutionException e) {
+                // The gateway thread is not held waiting for a queue which is already full. The request is handled
+                // in the same way as an unreachable server.
+                log.error("Sync publisher queue is full, hence the request " + correlationID
+                        + " is not sent to the OPA server");
+                if (publisherQueueStats != null) {
+                    publisherQueueStats.syncRequestRejected();
+                }
+                return Decision.of(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
+                        .getDefaultActionIfServerNotReachable());
+            }
             if (log.isDebugEnabled()) {
                 log.debug("Sync call executed for the id " + correlationID);
             }
@@ -85,33 +186,74 @@ public class SyncPublisher implements Publisher {
                 throw new SecurityException(SecurityException.HANDLER_ERROR,
                         SecurityException.HANDLER_ERROR_MESSAGE, e);
             }
-            syncPublisherThreadPool.release(agent);
-
         } else {
-            log.error("No instance found for SyncPublisherThreadPool for the request " + correlationID);
+            log.error("No executor found for SyncPublisher for the request " + correlationID);
             throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE);
         }
         return response;
     }
 
+    /**
+     * Requests the decision on the calling gateway thread, without handing the request over to the executor. The
+     * number of requests in flight is limited by the permits, and a request which cannot get a permit in time is
+     * handled in the same way as an unreachable server.
+     */
+    private Decision publishOnCallerThread(HttpDataPublisher httpDataPublisher, RequestMetadata requestBody,
+                                           String correlationID) throws SecurityException {
+
+        try {
+            if (!callerThreadPermits.tryAcquire(permitTimeout, TimeUnit.SECONDS)) {
+                log.error("Timed out waiting to send the request " + correlationID + " to the OPA server");
+                return Decision.of(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
+                        .getDefaultActionIfServerNotReachable());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting to send the request " + correlationID + " to the OPA server", e);
+            throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE, e);
+        }
+        try {
+            return httpDataPublisher.publish(requestBody, correlationID);
+        } finally {
+            callerThreadPermits.release();
+        }
+    }
+
     @Override
-    public boolean verifyRequest(JSONObject requestMetaData, String correlationID) throws SecurityException {
-        boolean serverResponse = publishSyncEvent(requestMetaData, correlationID);
-        SecurityUtils.verifServerResponse(serverResponse, correlationID, "Sync Publisher");
+    public boolean verifyRequest(RequestMetadata requestMetaData, String correlationID) throws SecurityException {
+
+        boolean useDecisionCache = decisionCacheEnabled && requestMetaData.getDecisionCacheKey() != null;
+        if (useDecisionCache) {
+            CacheResponseDTO cacheResponse = SecurityUtils.verifyDecisionWithCache(requestMetaData, correlationID);
+            if (cacheResponse.isAvailableInCache()) {
+                if (asyncPublisher != null && cacheResponse.isRefreshDue()) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Cached decision for the request " + correlationID + " is refreshed in background");
+                    }
+                    asyncPublisher.publishAsyncEvent(requestMetaData, correlationID, true);
+                }
+                return true;
+            }
+        }
+        Decision serverResponse = publishSyncEvent(requestMetaData, correlationID);
+        if (useDecisionCache) {
+            OPAResponseStore.writeToOPAResponseCache(SecurityHandlerConstants.DECISION_CACHE_NAME,
+                    requestMetaData.getDecisionCacheKey(), serverResponse, requestMetaData.getPolicyEpoch());
+        }
+        SecurityUtils.verifServerResponse(serverResponse.isAllowed(), correlationID, "Sync Publisher");
         return true;
     }
 
     /**
-     * This class will act as thread pool executor and after executing each thread it will return runnable
-     * object back to pool. This implementation specifically used to minimize number of objects created during
-     * runtime. In this queuing strategy the submitted task will wait in the queue if the core Pool size threads are
-     * busy and the task will be allocated if any of the threads become idle.Thus ThreadPool will always have number
-     * of threads running  as mentioned in the corePoolSize.
+     * This class will act as thread pool executor of the publishing agents. In this queuing strategy the submitted
+     * task will wait in the queue if the core Pool size threads are busy and the task will be allocated if any of the
+     * threads become idle.Thus ThreadPool will always have number of threads running  as mentioned in the corePoolSize.
      * LinkedBlockingQueue without the capacity can be used for this queuing strategy.If the corePoolsize of the
      * thread pool is less and there are more number of time consuming task were submitted,there is more possibility
      * that the task has to wait in the queue for more time before it is run by any of the ideal thread.
      * So tuning core pool size is something we need to tune properly.
-     * Also no task will be rejected in Thread pool until the thread pool was shutdown.
+     * If a queue capacity is configured, threads are added up to the maximum pool size once the queue is full, and
+     * requests are rejected beyond that.
      */
 
     private class SyncPublisherThreadPoolExecutor extends ThreadPoolExecutor {
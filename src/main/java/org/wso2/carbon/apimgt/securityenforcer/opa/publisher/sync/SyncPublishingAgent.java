@@ -18,10 +18,9 @@
 
 package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.sync;
 
-import org.json.simple.JSONObject;
-import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
-import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
 
 import java.util.concurrent.Callable;
 
@@ -29,44 +28,20 @@ import java.util.concurrent.Callable;
  * This class is responsible for executing data publishing logic. This class implements callable interface and
  * need to execute using thread pool executor. Primary task of this class it is accept request body, xCorrelation ID
  * and resource as parameters and verifyRequest event to httpDataPublisher.
+ * An agent is created for each request and is not modified once created, hence it is handed over to the executor
+ * without any pooling or locking.
  */
-public class SyncPublishingAgent implements Callable<Boolean> {
+public class SyncPublishingAgent implements Callable<Decision> {
 
-    private HttpDataPublisher httpDataPublisher;
-    private JSONObject requestBody;
-    private String correlationID;
+    private final HttpDataPublisher httpDataPublisher;
+    private final RequestMetadata requestBody;
+    private final String correlationID;
 
-    SyncPublishingAgent() {
-
-        httpDataPublisher = getHttpDataPublisher();
-    }
-
-    /**
-     * This method will clean data references. This method should call whenever we return data process and verifyRequest
-     * agent back to pool. Every time when we add new property we need to implement cleaning logic as well.
-     */
-    void clearDataReference() {
-
-        this.requestBody = null;
-        this.correlationID = null;
-    }
-
-    /**
-     * This method will use to set the variables.
-     */
-    void setDataReference(JSONObject requestBody, String correlationID) {
+    SyncPublishingAgent(HttpDataPublisher httpDataPublisher, RequestMetadata requestBody, String correlationID) {
 
+        this.httpDataPublisher = httpDataPublisher;
         this.requestBody = requestBody;
         this.correlationID = correlationID;
-
-    }
-
-    /**
-     * This method will return the httpDataPublisher generated at SyncPublishingAgent class.
-     */
-
-    private HttpDataPublisher getHttpDataPublisher() {
-        return ServiceReferenceHolder.getInstance().getHttpDataPublisher();
     }
 
     /**
@@ -74,7 +49,7 @@ public class SyncPublishingAgent implements Callable<Boolean> {
      */
 
     @Override
-    public Boolean call() {
+    public Decision call() {
         return httpDataPublisher.publish(this.requestBody, this.correlationID);
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.wasm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.Publisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityUtils;
+import org.wso2.carbon.apimgt.securityenforcer.opa.wasm.OpaWasmPolicy;
+import org.wso2.carbon.apimgt.securityenforcer.opa.wasm.WasmException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.wasm.WasmPolicyStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.wasm.WasmRuntime;
+import org.wso2.carbon.utils.CarbonUtils;
+
+import java.io.File;
+
+/**
+ * Evaluates the policies compiled to WebAssembly in the gateway, on the thread of the request, without a call to the
+ * OPA server. The decisions are not cached, since the policies are evaluated in process.
+ */
+public class WasmPublisher implements Publisher {
+
+    private static final Log log = LogFactory.getLog(WasmPublisher.class);
+
+    private WasmPolicyStore policyStore;
+    private boolean defaultActionIfPolicyNotFound;
+    private boolean defaultActionIfServerNotReachable;
+
+    public WasmPublisher() throws SecurityException {
+
+        SecurityHandlerConfig securityHandlerConfig = ServiceReferenceHolder.getInstance().getSecurityHandlerConfig();
+        SecurityHandlerConfig.WasmPolicyConfig wasmPolicyConfig = securityHandlerConfig.getWasmPolicyConfig();
+        defaultActionIfPolicyNotFound = securityHandlerConfig.getDefaultActionIfPolicyNotFound();
+        defaultActionIfServerNotReachable = securityHandlerConfig.getDefaultActionIfServerNotReachable();
+
+        WasmRuntime runtime;
+        try {
+            // The runtime is provided by a fragment of this bundle, hence it is visible to the class loader of the
+            // bundle without importing its packages
+            runtime = Class.forName(wasmPolicyConfig.getRuntime()).asSubclass(WasmRuntime.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            log.error("Error when creating the WebAssembly runtime " + wasmPolicyConfig.getRuntime()
+                    + ". The runtime should be deployed as a fragment of the OPA security handler bundle", e);
+            throw new SecurityException(e);
+        }
+        File directory = new File(wasmPolicyConfig.getDirectory());
+        if (!directory.isAbsolute()) {
+            directory = new File(CarbonUtils.getCarbonHome(), wasmPolicyConfig.getDirectory());
+        }
+        policyStore = new WasmPolicyStore(directory, runtime,
+                securityHandlerConfig.getServerConfig().isQueryPolicyPackage());
+        policyStore.start(wasmPolicyConfig.getReloadInterval());
+        log.info("Wasm publisher instance created for OPA Security Handler");
+    }
+
+    @Override
+    public boolean verifyRequest(RequestMetadata requestMetaData, String correlationID) throws SecurityException {
+
+        String apiContext = requestMetaData.getApiContext();
+        Decision decision;
+        OpaWasmPolicy policy = policyStore.getPolicy(apiContext);
+        if (policy == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("OPA WebAssembly policy is not available for the API " + apiContext + " of the request "
+                        + correlationID);
+            }
+            decision = Decision.of(defaultActionIfPolicyNotFound);
+        } else {
+            try {
+                Object result = policy.evaluate(requestMetaData.getServerPayload());
+                decision = result != null ? SecurityUtils.getDecision(result, apiContext)
+                        : Decision.of(defaultActionIfPolicyNotFound);
+            } catch (WasmException e) {
+                log.error("Error when evaluating the OPA WebAssembly policy for the request " + correlationID, e);
+                decision = Decision.of(defaultActionIfServerNotReachable);
+            }
+        }
+        SecurityUtils.verifServerResponse(decision.isAllowed(), correlationID, "Wasm Publisher");
+        return true;
+    }
+
+    /**
+     * Stops reloading the policies.
+     */
+    public void stop() {
+
+        policyStore.stop();
+    }
+}
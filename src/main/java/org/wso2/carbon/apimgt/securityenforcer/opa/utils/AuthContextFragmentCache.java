@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of encoded authentication context fragments. The authentication context is the same for every
+ * request carrying the same token to the same API, so its JSON form is cached against the token hash and the API
+ * and spliced into the OPA input instead of serializing the context with Gson on every request.
+ */
+public class AuthContextFragmentCache {
+
+    private static final Log log = LogFactory.getLog(AuthContextFragmentCache.class);
+
+    private final ConcurrentHashMap<FragmentKey, Fragment> fragments = new ConcurrentHashMap<>();
+    // ConcurrentHashMap.size() is not a constant time operation, hence the entries are counted separately.
+    private final AtomicInteger size = new AtomicInteger();
+    // Only one thread evicts at a time, while the other threads add their fragments without waiting
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final int maxEntries;
+    private final long expiryTimeMillis;
+
+    /**
+     * @param maxEntries       maximum number of fragments kept in the cache
+     * @param expiryTimeInMins time after which a fragment is encoded again from the authentication context
+     */
+    public AuthContextFragmentCache(int maxEntries, int expiryTimeInMins) {
+
+        this.maxEntries = maxEntries;
+        this.expiryTimeMillis = TimeUnit.MINUTES.toMillis(expiryTimeInMins);
+    }
+
+    /**
+     * Returns the cached fragment, or null if it is not cached or has expired.
+     *
+     * @param tokenCacheKey hash of the token of the request
+     * @param apiName       name of the API the request was sent to
+     */
+    public byte[] get(CacheKey tokenCacheKey, String apiName) {
+
+        FragmentKey key = new FragmentKey(tokenCacheKey, apiName);
+        Fragment fragment = fragments.get(key);
+        if (fragment == null) {
+            return null;
+        }
+        if (fragment.expiryTime < System.currentTimeMillis()) {
+            if (fragments.remove(key, fragment)) {
+                size.decrementAndGet();
+            }
+            return null;
+        }
+        return fragment.json;
+    }
+
+    public void put(CacheKey tokenCacheKey, String apiName, byte[] json) {
+
+        if (size.get() >= maxEntries && evictionLock.tryLock()) {
+            try {
+                evict();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        Fragment previous = fragments.put(new FragmentKey(tokenCacheKey, apiName),
+                new Fragment(json, System.currentTimeMillis() + expiryTimeMillis));
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes the expired fragments, and then drops further fragments until at least an eighth of the cache is free.
+     * The cache is therefore scanned once for every eighth of the cache filled, rather than on every put once it is
+     * full. Fragments removed meanwhile by other threads are not counted, since they were counted by those threads.
+     */
+    private void evict() {
+
+        long now = System.currentTimeMillis();
+        int target = maxEntries - Math.max(1, maxEntries >> 3);
+        int removed = 0;
+        for (Iterator<Map.Entry<FragmentKey, Fragment>> entries = fragments.entrySet().iterator();
+             entries.hasNext(); ) {
+            Map.Entry<FragmentKey, Fragment> entry = entries.next();
+            if (entry.getValue().expiryTime < now && fragments.remove(entry.getKey(), entry.getValue())) {
+                size.decrementAndGet();
+                removed++;
+            }
+        }
+        for (Iterator<Map.Entry<FragmentKey, Fragment>> entries = fragments.entrySet().iterator();
+             entries.hasNext() && size.get() > target; ) {
+            Map.Entry<FragmentKey, Fragment> entry = entries.next();
+            if (fragments.remove(entry.getKey(), entry.getValue())) {
+                size.decrementAndGet();
+                removed++;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(removed + " entries evicted from the auth context fragment cache");
+        }
+    }
+
+    private static final class FragmentKey {
+
+        private final CacheKey tokenCacheKey;
+        private final String apiName;
+
+        FragmentKey(CacheKey tokenCacheKey, String apiName) {
+
+            this.tokenCacheKey = tokenCacheKey;
+            this.apiName = apiName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FragmentKey)) {
+                return false;
+            }
+            FragmentKey other = (FragmentKey) o;
+            return tokenCacheKey.equals(other.tokenCacheKey)
+                    && (apiName == null ? other.apiName == null : apiName.equals(other.apiName));
+        }
+
+        @Override
+        public int hashCode() {
+
+            return 31 * tokenCacheKey.hashCode() + (apiName != null ? apiName.hashCode() : 0);
+        }
+    }
+
+    private static final class Fragment {
+
+        private final byte[] json;
+        private final long expiryTime;
+
+        Fragment(byte[] json, long expiryTime) {
+
+            this.json = json;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming writer for the OPA input document. The {"input":{...}} request body is encoded as UTF-8 JSON straight
+ * into a reusable, thread local byte buffer, so the transport headers and the authentication context are serialized
+ * exactly once per request instead of going through intermediate JSON strings and maps.
+ * A writer is obtained with {@link #start(int)} and must be completed with {@link #end()} on the same thread.
+ * Header and authentication context values can be limited to a whitelist and truncated to a maximum length, so that
+ * only the parts of the request a policy needs are sent to the OPA server.
+ */
+public class OPAInputWriter {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // Buffers grown beyond this size by an unusually large request are not kept for reuse by the thread.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] INPUT_PREFIX = ("{\"" + SecurityHandlerConstants.INPUT_KEY_NAME + "\":{")
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL_BYTES = {'n', 'u', 'l', 'l'};
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+            'e', 'f'};
+    // Gson instances are thread safe, hence a single instance is shared by all the writers.
+    private static final Gson gson = new Gson();
+
+    private static final ThreadLocal<OPAInputWriter> writers = new ThreadLocal<OPAInputWriter>() {
+
+        @Override
+        protected OPAInputWriter initialValue() {
+
+            return new OPAInputWriter();
+        }
+    };
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+    private int depth;
+    private boolean firstField;
+    private int maxValueLength;
+    private int valueStart;
+    private final Utf8Writer utf8Writer = new Utf8Writer();
+
+    private OPAInputWriter() {
+
+    }
+
+    /**
+     * Returns the writer bound to the current thread, positioned inside the input object.
+     *
+     * @param maxValueLength header and authentication context values longer than this are truncated. Zero disables
+     *                       truncation.
+     */
+    public static OPAInputWriter start(int maxValueLength) {
+
+        OPAInputWriter writer = writers.get();
+        writer.count = 0;
+        writer.depth = 0;
+        writer.maxValueLength = maxValueLength;
+        writer.writeRaw(INPUT_PREFIX);
+        writer.depth = 2;
+        writer.firstField = true;
+        return writer;
+    }
+
+    public OPAInputWriter writeField(String name, String value) {
+
+        writeName(name);
+        writeString(value);
+        return this;
+    }
+
+    public OPAInputWriter writeField(String name, int value) {
+
+        writeName(name);
+        writeAscii(Integer.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes the transport headers as a JSON object.
+     *
+     * @param name           field name of the headers object
+     * @param headers        transport headers of the request. May be null.
+     * @param allowedHeaders names of the headers to write, or null to write every header
+     * @param extraHeader    name of an additional header which is not available in the transport headers. May be
+     *                       null.
+     * @param extraValue     value of the additional header
+     */
+    public OPAInputWriter writeHeaders(String name, Map<String, String> headers, Set<String> allowedHeaders,
+                                       String extraHeader, String extraValue) {
+
+        writeName(name);
+        writeByte('{');
+        boolean first = true;
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (allowedHeaders != null && !allowedHeaders.contains(header.getKey())) {
+                    continue;
+                }
+                if (!first) {
+                    writeByte(',');
+                }
+                writeString(header.getKey());
+                writeByte(':');
+                writeHeaderValue(header.getKey(), header.getValue());
+                first = false;
+            }
+        }
+        if (extraHeader != null && (allowedHeaders == null || allowedHeaders.contains(extraHeader))) {
+            if (!first) {
+                writeByte(',');
+            }
+            writeString(extraHeader);
+            writeByte(':');
+            writeHeaderValue(extraHeader, extraValue);
+        }
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * Serializes the given object with Gson directly into the buffer.
+     *
+     * @param name          field name of the object
+     * @param value         object to serialize
+     * @param allowedFields names of the top level fields to write, or null to write every field
+     */
+    public OPAInputWriter writeObject(String name, Object value, Set<String> allowedFields) {
+
+        writeName(name);
+        valueStart = count;
+        if (value == null) {
+            writeRaw(NULL_BYTES);
+        } else if (allowedFields == null && maxValueLength <= 0) {
+            gson.toJson(value, utf8Writer);
+            utf8Writer.flushPendingSurrogate();
+        } else {
+            writeProjectedObject(gson.toJsonTree(value), allowedFields);
+        }
+        return this;
+    }
+
+    /**
+     * Writes an already encoded JSON value, such as one returned by {@link #copyLastValue()} for an earlier request.
+     */
+    public OPAInputWriter writeRawField(String name, byte[] json) {
+
+        writeName(name);
+        writeRaw(json);
+        return this;
+    }
+
+    /**
+     * Returns a copy of the value written by the last {@link #writeObject(String, Object, Set)} call, so that it can
+     * be cached and written again with {@link #writeRawField(String, byte[])}.
+     */
+    public byte[] copyLastValue() {
+
+        return Arrays.copyOfRange(buffer, valueStart, count);
+    }
+
+    private void writeProjectedObject(JsonElement element, Set<String> allowedFields) {
+
+        if (!element.isJsonObject()) {
+            writeJsonElement(element);
+            return;
+        }
+        JsonObject jsonObject = element.getAsJsonObject();
+        writeByte('{');
+        boolean first = true;
+        if (allowedFields != null) {
+            for (String field : allowedFields) {
+                JsonElement fieldValue = jsonObject.get(field);
+                if (fieldValue != null) {
+                    first = writeMember(field, fieldValue, first);
+                }
+            }
+        } else {
+            for (Map.Entry<String, JsonElement> member : jsonObject.entrySet()) {
+                first = writeMember(member.getKey(), member.getValue(), first);
+            }
+        }
+        writeByte('}');
+    }
+
+    private boolean writeMember(String name, JsonElement value, boolean first) {
+
+        if (!first) {
+            writeByte(',');
+        }
+        writeString(name);
+        writeByte(':');
+        writeJsonElement(value);
+        return false;
+    }
+
+    private void writeJsonElement(JsonElement element) {
+
+        if (element.isJsonPrimitive() && ((JsonPrimitive) element).isString()) {
+            writeValue(element.getAsString());
+        } else {
+            gson.toJson(element, utf8Writer);
+            utf8Writer.flushPendingSurrogate();
+        }
+    }
+
+    /**
+     * Closes the input document and returns a compact copy of the encoded request body.
+     */
+    public byte[] end() {
+
+        while (depth > 0) {
+            writeByte('}');
+            depth--;
+        }
+        byte[] payload = Arrays.copyOf(buffer, count);
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        count = 0;
+        return payload;
+    }
+
+    private void writeName(String name) {
+
+        if (!firstField) {
+            writeByte(',');
+        }
+        firstField = false;
+        writeString(name);
+        writeByte(':');
+    }
+
+    private void writeHeaderValue(String header, String value) {
+
+        // Policies decode the token in the Authorization header, hence it is never truncated
+        if (SecurityHandlerConstants.AUTHORIZATION_HEADER_NAME.equalsIgnoreCase(header)) {
+            writeString(value);
+        } else {
+            writeValue(value);
+        }
+    }
+
+    /**
+     * Writes a header or authentication context value, truncated to the maximum value length.
+     */
+    private void writeValue(String value) {
+
+        if (value != null && maxValueLength > 0 && value.length() > maxValueLength) {
+            int end = maxValueLength;
+            // Do not split a surrogate pair
+            if (Character.isHighSurrogate(value.charAt(end - 1))) {
+                end--;
+            }
+            writeString(value, end);
+        } else {
+            writeString(value);
+        }
+    }
+
+    private void writeString(String value) {
+
+        if (value == null) {
+            writeRaw(NULL_BYTES);
+            return;
+        }
+        writeString(value, value.length());
+    }
+
+    private void writeString(String value, int length) {
+
+        writeByte('"');
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                writeEscapedAscii(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+            } else {
+                writeCodePoint(c);
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeEscapedAscii(char c) {
+
+        switch (c) {
+            case '"':
+                writeByte('\\');
+                writeByte('"');
+                break;
+            case '\\':
+                writeByte('\\');
+                writeByte('\\');
+                break;
+            case '\n':
+                writeByte('\\');
+                writeByte('n');
+                break;
+            case '\r':
+                writeByte('\\');
+                writeByte('r');
+                break;
+            case '\t':
+                writeByte('\\');
+                writeByte('t');
+                break;
+            default:
+                if (c < 0x20 || c == 0x7f) {
+                    writeByte('\\');
+                    writeByte('u');
+                    writeByte('0');
+                    writeByte('0');
+                    writeByte(HEX_DIGITS[(c >> 4) & 0xf]);
+                    writeByte(HEX_DIGITS[c & 0xf]);
+                } else {
+                    writeByte(c);
+                }
+        }
+    }
+
+    private void writeCodePoint(int codePoint) {
+
+        ensureCapacity(4);
+        if (codePoint < 0x80) {
+            buffer[count++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            buffer[count++] = (byte) (0xc0 | (codePoint >> 6));
+            buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint <= Character.MAX_VALUE && Character.isSurrogate((char) codePoint)) {
+            // Unpaired surrogates cannot be encoded in UTF-8
+            buffer[count++] = '?';
+        } else if (codePoint < 0x10000) {
+            buffer[count++] = (byte) (0xe0 | (codePoint >> 12));
+            buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private void writeAscii(String value) {
+
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeRaw(byte[] bytes) {
+
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeByte(int b) {
+
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void ensureCapacity(int additional) {
+
+        if (count + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, count + additional));
+        }
+    }
+
+    /**
+     * Character sink handed to Gson. Gson already produces escaped JSON, hence characters are only UTF-8 encoded.
+     */
+    private class Utf8Writer extends Writer {
+
+        private char pendingHighSurrogate;
+
+        @Override
+        public void write(int c) {
+
+            char ch = (char) c;
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(ch)) {
+                    writeCodePoint(Character.toCodePoint(high, ch));
+                    return;
+                }
+                writeCodePoint(high);
+            }
+            if (Character.isHighSurrogate(ch)) {
+                pendingHighSurrogate = ch;
+            } else {
+                writeCodePoint(ch);
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+
+            for (int i = offset; i < offset + length; i++) {
+                write(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String value, int offset, int length) {
+
+            for (int i = offset; i < offset + length; i++) {
+                write(value.charAt(i));
+            }
+        }
+
+        void flushPendingSurrogate() {
+
+            if (pendingHighSurrogate != 0) {
+                writeCodePoint(pendingHighSurrogate);
+                pendingHighSurrogate = 0;
+            }
+        }
+
+        @Override
+        public void flush() {
+
+        }
+
+        @Override
+        public void close() {
+
+        }
+    }
+}
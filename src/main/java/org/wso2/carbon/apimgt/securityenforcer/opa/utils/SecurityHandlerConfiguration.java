@@ -31,7 +31,9 @@ import org.wso2.securevault.SecretResolverFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Stack;
 
 import javax.xml.namespace.QName;
@@ -225,6 +227,20 @@ public class SecurityHandlerConfiguration {
                 } else {
                     log.error("Security handler config error - OPA Server access token not found");
                 }
+
+                OMElement queryPolicyPackageElement = opaServerConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.QUERY_POLICY_PACKAGE_CONFIGURATION));
+                if (queryPolicyPackageElement != null) {
+                    serverConfig.setQueryPolicyPackage(
+                            JavaUtils.isTrueExplicitly(queryPolicyPackageElement.getText()));
+                }
+
+                OMElement policyRegistryRefreshIntervalElement = opaServerConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.POLICY_REGISTRY_REFRESH_INTERVAL_CONFIGURATION));
+                if (policyRegistryRefreshIntervalElement != null) {
+                    serverConfig.setPolicyRegistryRefreshInterval(
+                            Integer.parseInt(policyRegistryRefreshIntervalElement.getText()));
+                }
                 securityHandlerConfig.setServerConfig(serverConfig);
             } else {
                 log.error("Security handler config error - OPA Server config not found");
@@ -255,6 +271,98 @@ public class SecurityHandlerConfiguration {
                 if (cookieCacheElement != null) {
                     cacheConfig.setCookieCacheEnabled(JavaUtils.isTrueExplicitly(cookieCacheElement.getText()));
                 }
+
+                OMElement authContextCacheElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.AUTH_CONTEXT_CACHE_CONFIGURATION));
+                if (authContextCacheElement != null) {
+                    cacheConfig.setAuthContextCacheEnabled(
+                            JavaUtils.isTrueExplicitly(authContextCacheElement.getText()));
+                }
+
+                OMElement authContextCacheSizeElement = cacheConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.AUTH_CONTEXT_CACHE_SIZE_CONFIGURATION));
+                if (authContextCacheSizeElement != null) {
+                    cacheConfig.setAuthContextCacheSize(Integer.parseInt(authContextCacheSizeElement.getText()));
+                }
+
+                OMElement decisionCacheElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.DECISION_CACHE_CONFIGURATION));
+                if (decisionCacheElement != null) {
+                    cacheConfig.setDecisionCacheEnabled(JavaUtils.isTrueExplicitly(decisionCacheElement.getText()));
+                }
+
+                OMElement syncModeCacheElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.SYNC_MODE_CACHE_CONFIGURATION));
+                if (syncModeCacheElement != null) {
+                    cacheConfig.setSyncModeCacheEnabled(JavaUtils.isTrueExplicitly(syncModeCacheElement.getText()));
+                }
+
+                OMElement maxDecisionTTLElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.MAX_DECISION_TTL_CONFIGURATION));
+                if (maxDecisionTTLElement != null) {
+                    cacheConfig.setMaxDecisionTTL(Integer.parseInt(maxDecisionTTLElement.getText()));
+                }
+
+                OMElement refreshAheadFactorElement = cacheConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.REFRESH_AHEAD_FACTOR_CONFIGURATION));
+                if (refreshAheadFactorElement != null) {
+                    double refreshAheadFactor = Double.parseDouble(refreshAheadFactorElement.getText());
+                    if (refreshAheadFactor < 0 || refreshAheadFactor >= 1) {
+                        log.error("Security handler config error - RefreshAheadFactor must be at least 0 and less "
+                                + "than 1");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    cacheConfig.setRefreshAheadFactor(refreshAheadFactor);
+                }
+
+                OMElement staleWhileRevalidateElement = cacheConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.STALE_WHILE_REVALIDATE_CONFIGURATION));
+                if (staleWhileRevalidateElement != null) {
+                    cacheConfig.setStaleWhileRevalidate(Integer.parseInt(staleWhileRevalidateElement.getText()));
+                }
+
+                OMElement localCacheSizeElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.LOCAL_CACHE_SIZE_CONFIGURATION));
+                if (localCacheSizeElement != null) {
+                    cacheConfig.setLocalCacheSize(Integer.parseInt(localCacheSizeElement.getText()));
+                }
+
+                OMElement offHeapCacheSizeElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.OFF_HEAP_CACHE_SIZE_CONFIGURATION));
+                if (offHeapCacheSizeElement != null) {
+                    cacheConfig.setOffHeapCacheSize(Integer.parseInt(offHeapCacheSizeElement.getText()));
+                }
+
+                OMElement keyDerivationElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.KEY_DERIVATION_CONFIGURATION));
+                if (keyDerivationElement != null) {
+                    cacheConfig.setKeyDerivation(keyDerivationElement.getText().trim());
+                }
+
+                OMElement keyDerivationSecretElement = cacheConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.KEY_DERIVATION_SECRET_CONFIGURATION));
+                if (keyDerivationSecretElement != null) {
+                    cacheConfig.setKeyDerivationSecret(keyDerivationSecretElement.getText().trim());
+                }
+
+                OMElement snapshotFileElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.SNAPSHOT_FILE_CONFIGURATION));
+                if (snapshotFileElement != null) {
+                    cacheConfig.setSnapshotFile(snapshotFileElement.getText().trim());
+                }
+
+                OMElement snapshotIntervalElement = cacheConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.SNAPSHOT_INTERVAL_CONFIGURATION));
+                if (snapshotIntervalElement != null) {
+                    int snapshotInterval = Integer.parseInt(snapshotIntervalElement.getText());
+                    if (snapshotInterval <= 0) {
+                        log.error("Security handler config error - SnapshotInterval must be greater than 0");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    cacheConfig.setSnapshotInterval(snapshotInterval);
+                }
             } else {
                 log.debug("Cache config is not set. Set to default.");
             }
@@ -283,11 +391,111 @@ public class SecurityHandlerConfiguration {
                 if (connectionTimeoutElement != null) {
                     dataPublisherConfig.setConnectionTimeout(Integer.parseInt(connectionTimeoutElement.getText()));
                 }
+
+                OMElement transportElement = dataPublisherConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.TRANSPORT_CONFIGURATION));
+                if (transportElement != null) {
+                    String transport = transportElement.getText().trim();
+                    if (!SecurityHandlerConstants.BLOCKING_TRANSPORT_STRING.equals(transport)
+                            && !SecurityHandlerConstants.NIO_TRANSPORT_STRING.equals(transport)
+                            && !SecurityHandlerConstants.HTTP2_TRANSPORT_STRING.equals(transport)) {
+                        log.error("Security handler config error - Data publisher transport should be "
+                                + SecurityHandlerConstants.BLOCKING_TRANSPORT_STRING + ", "
+                                + SecurityHandlerConstants.NIO_TRANSPORT_STRING + " or "
+                                + SecurityHandlerConstants.HTTP2_TRANSPORT_STRING);
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    if (!SecurityHandlerConstants.BLOCKING_TRANSPORT_STRING.equals(transport)
+                            && serverConfig.isUnixSocketEndPointUsed()) {
+                        log.error("Security handler config error - Unix domain socket endpoints are only supported "
+                                + "by the " + SecurityHandlerConstants.BLOCKING_TRANSPORT_STRING
+                                + " data publisher transport");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    dataPublisherConfig.setTransport(transport);
+                }
+
+                OMElement batchSizeElement = dataPublisherConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.BATCH_SIZE_CONFIGURATION));
+                if (batchSizeElement != null) {
+                    int batchSize = Integer.parseInt(batchSizeElement.getText());
+                    if (batchSize < 0) {
+                        log.error("Security handler config error - BatchSize must not be negative");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    dataPublisherConfig.setBatchSize(batchSize);
+                }
+
+                OMElement batchDelayElement = dataPublisherConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.BATCH_DELAY_CONFIGURATION));
+                if (batchDelayElement != null) {
+                    long batchDelay = Long.parseLong(batchDelayElement.getText());
+                    if (batchDelay <= 0) {
+                        log.error("Security handler config error - BatchDelay must be greater than 0");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    dataPublisherConfig.setBatchDelay(batchDelay);
+                }
+
+                OMElement batchRuleElement = dataPublisherConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.BATCH_RULE_CONFIGURATION));
+                if (batchRuleElement != null) {
+                    dataPublisherConfig.setBatchRule(batchRuleElement.getText().trim());
+                }
+
+                OMElement coalesceRequestsElement = dataPublisherConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.COALESCE_REQUESTS_CONFIGURATION));
+                if (coalesceRequestsElement != null) {
+                    dataPublisherConfig
+                            .setCoalesceRequests(JavaUtils.isTrueExplicitly(coalesceRequestsElement.getText()));
+                }
             } else {
                 log.debug("Data publisher config is not set. Set to default.");
             }
             securityHandlerConfig.setDataPublisherConfig(dataPublisherConfig);
 
+            // Get WebAssembly policy config data
+            OMElement wasmPolicyConfigElement = securityConfigurationElement
+                    .getFirstChildWithName(new QName(SecurityHandlerConstants.WASM_POLICY_CONFIGURATION));
+            SecurityHandlerConfig.WasmPolicyConfig wasmPolicyConfig = new SecurityHandlerConfig.WasmPolicyConfig();
+            if (wasmPolicyConfigElement != null) {
+                OMElement directoryElement = wasmPolicyConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.WASM_POLICY_DIRECTORY_CONFIGURATION));
+                if (directoryElement != null) {
+                    wasmPolicyConfig.setDirectory(directoryElement.getText().trim());
+                }
+
+                OMElement reloadIntervalElement = wasmPolicyConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.WASM_RELOAD_INTERVAL_CONFIGURATION));
+                if (reloadIntervalElement != null) {
+                    int reloadInterval = Integer.parseInt(reloadIntervalElement.getText());
+                    if (reloadInterval < 0) {
+                        log.error("Security handler config error - WasmPolicy ReloadInterval must not be negative");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    wasmPolicyConfig.setReloadInterval(reloadInterval);
+                }
+
+                OMElement runtimeElement = wasmPolicyConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.WASM_RUNTIME_CONFIGURATION));
+                if (runtimeElement != null) {
+                    wasmPolicyConfig.setRuntime(runtimeElement.getText().trim());
+                }
+            }
+            if (SecurityHandlerConstants.WASM_MODE_STRING.equals(securityHandlerConfig.getMode())
+                    && (wasmPolicyConfig.getDirectory() == null || wasmPolicyConfig.getRuntime() == null)) {
+                log.error("Security handler config error - WasmPolicy Directory and Runtime are required in "
+                        + SecurityHandlerConstants.WASM_MODE_STRING + " mode");
+                throw new SecurityException(SecurityException.HANDLER_ERROR,
+                        SecurityException.HANDLER_ERROR_MESSAGE);
+            }
+            securityHandlerConfig.setWasmPolicyConfig(wasmPolicyConfig);
+
             // Get thread pool executor config data
             OMElement threadPoolExecutorConfigElement = securityConfigurationElement
                     .getFirstChildWithName(new QName(SecurityHandlerConstants.THREAD_POOL_EXECUTOR_CONFIGURATION));
@@ -311,32 +519,133 @@ public class SecurityHandlerConfiguration {
                 if (keepAliveTimeElement != null) {
                     threadPoolExecutorConfig.setKeepAliveTime(Long.parseLong(keepAliveTimeElement.getText()));
                 }
+
+                OMElement syncDispatchElement = threadPoolExecutorConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.SYNC_DISPATCH_CONFIGURATION));
+                if (syncDispatchElement != null) {
+                    String syncDispatch = syncDispatchElement.getText().trim();
+                    if (!SecurityHandlerConstants.EXECUTOR_SYNC_DISPATCH_STRING.equals(syncDispatch)
+                            && !SecurityHandlerConstants.CALLER_SYNC_DISPATCH_STRING.equals(syncDispatch)) {
+                        log.error("Security handler config error - SyncDispatch should be "
+                                + SecurityHandlerConstants.EXECUTOR_SYNC_DISPATCH_STRING + " or "
+                                + SecurityHandlerConstants.CALLER_SYNC_DISPATCH_STRING);
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    threadPoolExecutorConfig.setSyncDispatch(syncDispatch);
+                }
+
+                OMElement threadTypeElement = threadPoolExecutorConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.THREAD_TYPE_CONFIGURATION));
+                if (threadTypeElement != null) {
+                    String threadType = threadTypeElement.getText().trim();
+                    if (!SecurityHandlerConstants.PLATFORM_THREAD_TYPE_STRING.equals(threadType)
+                            && !SecurityHandlerConstants.VIRTUAL_THREAD_TYPE_STRING.equals(threadType)) {
+                        log.error("Security handler config error - ThreadType should be "
+                                + SecurityHandlerConstants.PLATFORM_THREAD_TYPE_STRING + " or "
+                                + SecurityHandlerConstants.VIRTUAL_THREAD_TYPE_STRING);
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    threadPoolExecutorConfig.setThreadType(threadType);
+                }
+
+                OMElement virtualThreadConcurrencyElement = threadPoolExecutorConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.VIRTUAL_THREAD_CONCURRENCY_CONFIGURATION));
+                if (virtualThreadConcurrencyElement != null) {
+                    int virtualThreadConcurrency = Integer.parseInt(virtualThreadConcurrencyElement.getText());
+                    if (virtualThreadConcurrency <= 0) {
+                        log.error("Security handler config error - VirtualThreadConcurrency must be greater than 0");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    threadPoolExecutorConfig.setVirtualThreadConcurrency(virtualThreadConcurrency);
+                }
+
+                OMElement queueCapacityElement = threadPoolExecutorConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.QUEUE_CAPACITY_CONFIGURATION));
+                if (queueCapacityElement != null) {
+                    int queueCapacity = Integer.parseInt(queueCapacityElement.getText());
+                    if (queueCapacity < 0) {
+                        log.error("Security handler config error - QueueCapacity cannot be negative");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    threadPoolExecutorConfig.setQueueCapacity(queueCapacity);
+                }
+
+                OMElement cacheMissOverflowPolicyElement = threadPoolExecutorConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.CACHE_MISS_OVERFLOW_POLICY_CONFIGURATION));
+                if (cacheMissOverflowPolicyElement != null) {
+                    threadPoolExecutorConfig.setCacheMissOverflowPolicy(getOverflowPolicy(
+                            SecurityHandlerConstants.CACHE_MISS_OVERFLOW_POLICY_CONFIGURATION,
+                            cacheMissOverflowPolicyElement));
+                }
+
+                OMElement refreshOverflowPolicyElement = threadPoolExecutorConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.REFRESH_OVERFLOW_POLICY_CONFIGURATION));
+                if (refreshOverflowPolicyElement != null) {
+                    threadPoolExecutorConfig.setRefreshOverflowPolicy(getOverflowPolicy(
+                            SecurityHandlerConstants.REFRESH_OVERFLOW_POLICY_CONFIGURATION,
+                            refreshOverflowPolicyElement));
+                }
+
+                OMElement overflowSampleRateElement = threadPoolExecutorConfigElement.getFirstChildWithName(
+                        new QName(SecurityHandlerConstants.OVERFLOW_SAMPLE_RATE_CONFIGURATION));
+                if (overflowSampleRateElement != null) {
+                    int overflowSampleRate = Integer.parseInt(overflowSampleRateElement.getText());
+                    if (overflowSampleRate <= 0) {
+                        log.error("Security handler config error - OverflowSampleRate must be greater than 0");
+                        throw new SecurityException(SecurityException.HANDLER_ERROR,
+                                SecurityException.HANDLER_ERROR_MESSAGE);
+                    }
+                    threadPoolExecutorConfig.setOverflowSampleRate(overflowSampleRate);
+                }
             } else {
                 log.debug("Thread pool config is not set. Set to default.");
             }
             securityHandlerConfig.setThreadPoolExecutorConfig(threadPoolExecutorConfig);
 
-            // Get stack object pool config data
-            OMElement stackObjectPoolConfigElement = securityConfigurationElement
-                    .getFirstChildWithName(new QName(SecurityHandlerConstants.STACK_OBJECT_POOL_CONFIGURATION));
-            SecurityHandlerConfig.StackObjectPoolConfig stackObjectPoolConfig =
-                    new SecurityHandlerConfig.StackObjectPoolConfig();
-            if (stackObjectPoolConfigElement != null) {
-                OMElement maxIdleElement = stackObjectPoolConfigElement
-                        .getFirstChildWithName(new QName(SecurityHandlerConstants.MAX_IDLE_CONFIGURATION));
-                if (maxIdleElement != null) {
-                    stackObjectPoolConfig.setMaxIdle(Integer.parseInt(maxIdleElement.getText()));
+            // Publishing agents are no longer pooled, hence the stack object pool config is not used
+            if (securityConfigurationElement.getFirstChildWithName(
+                    new QName(SecurityHandlerConstants.STACK_OBJECT_POOL_CONFIGURATION)) != null) {
+                log.warn("Security handler config - StackObjectPool is no longer used and is ignored");
+            }
+
+            // Get input projection config data
+            OMElement inputProjectionConfigElement = securityConfigurationElement
+                    .getFirstChildWithName(new QName(SecurityHandlerConstants.INPUT_PROJECTION_CONFIGURATION));
+            SecurityHandlerConfig.InputProjectionConfig inputProjectionConfig =
+                    new SecurityHandlerConfig.InputProjectionConfig();
+            if (inputProjectionConfigElement != null) {
+                OMElement maxValueLengthElement = inputProjectionConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.MAX_VALUE_LENGTH_CONFIGURATION));
+                if (maxValueLengthElement != null) {
+                    inputProjectionConfig.setMaxValueLength(Integer.parseInt(maxValueLengthElement.getText()));
                 }
 
-                OMElement initIdleCapacityElement = stackObjectPoolConfigElement
-                        .getFirstChildWithName(new QName(SecurityHandlerConstants.INIT_IDLE_CAPACITY_CONFIGURATION));
-                if (initIdleCapacityElement != null) {
-                    stackObjectPoolConfig.setInitIdleCapacity(Integer.parseInt(initIdleCapacityElement.getText()));
+                OMElement defaultSchemaElement = inputProjectionConfigElement
+                        .getFirstChildWithName(new QName(SecurityHandlerConstants.DEFAULT_INPUT_SCHEMA_CONFIGURATION));
+                if (defaultSchemaElement != null) {
+                    inputProjectionConfig.setDefaultSchema(getInputSchema(defaultSchemaElement));
+                }
+
+                for (Iterator apiSchemaElements = inputProjectionConfigElement
+                        .getChildrenWithName(new QName(SecurityHandlerConstants.API_INPUT_SCHEMA_CONFIGURATION));
+                     apiSchemaElements.hasNext(); ) {
+                    OMElement apiSchemaElement = (OMElement) apiSchemaElements.next();
+                    String apiContext = apiSchemaElement
+                            .getAttributeValue(new QName(SecurityHandlerConstants.API_CONTEXT_ATTRIBUTE));
+                    if (apiContext == null || apiContext.trim().isEmpty()) {
+                        log.error("Security handler config error - API input schema without a context is ignored");
+                        continue;
+                    }
+                    inputProjectionConfig.addApiSchema(apiContext.trim(), getInputSchema(apiSchemaElement));
                 }
             } else {
-                log.debug("Stack object pool config is not set. Set to default.");
+                log.debug("Input projection config is not set. Every header and auth context field will be sent.");
             }
-            securityHandlerConfig.setStackObjectPoolConfig(stackObjectPoolConfig);
+            securityHandlerConfig.setInputProjectionConfig(inputProjectionConfig);
 
             if (securityConfigurationElement != null && opaServerConfigElement != null && opaEndPointElement != null) {
                 securityHandlerConfig.setPolicyEnforcementEnabled(true);
@@ -345,6 +654,59 @@ public class SecurityHandlerConfiguration {
         }
     }
 
+    /**
+     * Reads the header and auth context field whitelists of an input schema element.
+     */
+    private SecurityHandlerConfig.InputSchema getInputSchema(OMElement schemaElement) {
+
+        SecurityHandlerConfig.InputSchema inputSchema = new SecurityHandlerConfig.InputSchema();
+        OMElement headersElement = schemaElement
+                .getFirstChildWithName(new QName(SecurityHandlerConstants.HEADERS_CONFIGURATION));
+        if (headersElement != null) {
+            inputSchema.setHeaders(getListValue(headersElement.getText()));
+        }
+        OMElement authContextFieldsElement = schemaElement
+                .getFirstChildWithName(new QName(SecurityHandlerConstants.AUTH_CONTEXT_FIELDS_CONFIGURATION));
+        if (authContextFieldsElement != null) {
+            inputSchema.setAuthContextFields(getListValue(authContextFieldsElement.getText()));
+        }
+        return inputSchema;
+    }
+
+    /**
+     * Reads an overflow policy of the publisher queues, which is one of drop-oldest, drop-newest or sample.
+     */
+    private String getOverflowPolicy(String configName, OMElement overflowPolicyElement) throws SecurityException {
+
+        String overflowPolicy = overflowPolicyElement.getText().trim();
+        if (!SecurityHandlerConstants.DROP_OLDEST_OVERFLOW_POLICY_STRING.equals(overflowPolicy)
+                && !SecurityHandlerConstants.DROP_NEWEST_OVERFLOW_POLICY_STRING.equals(overflowPolicy)
+                && !SecurityHandlerConstants.SAMPLE_OVERFLOW_POLICY_STRING.equals(overflowPolicy)) {
+            log.error("Security handler config error - " + configName + " should be "
+                    + SecurityHandlerConstants.DROP_OLDEST_OVERFLOW_POLICY_STRING + ", "
+                    + SecurityHandlerConstants.DROP_NEWEST_OVERFLOW_POLICY_STRING + " or "
+                    + SecurityHandlerConstants.SAMPLE_OVERFLOW_POLICY_STRING);
+            throw new SecurityException(SecurityException.HANDLER_ERROR, SecurityException.HANDLER_ERROR_MESSAGE);
+        }
+        return overflowPolicy;
+    }
+
+    /**
+     * Splits a comma separated config value.
+     */
+    private List<String> getListValue(String value) {
+
+        List<String> values = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
     private int getPortOffset() {
 
         ServerConfiguration carbonConfig = ServerConfiguration.getInstance();
@@ -22,6 +22,8 @@ public class SecurityHandlerConstants {
 
     public static final String HTTPS_PROTOCOL = "https";
     public static final String HTTP_PROTOCOL = "http";
+    public static final String UNIX_SOCKET_PROTOCOL = "unix";
+    public static final String UNIX_SOCKET_URI_PREFIX = "unix://";
     public static final String HTTP_METHOD_STRING = "HTTP_METHOD";
     public static final String API_BASEPATH_STRING = "TransportInURL";
     public static final String JSON_KEY_SOURCE_IP = "source_ip";
@@ -37,11 +39,13 @@ public class SecurityHandlerConstants {
     public static final String TOKEN_CACHE_NAME = "TokenCache";
     public static final String IP_CACHE_NAME = "IPCache";
     public static final String COOKIE_CACHE_NAME = "CookieCache";
-    public static final String TOKEN_KEY_NAME = "Token";
-    public static final String IP_KEY_NAME = "IP";
-    public static final String COOKIE_KEY_NAME = "Cookie";
-    public static final String SERVER_PAYLOAD_KEY_NAME = "ServerPayload";
+    public static final String DECISION_CACHE_NAME = "DecisionCache";
+    public static final String POLICY_EPOCH_MBEAN_NAME = "org.wso2.carbon.apimgt.securityenforcer.opa:type=PolicyEpoch";
+    public static final String PUBLISHER_QUEUE_STATS_MBEAN_NAME =
+            "org.wso2.carbon.apimgt.securityenforcer.opa:type=PublisherQueueStats";
+    public static final String API_ELECTED_RESOURCE = "API_ELECTED_RESOURCE";
     public static final String INPUT_KEY_NAME = "input";
+    public static final String BATCH_INPUT_KEY_NAME = "batch";
     public static final String TRANSPORT_HEADER_HOST_NAME = "Host";
     public static final int DUMMY_REQUEST_PORT = 8080;
     public static final int SERVER_RESPONSE_CODE_SUCCESS = 200;
@@ -50,6 +54,19 @@ public class SecurityHandlerConstants {
     public static final String SYNC_MODE_STRING = "sync";
     public static final String ASYNC_MODE_STRING = "async";
     public static final String HYBRID_MODE_STRING = "hybrid";
+    public static final String WASM_MODE_STRING = "wasm";
+    public static final String WASM_POLICY_FILE_NAME = "policy.wasm";
+    public static final String WASM_DATA_FILE_NAME = "data.json";
+    public static final String BLOCKING_TRANSPORT_STRING = "blocking";
+    public static final String NIO_TRANSPORT_STRING = "nio";
+    public static final String HTTP2_TRANSPORT_STRING = "http2";
+    public static final String EXECUTOR_SYNC_DISPATCH_STRING = "executor";
+    public static final String CALLER_SYNC_DISPATCH_STRING = "caller";
+    public static final String PLATFORM_THREAD_TYPE_STRING = "platform";
+    public static final String VIRTUAL_THREAD_TYPE_STRING = "virtual";
+    public static final String DROP_OLDEST_OVERFLOW_POLICY_STRING = "drop-oldest";
+    public static final String DROP_NEWEST_OVERFLOW_POLICY_STRING = "drop-newest";
+    public static final String SAMPLE_OVERFLOW_POLICY_STRING = "sample";
     public static final String END_USER_NAME = "api.ut.userName";
     public static final String REQUEST_RECEIVED_TIME = "wso2statistics.request.received.time";
     public static final String AUTHORIZATION = "Authorization";
@@ -58,6 +75,12 @@ public class SecurityHandlerConstants {
     public static final String AUTHORIZATION_HEADER_NAME = "Authorization";
     public static final String UNAUTHENTICATED_TIER = "Unauthenticated";
     public static final String ALLOW_RULE = "/allow";
+    public static final String OPA_DATA_API_PATH = "/v1/data";
+    public static final String OPA_POLICIES_API_PATH = "/v1/policies";
+    public static final String JSON_KEY_RESULT = "result";
+    public static final String JSON_KEY_ALLOW = "allow";
+    public static final String JSON_KEY_TTL_SECONDS = "ttl_seconds";
+    public static final String JSON_KEY_CACHEABLE = "cacheable";
     static final String HTTP_VERSION_CONNECTOR = ".";
     static final String API_SECURITY_NS = "http://wso2.org/apimanager/security";
     static final String API_SECURITY_NS_PREFIX = "ams";
@@ -75,17 +98,53 @@ public class SecurityHandlerConstants {
     static final String TOKEN_CACHE_CONFIGURATION = "TokenCache";
     static final String IP_CACHE_CONFIGURATION = "IPCache";
     static final String COOKIE_CACHE_CONFIGURATION = "CookieCache";
+    static final String AUTH_CONTEXT_CACHE_CONFIGURATION = "AuthContextCache";
+    static final String AUTH_CONTEXT_CACHE_SIZE_CONFIGURATION = "AuthContextCacheSize";
+    static final String KEY_DERIVATION_CONFIGURATION = "KeyDerivation";
+    static final String LOCAL_CACHE_SIZE_CONFIGURATION = "LocalCacheSize";
+    static final String OFF_HEAP_CACHE_SIZE_CONFIGURATION = "OffHeapCacheSize";
+    static final String SNAPSHOT_FILE_CONFIGURATION = "SnapshotFile";
+    static final String SNAPSHOT_INTERVAL_CONFIGURATION = "SnapshotInterval";
+    static final String DECISION_CACHE_CONFIGURATION = "DecisionCache";
+    static final String SYNC_MODE_CACHE_CONFIGURATION = "SyncModeCache";
+    static final String MAX_DECISION_TTL_CONFIGURATION = "MaxDecisionTTL";
+    static final String REFRESH_AHEAD_FACTOR_CONFIGURATION = "RefreshAheadFactor";
+    static final String STALE_WHILE_REVALIDATE_CONFIGURATION = "StaleWhileRevalidate";
+    static final String QUERY_POLICY_PACKAGE_CONFIGURATION = "QueryPolicyPackage";
+    static final String POLICY_REGISTRY_REFRESH_INTERVAL_CONFIGURATION = "PolicyRegistryRefreshInterval";
+    static final String KEY_DERIVATION_SECRET_CONFIGURATION = "KeyDerivationSecret";
     static final String DATA_PUBLISHER_CONFIGURATION = "DataPublisher";
     static final String MAX_PER_ROUTE_CONFIGURATION = "MaxPerRoute";
     static final String MAX_OPEN_CONNECTIONS_CONFIGURATION = "MaxOpenConnections";
     static final String CONNECTIONS_TIMEOUT_CONFIGURATION = "ConnectionTimeout";
+    static final String TRANSPORT_CONFIGURATION = "Transport";
+    static final String BATCH_SIZE_CONFIGURATION = "BatchSize";
+    static final String BATCH_DELAY_CONFIGURATION = "BatchDelay";
+    static final String BATCH_RULE_CONFIGURATION = "BatchRule";
+    static final String COALESCE_REQUESTS_CONFIGURATION = "CoalesceRequests";
+    static final String WASM_POLICY_CONFIGURATION = "WasmPolicy";
+    static final String WASM_POLICY_DIRECTORY_CONFIGURATION = "Directory";
+    static final String WASM_RELOAD_INTERVAL_CONFIGURATION = "ReloadInterval";
+    static final String WASM_RUNTIME_CONFIGURATION = "Runtime";
     static final String THREAD_POOL_EXECUTOR_CONFIGURATION = "ThreadPoolExecutor";
     static final String CORE_POOL_SIZE_CONFIGURATION = "CorePoolSize";
     static final String MAX_POOL_SIZE_CONFIGURATION = "MaximumPoolSize";
     static final String KEEP_ALIVE_TIME_CONFIGURATION = "KeepAliveTime";
+    static final String SYNC_DISPATCH_CONFIGURATION = "SyncDispatch";
+    static final String THREAD_TYPE_CONFIGURATION = "ThreadType";
+    static final String VIRTUAL_THREAD_CONCURRENCY_CONFIGURATION = "VirtualThreadConcurrency";
+    static final String QUEUE_CAPACITY_CONFIGURATION = "QueueCapacity";
+    static final String CACHE_MISS_OVERFLOW_POLICY_CONFIGURATION = "CacheMissOverflowPolicy";
+    static final String REFRESH_OVERFLOW_POLICY_CONFIGURATION = "RefreshOverflowPolicy";
+    static final String OVERFLOW_SAMPLE_RATE_CONFIGURATION = "OverflowSampleRate";
     static final String STACK_OBJECT_POOL_CONFIGURATION = "StackObjectPool";
-    static final String MAX_IDLE_CONFIGURATION = "MaxIdle";
-    static final String INIT_IDLE_CAPACITY_CONFIGURATION = "InitIdleCapacity";
+    static final String INPUT_PROJECTION_CONFIGURATION = "InputProjection";
+    static final String MAX_VALUE_LENGTH_CONFIGURATION = "MaxValueLength";
+    static final String DEFAULT_INPUT_SCHEMA_CONFIGURATION = "Default";
+    static final String API_INPUT_SCHEMA_CONFIGURATION = "API";
+    static final String API_CONTEXT_ATTRIBUTE = "context";
+    static final String HEADERS_CONFIGURATION = "Headers";
+    static final String AUTH_CONTEXT_FIELDS_CONFIGURATION = "AuthContextFields";
 
     private SecurityHandlerConstants() {
 
@@ -18,13 +18,12 @@
 
 package org.wso2.carbon.apimgt.securityenforcer.opa.utils;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.apache.axiom.om.OMAbstractFactory;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMFactory;
 import org.apache.axiom.om.OMNamespace;
 import org.apache.axis2.Constants;
+import org.apache.axis2.util.JavaUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.ProtocolVersion;
@@ -32,6 +31,7 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContexts;
 import org.apache.http.conn.ssl.TrustStrategy;
@@ -39,16 +39,22 @@ import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.synapse.MessageContext;
 import org.apache.synapse.transport.passthru.ServerWorker;
 import org.apache.synapse.transport.passthru.SourceRequest;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.wso2.carbon.apimgt.securityenforcer.opa.OPAResponseStore;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.CacheResponseDTO;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
 import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
 import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.UnixSocketConnectionSocketFactory;
 import org.wso2.carbon.utils.CarbonUtils;
 
 import java.io.FileInputStream;
@@ -61,7 +67,9 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
@@ -73,30 +81,6 @@ public class SecurityUtils {
     private static final String ALLOW_ALL = "AllowAll";
     private static final String HOST_NAME_VERIFIER = "httpclient.hostnameVerifier";
 
-    /**
-     * Return a json array with with transport headers
-     *
-     * @param transportHeadersMap- transport headers map
-     * @return transportHeaderArray - JSON array with all the transport headers
-     */
-    public static JSONObject getTransportHeaders(TreeMap<String, String> transportHeadersMap, String correlationID) {
-
-        JSONObject transportHeaders = new JSONObject();
-        if (transportHeadersMap != null) {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            String transportHeadersString = gson.toJson(transportHeadersMap);
-            JSONParser parser = new JSONParser();
-            try {
-                transportHeaders = (JSONObject) parser.parse(transportHeadersString);
-            } catch (ParseException e) {
-                log.error("No Transport headers found for the request " + correlationID);
-            }
-        } else {
-            log.error("No Transport headers found for the request " + correlationID);
-        }
-        return transportHeaders;
-    }
-
     public static JSONObject addObj(String key, Object value) {
 
         JSONObject obj = new JSONObject();
@@ -118,9 +102,25 @@ public class SecurityUtils {
                                                     SecurityHandlerConfig.DataPublisherConfig dataPublisherConfiguration)
             throws SecurityException {
 
+        return getHttpClient(protocol, dataPublisherConfiguration, null);
+    }
+
+    /**
+     * Return a CloseableHttpClient instance which also connects to the Unix domain socket endpoints of the given
+     * factory.
+     *
+     * @param protocol-                  service endpoint protocol. It can be http/https
+     * @param dataPublisherConfiguration - DataPublisher Configurations
+     * @param unixSocketFactory          - factory of the Unix domain socket connections, or null
+     * @return CloseableHttpClient
+     */
+    public static CloseableHttpClient getHttpClient(String protocol,
+            SecurityHandlerConfig.DataPublisherConfig dataPublisherConfiguration,
+            UnixSocketConnectionSocketFactory unixSocketFactory) throws SecurityException {
+
         PoolingHttpClientConnectionManager pool;
         try {
-            pool = SecurityUtils.getPoolingHttpClientConnectionManager(protocol);
+            pool = SecurityUtils.getPoolingHttpClientConnectionManager(protocol, unixSocketFactory);
         } catch (Exception e) {
             throw new SecurityException(e);
         }
@@ -136,18 +136,72 @@ public class SecurityUtils {
         return HttpClients.custom().setConnectionManager(pool).setDefaultRequestConfig(params).build();
     }
 
+    /**
+     * Return a started CloseableHttpAsyncClient instance. Requests are multiplexed over non-blocking connections by
+     * one I/O dispatch thread per processor, instead of holding a thread for each request in flight.
+     *
+     * @param protocol-                  service endpoint protocol. It can be http/https
+     * @param dataPublisherConfiguration - DataPublisher Configurations
+     * @return CloseableHttpAsyncClient
+     */
+    public static CloseableHttpAsyncClient getAsyncHttpClient(String protocol,
+            SecurityHandlerConfig.DataPublisherConfig dataPublisherConfiguration) throws SecurityException {
+
+        //Socket timeout is set to 10 seconds addition to connection timeout.
+        RequestConfig params = RequestConfig.custom()
+                .setConnectTimeout(dataPublisherConfiguration.getConnectionTimeout() * 1000)
+                .setSocketTimeout((dataPublisherConfiguration.getConnectionTimeout() + 10) * 1000).build();
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setMaxConnTotal(dataPublisherConfiguration.getMaxOpenConnections())
+                .setMaxConnPerRoute(dataPublisherConfiguration.getMaxPerRoute())
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Runtime.getRuntime().availableProcessors()).build())
+                .setDefaultRequestConfig(params)
+                .setThreadFactory(new ThreadFactory() {
+
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+
+                        Thread thread = new Thread(runnable, "OPA-Http-Dispatcher-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        if (SecurityHandlerConstants.HTTPS_PROTOCOL.equals(protocol)) {
+            try {
+                builder.setSSLContext(getSSLContext()).setSSLHostnameVerifier(getHostnameVerifier());
+            } catch (Exception e) {
+                throw new SecurityException(e);
+            }
+        }
+        CloseableHttpAsyncClient asyncHttpClient = builder.build();
+        asyncHttpClient.start();
+        return asyncHttpClient;
+    }
+
     /**
      * Return a PoolingHttpClientConnectionManager instance
      *
      * @param protocol- service endpoint protocol. It can be http/https
+     * @param unixSocketFactory- factory of the Unix domain socket connections, or null
      * @return PoolManager
      */
-    private static PoolingHttpClientConnectionManager getPoolingHttpClientConnectionManager(String protocol)
+    private static PoolingHttpClientConnectionManager getPoolingHttpClientConnectionManager(String protocol,
+            UnixSocketConnectionSocketFactory unixSocketFactory)
             throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException, IOException,
             CertificateException {
 
         PoolingHttpClientConnectionManager poolManager;
-        if (SecurityHandlerConstants.HTTPS_PROTOCOL.equals(protocol)) {
+        if (unixSocketFactory != null) {
+            // The backup endpoint of a Unix domain socket can be a TCP endpoint of any protocol
+            Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register(SecurityHandlerConstants.HTTP_PROTOCOL, PlainConnectionSocketFactory.getSocketFactory())
+                    .register(SecurityHandlerConstants.HTTPS_PROTOCOL, createSocketFactory())
+                    .register(SecurityHandlerConstants.UNIX_SOCKET_PROTOCOL, unixSocketFactory).build();
+            poolManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry, unixSocketFactory);
+        } else if (SecurityHandlerConstants.HTTPS_PROTOCOL.equals(protocol)) {
             SSLConnectionSocketFactory sslsf = createSocketFactory();
             Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
                     .register(SecurityHandlerConstants.HTTPS_PROTOCOL, sslsf).build();
@@ -162,6 +216,18 @@ public class SecurityUtils {
             throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException,
             KeyManagementException {
 
+        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(getSSLContext(), getHostnameVerifier());
+        return sslsf;
+    }
+
+    /**
+     * Return the SSLContext used to connect to the OPA server. Server certificates are validated against the trust
+     * store of the product, unless the validation is skipped in the configuration.
+     */
+    public static SSLContext getSSLContext()
+            throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException,
+            KeyManagementException {
+
         SSLContext sslContext;
         if (ServiceReferenceHolder.getInstance().getSecurityHandlerConfig().isSkipCertValidation()) {
             //If skip validation is enabled, certificates will be trusted without a validation
@@ -181,6 +247,13 @@ public class SecurityUtils {
             trustStore.load(new FileInputStream(keyStorePath), keyStorePassword.toCharArray());
             sslContext = SSLContexts.custom().loadTrustMaterial(trustStore).build();
         }
+        return sslContext;
+    }
+
+    /**
+     * Return the hostname verifier selected through the httpclient.hostnameVerifier system property.
+     */
+    public static X509HostnameVerifier getHostnameVerifier() {
 
         X509HostnameVerifier hostnameVerifier;
         String hostnameVerifierOption = System.getProperty(HOST_NAME_VERIFIER);
@@ -192,9 +265,7 @@ public class SecurityUtils {
         } else {
             hostnameVerifier = SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
         }
-
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
-        return sslsf;
+        return hostnameVerifier;
     }
 
     /**
@@ -318,23 +389,65 @@ public class SecurityUtils {
      * @return false if non of the properties has any cache entry
      * @throws SecurityException if the cached response of any property is to block the request
      */
-    public static boolean verifyPropertiesWithCache(JSONObject requestMetaData,
+    public static boolean verifyPropertiesWithCache(RequestMetadata requestMetaData,
                                                     String correlationID) throws SecurityException {
 
+        String apiContext = requestMetaData.getApiContext();
         boolean statusForToken = SecurityUtils.verifyPropertyWithCache(SecurityHandlerConstants.TOKEN_CACHE_NAME,
-                SecurityHandlerConstants.TOKEN_KEY_NAME, requestMetaData, correlationID);
+                requestMetaData.getTokenCacheKey(), apiContext, correlationID);
         boolean statusForIP = SecurityUtils.verifyPropertyWithCache(SecurityHandlerConstants.IP_CACHE_NAME,
-                SecurityHandlerConstants.IP_KEY_NAME, requestMetaData, correlationID);
+                requestMetaData.getIpCacheKey(), apiContext, correlationID);
         boolean statusForCookie = SecurityUtils.verifyPropertyWithCache(SecurityHandlerConstants.COOKIE_CACHE_NAME,
-                SecurityHandlerConstants.COOKIE_KEY_NAME, requestMetaData, correlationID);
+                requestMetaData.getCookieCacheKey(), apiContext, correlationID);
         return statusForToken || statusForIP || statusForCookie;
     }
 
-    public static boolean verifyPropertyWithCache(String cacheName, String propertyName, JSONObject requestMetaData,
+    /**
+     * Verify whether the principal of the request has a cached decision for the API resource it calls
+     *
+     * @param requestMetaData - Request data
+     * @param correlationID   - Correlation ID of the request
+     * @return the cache response, telling whether the decision is cached and whether it is due for a refresh
+     * @throws SecurityException if the cached decision is to block the request
+     */
+    public static CacheResponseDTO verifyDecisionWithCache(RequestMetadata requestMetaData, String correlationID)
+            throws SecurityException {
+
+        return verifyCacheResponse(SecurityHandlerConstants.DECISION_CACHE_NAME,
+                requestMetaData.getDecisionCacheKey(), requestMetaData.getApiContext(), correlationID);
+    }
+
+    /**
+     * Returns the decision cached for the API resource of the request, without verifying it, so that the caller
+     * knows whether a decision to block the request is due for a refresh.
+     */
+    public static CacheResponseDTO getDecisionFromCache(RequestMetadata requestMetaData) {
+
+        return OPAResponseStore.getFromOPAResponseCache(SecurityHandlerConstants.DECISION_CACHE_NAME,
+                requestMetaData.getDecisionCacheKey(), requestMetaData.getApiContext());
+    }
+
+    public static boolean verifyPropertyWithCache(String cacheName, CacheKey cacheKey, String apiContext,
                                                   String correlationID) throws SecurityException {
 
-        String property = (String) requestMetaData.get(propertyName);
-        CacheResponseDTO cacheResponse = OPAResponseStore.getFromOPAResponseCache(cacheName, property);
+        return verifyCacheResponse(cacheName, cacheKey, apiContext, correlationID).isAvailableInCache();
+    }
+
+    private static CacheResponseDTO verifyCacheResponse(String cacheName, CacheKey cacheKey, String apiContext,
+                                                        String correlationID) throws SecurityException {
+
+        CacheResponseDTO cacheResponse = OPAResponseStore.getFromOPAResponseCache(cacheName, cacheKey, apiContext);
+        verifyCacheResponse(cacheName, cacheResponse, correlationID);
+        //Since security exception was not thrown, either cached entry is not found, or the cached entry is true
+        return cacheResponse;
+    }
+
+    /**
+     * Verifies a cached response, which blocks the request if the cached entry was false.
+     */
+    public static void verifyCacheResponse(String cacheName, CacheResponseDTO cacheResponse, String correlationID)
+            throws SecurityException {
+
         if (cacheResponse.isAvailableInCache()) {
             if (log.isDebugEnabled()) {
                 log.debug("Status of " + cacheName + " for request " + correlationID + " is " +
@@ -342,10 +455,7 @@ public class SecurityUtils {
             }
             // If the cached entry was false, Security exception will be throwned
             verifServerResponse(cacheResponse.getCachedResponse(), correlationID, cacheName + " Cache");
-
         }
-        //Since security exception was not thrown, either cached entry is not found, or the cached entry is true
-        return cacheResponse.isAvailableInCache();
     }
 
     /**
@@ -368,6 +478,41 @@ public class SecurityUtils {
         }
     }
 
+    /**
+     * Reads the decision from the result of a policy, which is either the value of its allow rule or its package
+     * document. A package without an allow rule is handled in the same way as a missing policy, and the TTL and
+     * cacheable hints of a package are added to the decision.
+     *
+     * @param result     the result of the policy, which must not be null
+     * @param apiContext context of the API
+     */
+    public static Decision getDecision(Object result, String apiContext) {
+
+        if (!(result instanceof JSONObject)) {
+            return Decision.of(JavaUtils.isTrueExplicitly(result));
+        }
+        JSONObject packageDocument = (JSONObject) result;
+        Object allow = packageDocument.get(SecurityHandlerConstants.JSON_KEY_ALLOW);
+        if (allow == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("OPA Policy allow rule was not defined for the API " + apiContext);
+            }
+            return Decision.of(ServiceReferenceHolder.getInstance().getSecurityHandlerConfig()
+                    .getDefaultActionIfPolicyNotFound());
+        }
+        int ttlSeconds = Decision.DEFAULT_TTL;
+        Object ttl = packageDocument.get(SecurityHandlerConstants.JSON_KEY_TTL_SECONDS);
+        if (ttl instanceof Number) {
+            ttlSeconds = Math.max(0, ((Number) ttl).intValue());
+        }
+        boolean cacheable = true;
+        Object cacheableObject = packageDocument.get(SecurityHandlerConstants.JSON_KEY_CACHEABLE);
+        if (cacheableObject != null) {
+            cacheable = JavaUtils.isTrueExplicitly(cacheableObject);
+        }
+        return new Decision(JavaUtils.isTrueExplicitly(allow), ttlSeconds, cacheable);
+    }
+
     public static String getContext(String context) {
 
         if (context != null) {
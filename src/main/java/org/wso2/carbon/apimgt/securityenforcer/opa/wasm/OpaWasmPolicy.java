@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.wasm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A policy compiled to WebAssembly by OPA, evaluated through the ABI of the compiled policies. The OPA request body of
+ * a request is copied into the memory of an instance and parsed there, and the input document is taken from it, so
+ * that the same payload is used as for the OPA server. The data document of the policy is parsed into each instance
+ * once, when it is created. The heap of an instance is reset before each evaluation.
+ * <p>
+ * Instances are not thread safe, hence idle instances are pooled and a new instance is created when none is idle.
+ * The pool grows to the peak number of concurrent evaluations of the policy.
+ */
+public class OpaWasmPolicy {
+
+    private static final Log log = LogFactory.getLog(OpaWasmPolicy.class);
+
+    private static final byte[] EMPTY_DATA = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INPUT_KEY = ("\"" + SecurityHandlerConstants.INPUT_KEY_NAME + "\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final String name;
+    private final byte[] module;
+    private final byte[] data;
+    private final WasmRuntime runtime;
+    private final WasmRuntime.Host host;
+    private final int entrypointId;
+    private final Queue<PolicyInstance> idleInstances = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Loads a policy. The policy is instantiated once, to validate it and to find its entrypoint.
+     *
+     * @param name        name of the policy used in the logs
+     * @param module      binary of the module compiled by OPA
+     * @param data        the data document of the policy as a JSON object, or null if the policy has no data
+     * @param runtime     runtime the policy is run in
+     * @param entrypoints names of the entrypoints which may be evaluated, in the order of preference. The only
+     *                    entrypoint of a policy is evaluated if it has none of them.
+     * @throws WasmException if the module or the data document is invalid, the module has none of the entrypoints
+     *                       or depends on builtin functions which are not compiled into it
+     */
+    public OpaWasmPolicy(String name, byte[] module, byte[] data, WasmRuntime runtime, String... entrypoints)
+            throws WasmException {
+
+        this.name = name;
+        this.module = module;
+        this.data = data != null ? validateData(name, data) : EMPTY_DATA;
+        this.runtime = runtime;
+        this.host = new PolicyHost(name);
+        PolicyInstance instance = new PolicyInstance();
+        JSONObject builtins = instance.dumpObject(instance.wasm.call("builtins"));
+        if (!builtins.isEmpty()) {
+            throw new WasmException("OPA policy " + name + " depends on the builtin functions " + builtins.keySet()
+                    + ", which are not supported");
+        }
+        this.entrypointId = findEntrypoint(instance.dumpObject(instance.wasm.call("entrypoints")), entrypoints);
+        idleInstances.offer(instance);
+    }
+
+    /**
+     * Evaluates the policy.
+     *
+     * @param payload the OPA request body of the request, holding the input document
+     * @return the result of the entrypoint as parsed by json-simple, or null if it is undefined
+     * @throws WasmException if the evaluation fails
+     */
+    public Object evaluate(byte[] payload) throws WasmException {
+
+        PolicyInstance instance = idleInstances.poll();
+        if (instance == null) {
+            instance = new PolicyInstance();
+        }
+        Object result;
+        try {
+            result = instance.evaluate(payload);
+        } catch (RuntimeException e) {
+            // The state of an instance which failed is unknown, hence it is not reused
+            throw new WasmException("Evaluation of the OPA policy " + name + " failed", e);
+        }
+        idleInstances.offer(instance);
+        return result;
+    }
+
+    /**
+     * Checks that the data document is a JSON object, since the policy reads its data as the fields of an object.
+     */
+    private static byte[] validateData(String name, byte[] data) throws WasmException {
+
+        Object document;
+        try {
+            document = new JSONParser().parse(new String(data, StandardCharsets.UTF_8));
+        } catch (ParseException e) {
+            throw new WasmException("Invalid data document of the OPA policy " + name, e);
+        }
+        if (!(document instanceof JSONObject)) {
+            throw new WasmException("Data document of the OPA policy " + name + " is not a JSON object");
+        }
+        return data;
+    }
+
+    private int findEntrypoint(JSONObject entrypointIds, String... entrypoints) throws WasmException {
+
+        for (String entrypoint : entrypoints) {
+            Object id = entrypointIds.get(entrypoint);
+            if (id instanceof Number) {
+                return ((Number) id).intValue();
+            }
+        }
+        if (entrypointIds.size() == 1) {
+            Object id = entrypointIds.values().iterator().next();
+            if (id instanceof Number) {
+                return ((Number) id).intValue();
+            }
+        }
+        throw new WasmException("OPA policy " + name + " has none of the entrypoints " + Arrays.toString(entrypoints)
+                + ". Entrypoints of the policy: " + entrypointIds.keySet());
+    }
+
+    /**
+     * An instance of the policy, with the values it keeps below the heap reset point.
+     */
+    private class PolicyInstance {
+
+        private final WasmInstance wasm;
+        private final int dataAddress;
+        private final int inputKeyAddress;
+        private final int heapAddress;
+
+        PolicyInstance() throws WasmException {
+
+            wasm = runtime.instantiate(module, host);
+            dataAddress = parse(data);
+            inputKeyAddress = parse(INPUT_KEY);
+            heapAddress = wasm.call("opa_heap_ptr_get");
+        }
+
+        Object evaluate(byte[] payload) throws WasmException {
+
+            wasm.call("opa_heap_ptr_set", heapAddress);
+            int input = wasm.call("opa_value_get", parse(payload), inputKeyAddress);
+            int context = wasm.call("opa_eval_ctx_new");
+            wasm.call("opa_eval_ctx_set_input", context, input);
+            wasm.call("opa_eval_ctx_set_data", context, dataAddress);
+            wasm.call("opa_eval_ctx_set_entrypoint", context, entrypointId);
+            int error = wasm.call("eval", context);
+            if (error != 0) {
+                throw new WasmException("Evaluation of the OPA policy " + name + " failed with the error " + error);
+            }
+            JSONArray resultSet;
+            try {
+                resultSet = (JSONArray) dump(wasm.call("opa_eval_ctx_get_result", context));
+            } catch (ClassCastException e) {
+                throw new WasmException("Unexpected result of the OPA policy " + name, e);
+            }
+            if (resultSet == null || resultSet.isEmpty()) {
+                return null;
+            }
+            return ((JSONObject) resultSet.get(0)).get(SecurityHandlerConstants.JSON_KEY_RESULT);
+        }
+
+        /**
+         * Parses the JSON document in the memory of the instance and returns the address of its value.
+         */
+        int parse(byte[] json) throws WasmException {
+
+            int address = wasm.call("opa_malloc", json.length);
+            wasm.write(address, json);
+            int value = wasm.call("opa_json_parse", address, json.length);
+            if (value == 0) {
+                throw new WasmException("Invalid JSON document for the OPA policy " + name);
+            }
+            return value;
+        }
+
+        Object dump(int value) throws WasmException {
+
+            try {
+                return new JSONParser().parse(wasm.readString(wasm.call("opa_json_dump", value)));
+            } catch (ParseException e) {
+                throw new WasmException("Invalid JSON document returned by the OPA policy " + name, e);
+            }
+        }
+
+        JSONObject dumpObject(int value) throws WasmException {
+
+            Object object = dump(value);
+            if (!(object instanceof JSONObject)) {
+                throw new WasmException("Unexpected value returned by the OPA policy " + name + ": " + object);
+            }
+            return (JSONObject) object;
+        }
+    }
+
+    /**
+     * Functions imported by the policy. Builtin functions which are not compiled into the policy are rejected when
+     * it is loaded, hence they are never called.
+     */
+    private static class PolicyHost implements WasmRuntime.Host {
+
+        private final String name;
+
+        PolicyHost(String name) {
+
+            this.name = name;
+        }
+
+        @Override
+        public void abort(String message) {
+
+            throw new IllegalStateException("OPA policy " + name + " aborted: " + message);
+        }
+
+        @Override
+        public void println(String message) {
+
+            if (log.isDebugEnabled()) {
+                log.debug("OPA policy " + name + ": " + message);
+            }
+        }
+
+        @Override
+        public int builtin(WasmInstance instance, int builtinId, int context, int... args) {
+
+            throw new IllegalStateException("OPA policy " + name + " called the unsupported builtin " + builtinId);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.wasm;
+
+/**
+ * Instance of a compiled policy. Instances are not thread safe, and are used by a single thread at a time.
+ */
+public interface WasmInstance {
+
+    /**
+     * Calls a function exported by the module.
+     *
+     * @param function name of the function
+     * @param args     i32 arguments of the function
+     * @return the i32 result of the function, or 0 if it does not return a value
+     * @throws WasmException if the function traps
+     */
+    int call(String function, int... args) throws WasmException;
+
+    /**
+     * Reads the null terminated UTF-8 string at the address of the memory of the instance.
+     */
+    String readString(int address) throws WasmException;
+
+    /**
+     * Writes the bytes at the address of the memory of the instance.
+     */
+    void write(int address, byte[] bytes) throws WasmException;
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.wasm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policies compiled to WebAssembly, loaded from a directory holding the policy.wasm module of each API context in
+ * a sub directory named after the context, as {directory}/pizzashack/policy.wasm. The data document of the policy is
+ * read from a data.json file next to the module, if there is one. The directory is scanned when the store starts and
+ * at a fixed interval afterwards. New and modified modules or data documents replace the policy of their context once
+ * they are loaded, and the policies of removed modules are dropped. A module or data document which cannot be loaded
+ * leaves the previous policy of its context in place.
+ */
+public class WasmPolicyStore {
+
+    private static final Log log = LogFactory.getLog(WasmPolicyStore.class);
+
+    private final File directory;
+    private final WasmRuntime runtime;
+    private final boolean queryPolicyPackage;
+    private final Map<String, OpaWasmPolicy> policies = new ConcurrentHashMap<>();
+    // Last modified time and length of the module and the data document each policy was loaded from
+    private final Map<String, String> moduleVersions = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param directory          directory of the modules
+     * @param runtime            runtime the policies are run in
+     * @param queryPolicyPackage whether the package of the API is evaluated instead of its allow rule
+     */
+    public WasmPolicyStore(File directory, WasmRuntime runtime, boolean queryPolicyPackage) {
+
+        this.directory = directory;
+        this.runtime = runtime;
+        this.queryPolicyPackage = queryPolicyPackage;
+    }
+
+    /**
+     * Loads the modules now, and scans the directory at the given interval.
+     *
+     * @param reloadIntervalSeconds interval in seconds between two scans, or 0 to load the modules only once
+     */
+    public void start(long reloadIntervalSeconds) {
+
+        load();
+        if (reloadIntervalSeconds <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "OPA-Wasm-Policy-Loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    load();
+                } catch (RuntimeException e) {
+                    log.error("Error while loading the OPA WebAssembly policies from " + directory, e);
+                }
+            }
+        }, reloadIntervalSeconds, reloadIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the policy of the API context, or null if there is none.
+     */
+    public OpaWasmPolicy getPolicy(String apiContext) {
+
+        return policies.get(apiContext);
+    }
+
+    /**
+     * Loads the new and modified modules and drops the policies of the removed modules.
+     */
+    void load() {
+
+        File[] contextDirectories = directory.listFiles();
+        if (contextDirectories == null) {
+            log.error("OPA WebAssembly policy directory " + directory + " cannot be read");
+            return;
+        }
+        Set<String> contexts = new HashSet<>();
+        for (File contextDirectory : contextDirectories) {
+            File moduleFile = new File(contextDirectory, SecurityHandlerConstants.WASM_POLICY_FILE_NAME);
+            if (!moduleFile.isFile()) {
+                continue;
+            }
+            String apiContext = contextDirectory.getName();
+            contexts.add(apiContext);
+            File dataFile = new File(contextDirectory, SecurityHandlerConstants.WASM_DATA_FILE_NAME);
+            boolean hasData = dataFile.isFile();
+            String version = moduleFile.lastModified() + ":" + moduleFile.length()
+                    + (hasData ? "," + dataFile.lastModified() + ":" + dataFile.length() : "");
+            if (version.equals(moduleVersions.get(apiContext))) {
+                continue;
+            }
+            try {
+                byte[] module = Files.readAllBytes(moduleFile.toPath());
+                byte[] data = hasData ? Files.readAllBytes(dataFile.toPath()) : null;
+                policies.put(apiContext, new OpaWasmPolicy(apiContext, module, data, runtime,
+                        getEntrypoints(apiContext)));
+                log.info("Loaded the OPA WebAssembly policy of the API " + apiContext + " from " + moduleFile
+                        + (hasData ? " with the data of " + dataFile : ""));
+            } catch (IOException | WasmException e) {
+                log.error("Error while loading the OPA WebAssembly policy " + moduleFile, e);
+            }
+            // A module which failed is not loaded again until it or its data document is modified
+            moduleVersions.put(apiContext, version);
+        }
+        for (String apiContext : moduleVersions.keySet()) {
+            if (!contexts.contains(apiContext)) {
+                moduleVersions.remove(apiContext);
+                if (policies.remove(apiContext) != null) {
+                    log.info("Removed the OPA WebAssembly policy of the API " + apiContext);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the entrypoints evaluated for the API, which are named after the package path of its policy.
+     */
+    private String[] getEntrypoints(String apiContext) {
+
+        String allowRule = apiContext + SecurityHandlerConstants.ALLOW_RULE;
+        return queryPolicyPackage ? new String[]{apiContext, allowRule} : new String[]{allowRule};
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.wasm;
+
+/**
+ * WebAssembly runtime which runs the policies compiled by OPA inside the JVM. No runtime is shipped with the handler.
+ * A runtime, such as an adapter of a pure Java WebAssembly interpreter, is deployed as a fragment bundle with the
+ * Fragment-Host org.wso2.carbon.apimgt.securityenforcer.opa, which embeds or imports the interpreter, and is selected
+ * by its class name in the configuration. Implementations must have a public no-argument constructor and be thread
+ * safe.
+ */
+public interface WasmRuntime {
+
+    /**
+     * Instantiates a compiled policy. The runtime provides the env.memory import of the module, and binds the
+     * env.opa_abort, env.opa_println and env.opa_builtin0 to env.opa_builtin4 imports to the host.
+     *
+     * @param module binary of the module
+     * @param host   functions imported by the module
+     * @throws WasmException if the module is invalid or cannot be instantiated
+     */
+    WasmInstance instantiate(byte[] module, Host host) throws WasmException;
+
+    /**
+     * Functions imported by the policies compiled by OPA.
+     */
+    interface Host {
+
+        /**
+         * Called when the policy fails. The evaluation is abandoned.
+         *
+         * @param message the message of the policy
+         */
+        void abort(String message);
+
+        void println(String message);
+
+        /**
+         * Evaluates a builtin function which is not compiled into the policy.
+         *
+         * @param instance  the calling instance
+         * @param builtinId id of the builtin in the builtins export of the policy
+         * @param context   address of the evaluation context
+         * @param args      addresses of the arguments
+         * @return address of the result
+         */
+        int builtin(WasmInstance instance, int builtinId, int context, int... args);
+    }
+}
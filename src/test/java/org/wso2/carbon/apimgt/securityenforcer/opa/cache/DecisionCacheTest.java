@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class DecisionCacheTest {
+
+    private static final int MAX_ENTRIES = 16;
+    private static final CacheKeyDeriver KEY_DERIVER = new SipHashCacheKeyDeriver(new byte[16]);
+
+    private ScheduledExecutorService sweeper;
+    private DecisionCache<String> cache;
+
+    @Before
+    public void setUp() {
+
+        sweeper = Executors.newSingleThreadScheduledExecutor();
+        cache = new DecisionCache<>(MAX_ENTRIES, 60000, sweeper);
+    }
+
+    @After
+    public void tearDown() {
+
+        cache.close();
+        sweeper.shutdownNow();
+    }
+
+    @Test
+    public void testPutAndGet() {
+
+        CacheKey key = key(-1);
+        cache.put(key, "allow");
+        Assert.assertEquals("allow", cache.get(key));
+        cache.put(key, "deny");
+        Assert.assertEquals("deny", cache.get(key));
+        Assert.assertEquals(1, cache.size());
+        cache.remove(key);
+        Assert.assertNull(cache.get(key));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiredEntryIsNotReturned() {
+
+        CacheKey key = key(-1);
+        cache.put(key, "allow", System.currentTimeMillis() - 1);
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+
+        for (int i = 0; i < 100 * MAX_ENTRIES; i++) {
+            CacheKey key = key(i);
+            cache.get(key);
+            cache.put(key, "allow");
+            Assert.assertTrue(cache.size() <= MAX_ENTRIES);
+        }
+        Assert.assertEquals(MAX_ENTRIES, cache.size());
+    }
+
+    @Test
+    public void testFrequentEntriesAreKept() {
+
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            cache.put(key(i), "hot");
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < MAX_ENTRIES; i++) {
+                cache.get(key(i));
+            }
+        }
+        // Keys which were never requested are less popular than every cached key, hence they are not admitted
+        for (int i = MAX_ENTRIES; i < 10 * MAX_ENTRIES; i++) {
+            cache.put(key(i), "cold");
+        }
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            Assert.assertEquals("hot", cache.get(key(i)));
+        }
+    }
+
+    @Test
+    public void testExpiredEntriesAreReplaced() {
+
+        long past = System.currentTimeMillis() - 1;
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            CacheKey key = key(i);
+            cache.put(key, "expired", past);
+            for (int round = 0; round < 5; round++) {
+                cache.get(key);
+            }
+        }
+        CacheKey key = key(MAX_ENTRIES);
+        cache.put(key, "allow");
+        Assert.assertEquals("allow", cache.get(key));
+        Assert.assertTrue(cache.size() <= MAX_ENTRIES);
+    }
+
+    private static CacheKey key(int i) {
+
+        return KEY_DERIVER.derive("token-" + i);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DecisionSnapshotTest {
+
+    private static final CacheKey FINGERPRINT = new CacheKey(11, 12);
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("opa-decision-snapshot").toFile();
+        file = new File(directory, "snapshot.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(new File(file.getPath() + ".tmp").toPath());
+        Files.delete(directory.toPath());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        long now = System.currentTimeMillis();
+        Map<String, Long> contextEpochs = new HashMap<>();
+        contextEpochs.put("pizzashack", 30L);
+        contextEpochs.put("caf\u00e9", 40L);
+        try (DecisionSnapshot.Writer writer = DecisionSnapshot.create(file, FINGERPRINT, 20, contextEpochs, 3)) {
+            Assert.assertTrue(writer.add(-1234, 2, 1, 2, true, now + 1000, now + 2000, 25));
+            Assert.assertTrue(writer.add(5, 0, 3, 4, false, now - 2000, now - 1000, 35));
+            Assert.assertTrue(writer.add(5, 1, 5, 6, false, now + 3000, now + 4000, 45));
+            Assert.assertFalse(writer.add(5, 1, 7, 8, false, now + 3000, now + 4000, 45));
+            writer.commit();
+        }
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        DecisionSnapshot.Contents contents = DecisionSnapshot.read(file, FINGERPRINT, now);
+        Assert.assertEquals(20, contents.getGlobalEpoch());
+        Assert.assertEquals(contextEpochs, contents.getContextEpochs());
+        List<DecisionSnapshot.Entry> entries = contents.getEntries();
+        // The expired entry is skipped
+        Assert.assertEquals(2, entries.size());
+        DecisionSnapshot.Entry entry = entries.get(0);
+        Assert.assertEquals(-1234, entry.getTenantId());
+        Assert.assertEquals(2, entry.getCacheIndex());
+        Assert.assertEquals(new CacheKey(1, 2), entry.getKey());
+        Assert.assertTrue(entry.isAllowed());
+        Assert.assertEquals(now + 1000, entry.getRefreshTime());
+        Assert.assertEquals(now + 2000, entry.getExpiryTime());
+        Assert.assertEquals(25, entry.getPolicyEpoch());
+        entry = entries.get(1);
+        Assert.assertEquals(new CacheKey(5, 6), entry.getKey());
+        Assert.assertFalse(entry.isAllowed());
+        Assert.assertEquals(45, entry.getPolicyEpoch());
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+
+        DecisionSnapshot.Contents contents = DecisionSnapshot.read(file, FINGERPRINT, System.currentTimeMillis());
+        Assert.assertTrue(contents.getEntries().isEmpty());
+        Assert.assertTrue(contents.getContextEpochs().isEmpty());
+    }
+
+    @Test
+    public void testUncommittedSnapshotIsDiscarded() throws IOException {
+
+        long now = System.currentTimeMillis();
+        try (DecisionSnapshot.Writer writer = DecisionSnapshot.create(file, FINGERPRINT, 0,
+                Collections.<String, Long>emptyMap(), 1)) {
+            writer.add(1, 0, 1, 2, true, now + 1000, now + 2000, 0);
+        }
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testOtherFingerprintIsIgnored() throws IOException {
+
+        long now = System.currentTimeMillis();
+        writeSnapshot(now);
+        DecisionSnapshot.Contents contents = DecisionSnapshot.read(file, new CacheKey(11, 13), now);
+        Assert.assertTrue(contents.getEntries().isEmpty());
+        Assert.assertEquals(0, contents.getGlobalEpoch());
+    }
+
+    @Test(expected = IOException.class)
+    public void testOtherVersionIsRejected() throws IOException {
+
+        long now = System.currentTimeMillis();
+        writeSnapshot(now);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(4);
+            randomAccessFile.writeInt(1);
+        }
+        DecisionSnapshot.read(file, FINGERPRINT, now);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedSnapshotIsRejected() throws IOException {
+
+        long now = System.currentTimeMillis();
+        writeSnapshot(now);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() - 1);
+        }
+        DecisionSnapshot.read(file, FINGERPRINT, now);
+    }
+
+    private void writeSnapshot(long now) throws IOException {
+
+        try (DecisionSnapshot.Writer writer = DecisionSnapshot.create(file, FINGERPRINT, 20,
+                Collections.singletonMap("pizzashack", 30L), 1)) {
+            writer.add(1, 0, 1, 2, true, now + 1000, now + 2000, 25);
+            writer.commit();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    private static final CacheKeyDeriver KEY_DERIVER = new SipHashCacheKeyDeriver(new byte[16]);
+
+    @Test
+    public void testFrequency() {
+
+        FrequencySketch sketch = new FrequencySketch(1024);
+        int hash = KEY_DERIVER.derive("hot").hashCode();
+        Assert.assertEquals(0, sketch.frequency(hash));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(hash);
+        }
+        Assert.assertEquals(5, sketch.frequency(hash));
+    }
+
+    @Test
+    public void testFrequencySaturates() {
+
+        FrequencySketch sketch = new FrequencySketch(1024);
+        int hash = KEY_DERIVER.derive("hot").hashCode();
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(hash);
+        }
+        Assert.assertEquals(15, sketch.frequency(hash));
+    }
+
+    @Test
+    public void testFrequencyAges() {
+
+        FrequencySketch sketch = new FrequencySketch(16);
+        int hash = KEY_DERIVER.derive("hot").hashCode();
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(hash);
+        }
+        // Counters are halved once ten times the capacity accesses are recorded
+        for (int i = 0; i < 10 * 16; i++) {
+            sketch.increment(KEY_DERIVER.derive("token-" + i).hashCode());
+        }
+        Assert.assertTrue(sketch.frequency(hash) < 15);
+    }
+}
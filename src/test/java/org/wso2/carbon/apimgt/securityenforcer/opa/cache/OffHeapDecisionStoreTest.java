@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OffHeapDecisionStoreTest {
+
+    // Keys with the same home slot and segment, which share a probe window
+    private static final CacheKey FIRST_KEY = new CacheKey(1L << 40 | 5, 7);
+    private static final CacheKey SECOND_KEY = new CacheKey(2L << 40 | 5, 7);
+
+    @Test
+    public void testPutAndGet() {
+
+        OffHeapDecisionStore store = new OffHeapDecisionStore(256);
+        long now = System.currentTimeMillis();
+        store.put(FIRST_KEY, true, now + 30000, now + 60000, 10);
+        long entry = store.get(FIRST_KEY, now, 10);
+        Assert.assertTrue(OffHeapDecisionStore.isAllowed(entry));
+        // Times are kept in seconds, with the expiry time rounded up
+        Assert.assertTrue(OffHeapDecisionStore.getExpiryTime(entry) >= now + 60000);
+        Assert.assertTrue(OffHeapDecisionStore.getExpiryTime(entry) < now + 61000);
+        Assert.assertTrue(Math.abs(OffHeapDecisionStore.getRefreshTime(entry) - (now + 30000)) < 2000);
+        Assert.assertEquals(0, store.get(new CacheKey(3, 4), now, 10));
+    }
+
+    @Test
+    public void testExpiredAndInvalidatedEntriesAreNotReturned() {
+
+        OffHeapDecisionStore store = new OffHeapDecisionStore(256);
+        long now = System.currentTimeMillis();
+        store.put(FIRST_KEY, false, now - 60000, now - 30000, 10);
+        Assert.assertEquals(0, store.get(FIRST_KEY, now, 10));
+        store.put(SECOND_KEY, false, now + 30000, now + 60000, 10);
+        Assert.assertFalse(OffHeapDecisionStore.isAllowed(store.get(SECOND_KEY, now, 10)));
+        Assert.assertEquals(0, store.get(SECOND_KEY, now, 11));
+    }
+
+    @Test
+    public void testRemoveAndReinsert() {
+
+        OffHeapDecisionStore store = new OffHeapDecisionStore(256);
+        long now = System.currentTimeMillis();
+        store.put(FIRST_KEY, true, now + 30000, now + 60000, 10);
+        store.put(SECOND_KEY, false, now + 30000, now + 60000, 10);
+        Assert.assertEquals(2, store.size());
+
+        store.remove(FIRST_KEY);
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals(0, store.get(FIRST_KEY, now, 10));
+        // The key after the removed one in the probe window is still found
+        Assert.assertNotEquals(0, store.get(SECOND_KEY, now, 10));
+        store.remove(FIRST_KEY);
+        Assert.assertEquals(1, store.size());
+
+        // Writing the remaining key again replaces its entry instead of taking the empty slot
+        store.put(SECOND_KEY, true, now + 30000, now + 60000, 10);
+        Assert.assertEquals(1, store.size());
+        Assert.assertTrue(OffHeapDecisionStore.isAllowed(store.get(SECOND_KEY, now, 10)));
+
+        store.put(FIRST_KEY, false, now + 30000, now + 60000, 10);
+        Assert.assertEquals(2, store.size());
+        Assert.assertFalse(OffHeapDecisionStore.isAllowed(store.get(FIRST_KEY, now, 10)));
+        store.remove(SECOND_KEY);
+        Assert.assertNotEquals(0, store.get(FIRST_KEY, now, 10));
+    }
+
+    @Test
+    public void testStartRefresh() {
+
+        OffHeapDecisionStore store = new OffHeapDecisionStore(256);
+        long now = System.currentTimeMillis();
+        store.put(FIRST_KEY, true, now, now + 60000, 10);
+        long entry = store.get(FIRST_KEY, now, 10);
+        Assert.assertTrue(store.startRefresh(FIRST_KEY, entry));
+        Assert.assertFalse(store.startRefresh(FIRST_KEY, entry));
+        Assert.assertFalse(store.startRefresh(FIRST_KEY, store.get(FIRST_KEY, now, 10)));
+    }
+
+    @Test
+    public void testForEach() {
+
+        OffHeapDecisionStore store = new OffHeapDecisionStore(256);
+        long now = System.currentTimeMillis();
+        store.put(FIRST_KEY, true, now + 30000, now + 60000, 10);
+        store.put(SECOND_KEY, true, now - 60000, now - 30000, 11);
+        final List<Long> epochs = new ArrayList<>();
+        store.forEach(new OffHeapDecisionStore.Visitor() {
+
+            @Override
+            public void visit(long keyHigh, long keyLow, long entry, long policyEpoch) {
+
+                Assert.assertEquals(FIRST_KEY, new CacheKey(keyHigh, keyLow));
+                epochs.add(policyEpoch);
+            }
+        }, now);
+        Assert.assertEquals(1, epochs.size());
+        Assert.assertEquals(10L, (long) epochs.get(0));
+    }
+}
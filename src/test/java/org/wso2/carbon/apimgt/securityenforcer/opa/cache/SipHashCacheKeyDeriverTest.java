@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.wso2.carbon.apimgt.securityenforcer.opa.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks the SipHash-2-4-128 key derivation against the reference vectors of the SipHash authors, which hash the
+ * bytes 00, 01, ... of each length with the key 000102...0f.
+ */
+public class SipHashCacheKeyDeriverTest {
+
+    private static final String[] REFERENCE_VECTORS = {
+            "a3817f04ba25a8e66df67214c7550293",
+            "da87c1d86b99af44347659119b22fc45",
+            "a1f1ebbed8dbc153c0b84aa61ff08239",
+            "3b62a9ba6258f5610f83e264f31497b4",
+            "5493e99933b0a8117e08ec0f97cfc3d9",
+            "6ee2a4ca67b054bbfd3315bf85230577",
+            "5150d1772f50834a503e069a973fbd7c"
+    };
+    private static final int[] REFERENCE_LENGTHS = {0, 1, 7, 8, 15, 16, 63};
+
+    @Test
+    public void testReferenceVectors() {
+
+        SipHashCacheKeyDeriver deriver = new SipHashCacheKeyDeriver(sequence(16));
+        for (int i = 0; i < REFERENCE_VECTORS.length; i++) {
+            byte[] message = sequence(REFERENCE_LENGTHS[i]);
+            Assert.assertEquals("Length " + REFERENCE_LENGTHS[i], toKey(REFERENCE_VECTORS[i]),
+                    deriver.derive(message, message.length));
+        }
+    }
+
+    @Test
+    public void testDeriveEncodesUtf8() {
+
+        SipHashCacheKeyDeriver deriver = new SipHashCacheKeyDeriver(sequence(16));
+        String value = "token-\u00e9\u4e2d\ud83d\ude00";
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(deriver.derive(bytes, bytes.length), deriver.derive(value));
+    }
+
+    @Test
+    public void testDeriveWithScope() {
+
+        SipHashCacheKeyDeriver deriver = new SipHashCacheKeyDeriver(sequence(16));
+        CacheKey scope = deriver.derive("scope");
+        Assert.assertEquals(deriver.derive(scope, "value"), deriver.derive(scope, "value"));
+        Assert.assertNotEquals(deriver.derive(scope, "value"), deriver.derive("value"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSecretLength() {
+
+        new SipHashCacheKeyDeriver(sequence(8));
+    }
+
+    private static byte[] sequence(int length) {
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private static CacheKey toKey(String hex) {
+
+        return new CacheKey(new BigInteger(hex.substring(0, 16), 16).longValue(),
+                new BigInteger(hex.substring(16), 16).longValue());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class DecisionBatcherTest {
+
+    private static final int BATCH_SIZE = 3;
+    // Long enough for the batches which are not full to stay open during a test
+    private static final long LONG_BATCH_DELAY = TimeUnit.SECONDS.toMicros(30);
+
+    private SecurityHandlerConfig securityHandlerConfig;
+    private RecordingDataPublisher httpDataPublisher;
+    private DecisionBatcher batcher;
+
+    @Before
+    public void setUp() {
+
+        securityHandlerConfig = new SecurityHandlerConfig();
+        SecurityHandlerConfig.DataPublisherConfig dataPublisherConfig = new SecurityHandlerConfig.DataPublisherConfig();
+        dataPublisherConfig.setBatchSize(BATCH_SIZE);
+        dataPublisherConfig.setBatchDelay(LONG_BATCH_DELAY);
+        securityHandlerConfig.setDataPublisherConfig(dataPublisherConfig);
+        // Distinguishes the action for a missing policy from the action for an unreachable server
+        securityHandlerConfig.setDefaultActionIfPolicyNotFound(true);
+        securityHandlerConfig.setDefaultActionIfServerNotReachable(false);
+        httpDataPublisher = new RecordingDataPublisher();
+    }
+
+    @After
+    public void tearDown() {
+
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void testRequestsAreBatchedPerApi() throws Exception {
+
+        batcher = new DecisionBatcher(httpDataPublisher, securityHandlerConfig);
+        httpDataPublisher.responseBody = "{\"result\":[true,false,true]}";
+        List<Future<Decision>> pizzaShackResults = new ArrayList<>();
+        pizzaShackResults.add(batcher.submit(request("pizzashack", 1), "pizzashack-1", null));
+        Future<Decision> weatherResult = batcher.submit(request("weather", 1), "weather-1", null);
+        pizzaShackResults.add(batcher.submit(request("pizzashack", 2), "pizzashack-2", null));
+        pizzaShackResults.add(batcher.submit(request("pizzashack", 3), "pizzashack-3", null));
+
+        // The full batch of pizzashack is sent, while the batch of weather is still open
+        Assert.assertTrue(pizzaShackResults.get(2).get(5, TimeUnit.SECONDS).isAllowed());
+        Assert.assertEquals(1, httpDataPublisher.getBatches().size());
+        Assert.assertEquals("pizzashack", httpDataPublisher.getApiContexts().get(0));
+        Assert.assertEquals("{\"input\":{\"batch\":[{\"id\":1},{\"id\":2},{\"id\":3}]}}",
+                httpDataPublisher.getBatches().get(0));
+        Assert.assertFalse(weatherResult.isDone());
+
+        // The decisions are handed back in the order of the requests
+        Assert.assertTrue(pizzaShackResults.get(0).get().isAllowed());
+        Assert.assertFalse(pizzaShackResults.get(1).get().isAllowed());
+    }
+
+    @Test
+    public void testPartialBatchIsSentAfterTheDelay() throws Exception {
+
+        securityHandlerConfig.getDataPublisherConfig().setBatchDelay(TimeUnit.MILLISECONDS.toMicros(10));
+        batcher = new DecisionBatcher(httpDataPublisher, securityHandlerConfig);
+        httpDataPublisher.responseBody = "{\"result\":[false,true]}";
+        Future<Decision> firstResult = batcher.submit(request("pizzashack", 1), "pizzashack-1", null);
+        Future<Decision> secondResult = batcher.submit(request("pizzashack", 2), "pizzashack-2", null);
+
+        Assert.assertFalse(firstResult.get(5, TimeUnit.SECONDS).isAllowed());
+        Assert.assertTrue(secondResult.get(5, TimeUnit.SECONDS).isAllowed());
+        Assert.assertEquals("{\"input\":{\"batch\":[{\"id\":1},{\"id\":2}]}}", httpDataPublisher.getBatches().get(0));
+    }
+
+    @Test
+    public void testResponseWithFewerResultsThanRequests() throws Exception {
+
+        batcher = new DecisionBatcher(httpDataPublisher, securityHandlerConfig);
+        httpDataPublisher.responseBody = "{\"result\":[true,true]}";
+        List<Future<Decision>> results = new ArrayList<>();
+        for (int i = 1; i <= BATCH_SIZE; i++) {
+            results.add(batcher.submit(request("pizzashack", i), "pizzashack-" + i, null));
+        }
+
+        // The results cannot be matched to the requests, hence none of them is used
+        for (Future<Decision> result : results) {
+            Assert.assertFalse(result.get(5, TimeUnit.SECONDS).isAllowed());
+        }
+    }
+
+    @Test
+    public void testUndefinedResultsGetTheActionForAMissingPolicy() throws Exception {
+
+        batcher = new DecisionBatcher(httpDataPublisher, securityHandlerConfig);
+        httpDataPublisher.responseBody = "{\"result\":[false,null,false]}";
+        List<Future<Decision>> results = new ArrayList<>();
+        for (int i = 1; i <= BATCH_SIZE; i++) {
+            results.add(batcher.submit(request("pizzashack", i), "pizzashack-" + i, null));
+        }
+
+        Assert.assertFalse(results.get(0).get(5, TimeUnit.SECONDS).isAllowed());
+        Assert.assertTrue(results.get(1).get(5, TimeUnit.SECONDS).isAllowed());
+        Assert.assertFalse(results.get(2).get(5, TimeUnit.SECONDS).isAllowed());
+    }
+
+    @Test
+    public void testOpenBatchesAreCompletedOnClose() throws Exception {
+
+        batcher = new DecisionBatcher(httpDataPublisher, securityHandlerConfig);
+        Future<Decision> result = batcher.submit(request("pizzashack", 1), "pizzashack-1", null);
+        batcher.close();
+
+        Assert.assertFalse(result.get(5, TimeUnit.SECONDS).isAllowed());
+        Assert.assertTrue(httpDataPublisher.getBatches().isEmpty());
+    }
+
+    private static RequestMetadata request(String apiContext, final int id) {
+
+        return new RequestMetadata(apiContext, null, null, null, null, 0, new RequestMetadata.PayloadFactory() {
+
+            @Override
+            public byte[] createPayload() {
+
+                return ("{\"input\":{\"id\":" + id + "}}").getBytes(StandardCharsets.UTF_8);
+            }
+        });
+    }
+
+    /**
+     * Records the batches sent to the OPA server, and answers them with the response body of the test.
+     */
+    private static class RecordingDataPublisher extends HttpDataPublisher {
+
+        private final List<String> apiContexts = new ArrayList<>();
+        private final List<String> batches = new ArrayList<>();
+        private volatile String responseBody;
+
+        RecordingDataPublisher() {
+
+            super("http://localhost:8181/v1/data", "");
+        }
+
+        @Override
+        void publishBatch(String apiContext, byte[] payload, String batchName, FutureCallback<HttpResponse> callback) {
+
+            synchronized (this) {
+                apiContexts.add(apiContext);
+                batches.add(new String(payload, StandardCharsets.UTF_8));
+            }
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.setEntity(new StringEntity(responseBody, ContentType.APPLICATION_JSON));
+            callback.completed(response);
+        }
+
+        synchronized List<String> getApiContexts() {
+
+            return new ArrayList<>(apiContexts);
+        }
+
+        synchronized List<String> getBatches() {
+
+            return new ArrayList<>(batches);
+        }
+    }
+}
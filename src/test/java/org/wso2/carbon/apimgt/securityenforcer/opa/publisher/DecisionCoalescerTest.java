@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.PolicyEpoch;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+
+public class DecisionCoalescerTest {
+
+    private static final CacheKey DECISION_CACHE_KEY = new CacheKey(1, 2);
+    private static final String PAYLOAD = "{\"input\":{\"path\":\"/pizzas/1\"}}";
+
+    private PolicyEpoch policyEpoch;
+    private DecisionCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+
+        policyEpoch = new PolicyEpoch();
+        coalescer = new DecisionCoalescer(policyEpoch);
+    }
+
+    @Test
+    public void testIdenticalRequestsShareTheDecision() throws Exception {
+
+        DecisionCoalescer.Flight flight = coalescer.newFlight(request(PAYLOAD, policyEpoch.current()));
+        Assert.assertNull(coalescer.join(flight));
+
+        // Received a few milliseconds later, with no invalidation in between
+        Thread.sleep(5);
+        Future<Decision> leadingFlight = coalescer.join(coalescer.newFlight(request(PAYLOAD, policyEpoch.current())));
+        Assert.assertSame(flight, leadingFlight);
+        Decision decision = Decision.of(true);
+        flight.completed(decision);
+        coalescer.land(flight);
+        Assert.assertSame(decision, leadingFlight.get());
+
+        // A new flight starts once the previous one has landed
+        Assert.assertNull(coalescer.join(coalescer.newFlight(request(PAYLOAD, policyEpoch.current()))));
+    }
+
+    @Test
+    public void testRequestsWithOtherInputsAreNotCoalesced() {
+
+        Assert.assertNull(coalescer.join(coalescer.newFlight(request(PAYLOAD, 10))));
+        // Same decision cache key, but another raw path
+        Assert.assertNull(coalescer.join(coalescer.newFlight(request("{\"input\":{\"path\":\"/pizzas/2\"}}", 10))));
+    }
+
+    @Test
+    public void testRequestsAfterAnInvalidationStartANewFlight() {
+
+        DecisionCoalescer.Flight flight = coalescer.newFlight(request(PAYLOAD, policyEpoch.current()));
+        Assert.assertNull(coalescer.join(flight));
+        policyEpoch.invalidateContext("pizzashack");
+        DecisionCoalescer.Flight newFlight = coalescer.newFlight(request(PAYLOAD, policyEpoch.current()));
+        Assert.assertNull(coalescer.join(newFlight));
+
+        // Flights landing after the invalidation are ended as well
+        coalescer.land(flight);
+        coalescer.land(newFlight);
+        Assert.assertNull(coalescer.join(coalescer.newFlight(request(PAYLOAD, policyEpoch.current()))));
+    }
+
+    @Test
+    public void testInvalidationOfAnotherApiDoesNotSplitFlights() {
+
+        DecisionCoalescer.Flight flight = coalescer.newFlight(request(PAYLOAD, policyEpoch.current()));
+        Assert.assertNull(coalescer.join(flight));
+        policyEpoch.invalidateContext("weather");
+        Assert.assertSame(flight, coalescer.join(coalescer.newFlight(request(PAYLOAD, policyEpoch.current()))));
+    }
+
+    @Test
+    public void testWaitingRequestsFailIfTheLeaderFails() {
+
+        DecisionCoalescer.Flight flight = coalescer.newFlight(request("{\"input\":{}}", 10));
+        coalescer.join(flight);
+        Future<Decision> leadingFlight = coalescer.join(coalescer.newFlight(request("{\"input\":{}}", 10)));
+        coalescer.land(flight);
+        Assert.assertTrue(leadingFlight.isCancelled());
+    }
+
+    private static RequestMetadata request(final String payload, long policyEpoch) {
+
+        return new RequestMetadata("pizzashack", null, null, null, DECISION_CACHE_KEY, policyEpoch,
+                new RequestMetadata.PayloadFactory() {
+
+                    @Override
+                    public byte[] createPayload() {
+
+                        return payload.getBytes(StandardCharsets.UTF_8);
+                    }
+                });
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.publisher.async;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.Decision;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.RequestMetadata;
+import org.wso2.carbon.apimgt.securityenforcer.opa.dto.SecurityHandlerConfig;
+import org.wso2.carbon.apimgt.securityenforcer.opa.internal.ServiceReferenceHolder;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.HttpDataPublisher;
+import org.wso2.carbon.apimgt.securityenforcer.opa.publisher.PublisherQueueStats;
+import org.wso2.carbon.apimgt.securityenforcer.opa.utils.SecurityHandlerConstants;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncPublisherTest {
+
+    private static final int QUEUE_CAPACITY = 2;
+
+    private SecurityHandlerConfig.ThreadPoolExecutorConfig threadPoolExecutorConfig;
+    private PublisherQueueStats publisherQueueStats;
+    private BlockingDataPublisher httpDataPublisher;
+
+    @Before
+    public void setUp() {
+
+        // A single thread, which is held by the first event, and a queue of two events
+        threadPoolExecutorConfig = new SecurityHandlerConfig.ThreadPoolExecutorConfig();
+        threadPoolExecutorConfig.setCorePoolSize(1);
+        threadPoolExecutorConfig.setMaximumPoolSize(1);
+        threadPoolExecutorConfig.setQueueCapacity(QUEUE_CAPACITY);
+        SecurityHandlerConfig securityHandlerConfig = new SecurityHandlerConfig();
+        // Events of sync mode only refresh the decision cache, which is not used by the requests of the test
+        securityHandlerConfig.setMode(SecurityHandlerConstants.SYNC_MODE_STRING);
+        securityHandlerConfig.setThreadPoolExecutorConfig(threadPoolExecutorConfig);
+        ServiceReferenceHolder.getInstance().setSecurityHandlerConfig(securityHandlerConfig);
+        publisherQueueStats = new PublisherQueueStats();
+        ServiceReferenceHolder.getInstance().setPublisherQueueStats(publisherQueueStats);
+        httpDataPublisher = new BlockingDataPublisher();
+        ServiceReferenceHolder.getInstance().setHttpDataPublisher(httpDataPublisher);
+    }
+
+    @After
+    public void tearDown() {
+
+        httpDataPublisher.release.countDown();
+        ServiceReferenceHolder.getInstance().setHttpDataPublisher(null);
+        ServiceReferenceHolder.getInstance().setPublisherQueueStats(null);
+    }
+
+    @Test
+    public void testDropNewestDropsTheOverflowingEvent() throws Exception {
+
+        threadPoolExecutorConfig.setRefreshOverflowPolicy(SecurityHandlerConstants.DROP_NEWEST_OVERFLOW_POLICY_STRING);
+        AsyncPublisher asyncPublisher = fill();
+        asyncPublisher.publishAsyncEvent(request(), "refresh-1", true);
+
+        Assert.assertEquals(1, publisherQueueStats.getDroppedRefreshEvents());
+        Assert.assertEquals(0, publisherQueueStats.getDroppedCacheMissEvents());
+        Assert.assertEquals(Arrays.asList("blocking", "queued-1", "queued-2"), drain(3));
+    }
+
+    @Test
+    public void testDropOldestReplacesTheOldestQueuedEvent() throws Exception {
+
+        threadPoolExecutorConfig.setCacheMissOverflowPolicy(
+                SecurityHandlerConstants.DROP_OLDEST_OVERFLOW_POLICY_STRING);
+        AsyncPublisher asyncPublisher = fill();
+        asyncPublisher.publishAsyncEvent(request(), "miss-1", false);
+        asyncPublisher.publishAsyncEvent(request(), "miss-2", false);
+
+        // The queued events are dropped in place of the newer ones
+        Assert.assertEquals(2, publisherQueueStats.getDroppedCacheMissEvents());
+        Assert.assertEquals(0, publisherQueueStats.getDroppedRefreshEvents());
+        Assert.assertEquals(QUEUE_CAPACITY, publisherQueueStats.getAsyncQueueDepth());
+        Assert.assertEquals(Arrays.asList("blocking", "miss-1", "miss-2"), drain(3));
+    }
+
+    @Test
+    public void testSampleQueuesOneInEverySampleRateEvents() throws Exception {
+
+        threadPoolExecutorConfig.setRefreshOverflowPolicy(SecurityHandlerConstants.SAMPLE_OVERFLOW_POLICY_STRING);
+        threadPoolExecutorConfig.setOverflowSampleRate(2);
+        AsyncPublisher asyncPublisher = fill();
+        for (int i = 1; i <= 4; i++) {
+            asyncPublisher.publishAsyncEvent(request(), "refresh-" + i, true);
+        }
+
+        // Refresh events 2 and 4 replace the queued cache miss events, the others are dropped
+        Assert.assertEquals(2, publisherQueueStats.getDroppedRefreshEvents());
+        Assert.assertEquals(2, publisherQueueStats.getDroppedCacheMissEvents());
+        Assert.assertEquals(Arrays.asList("blocking", "refresh-2", "refresh-4"), drain(3));
+    }
+
+    /**
+     * Creates a publisher whose thread is held by an event, and whose queue is full.
+     */
+    private AsyncPublisher fill() throws Exception {
+
+        AsyncPublisher asyncPublisher = new AsyncPublisher();
+        asyncPublisher.publishAsyncEvent(request(), "blocking", false);
+        Assert.assertTrue(httpDataPublisher.started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= QUEUE_CAPACITY; i++) {
+            asyncPublisher.publishAsyncEvent(request(), "queued-" + i, false);
+        }
+        Assert.assertEquals(QUEUE_CAPACITY, publisherQueueStats.getAsyncQueueDepth());
+        return asyncPublisher;
+    }
+
+    /**
+     * Releases the held event, and returns the events published once the given number of them were published.
+     */
+    private List<String> drain(int count) throws InterruptedException {
+
+        httpDataPublisher.release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (httpDataPublisher.getPublished().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return httpDataPublisher.getPublished();
+    }
+
+    private static RequestMetadata request() {
+
+        return new RequestMetadata("pizzashack", null, null, null, null, 0, new RequestMetadata.PayloadFactory() {
+
+            @Override
+            public byte[] createPayload() {
+
+                return "{\"input\":{}}".getBytes(StandardCharsets.UTF_8);
+            }
+        });
+    }
+
+    /**
+     * Records the events published, and holds the thread of the first one until it is released.
+     */
+    private static class BlockingDataPublisher extends HttpDataPublisher {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> published = new ArrayList<>();
+
+        BlockingDataPublisher() {
+
+            super("http://localhost:8181/v1/data", "");
+        }
+
+        @Override
+        public Decision publish(RequestMetadata data, String correlationID) {
+
+            synchronized (published) {
+                published.add(correlationID);
+            }
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Decision.of(true);
+        }
+
+        List<String> getPublished() {
+
+            synchronized (published) {
+                return new ArrayList<>(published);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.wso2.carbon.apimgt.securityenforcer.opa.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKey;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.CacheKeyDeriver;
+import org.wso2.carbon.apimgt.securityenforcer.opa.cache.SipHashCacheKeyDeriver;
+
+import java.nio.charset.StandardCharsets;
+
+public class AuthContextFragmentCacheTest {
+
+    private static final int MAX_ENTRIES = 16;
+    private static final CacheKeyDeriver KEY_DERIVER = new SipHashCacheKeyDeriver(new byte[16]);
+
+    @Test
+    public void testFragmentIsCachedPerTokenAndApi() {
+
+        AuthContextFragmentCache cache = new AuthContextFragmentCache(MAX_ENTRIES, 15);
+        byte[] fragment = fragment("admin");
+        cache.put(token(1), "PizzaShackAPI", fragment);
+
+        // The key is derived again from the token of every request
+        Assert.assertSame(fragment, cache.get(token(1), "PizzaShackAPI"));
+        Assert.assertNull(cache.get(token(2), "PizzaShackAPI"));
+    }
+
+    @Test
+    public void testFragmentIsNotReusedAcrossApis() {
+
+        AuthContextFragmentCache cache = new AuthContextFragmentCache(MAX_ENTRIES, 15);
+        byte[] pizzaShackFragment = fragment("admin");
+        cache.put(token(1), "PizzaShackAPI", pizzaShackFragment);
+        Assert.assertNull(cache.get(token(1), "WeatherAPI"));
+
+        // The same token gets another authentication context, such as another subscription tier, for another API
+        byte[] weatherFragment = fragment("admin-weather");
+        cache.put(token(1), "WeatherAPI", weatherFragment);
+        Assert.assertSame(pizzaShackFragment, cache.get(token(1), "PizzaShackAPI"));
+        Assert.assertSame(weatherFragment, cache.get(token(1), "WeatherAPI"));
+    }
+
+    @Test
+    public void testFragmentsAreEvictedAtTheBound() {
+
+        AuthContextFragmentCache cache = new AuthContextFragmentCache(MAX_ENTRIES, 15);
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            cache.put(token(i), "PizzaShackAPI", fragment("user-" + i));
+        }
+        Assert.assertEquals(MAX_ENTRIES, cachedFragments(cache, MAX_ENTRIES));
+
+        // Adding to the full cache frees an eighth of it first
+        cache.put(token(MAX_ENTRIES), "PizzaShackAPI", fragment("user-" + MAX_ENTRIES));
+        Assert.assertNotNull(cache.get(token(MAX_ENTRIES), "PizzaShackAPI"));
+        Assert.assertEquals(MAX_ENTRIES - MAX_ENTRIES / 8 + 1, cachedFragments(cache, MAX_ENTRIES + 1));
+    }
+
+    @Test
+    public void testExpiredFragmentIsNotReturned() throws Exception {
+
+        AuthContextFragmentCache cache = new AuthContextFragmentCache(MAX_ENTRIES, 0);
+        cache.put(token(1), "PizzaShackAPI", fragment("admin"));
+        Thread.sleep(5);
+        Assert.assertNull(cache.get(token(1), "PizzaShackAPI"));
+    }
+
+    private static int cachedFragments(AuthContextFragmentCache cache, int tokens) {
+
+        int cached = 0;
+        for (int i = 0; i < tokens; i++) {
+            if (cache.get(token(i), "PizzaShackAPI") != null) {
+                cached++;
+            }
+        }
+        return cached;
+    }
+
+    private static CacheKey token(int i) {
+
+        return KEY_DERIVER.derive("token-" + i);
+    }
+
+    private static byte[] fragment(String username) {
+
+        return ("{\"username\":\"" + username + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}